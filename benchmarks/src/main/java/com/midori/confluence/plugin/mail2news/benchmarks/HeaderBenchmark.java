@@ -0,0 +1,137 @@
+/**
+ * Benchmarks the parsing of headers: the charset and parameters of a Content-Type header,
+ * the space key of a recipient address and the title of a blog post.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news.benchmarks
+ */
+
+package com.midori.confluence.plugin.mail2news.benchmarks;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.midori.confluence.plugin.mail2news.Mail2NewsJob;
+import com.midori.confluence.plugin.mail2news.MessageParser;
+import com.midori.confluence.plugin.mail2news.MimeParameters;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HeaderBenchmark {
+
+	/* typical Content-Type headers, the last one with an unknown charset */
+	private final String[] contentTypes = {
+		"text/plain; charset=UTF-8",
+		"text/plain; format=flowed; charset=ISO-8859-1; delsp=yes",
+		"text/html; charset=\"utf-8\"",
+		"text/plain",
+		"text/plain; charset=x-unknown"
+	};
+
+	/* Content-Type headers of attachments, plain, quoted and RFC 2231 encoded */
+	private final String[] attachmentTypes = {
+		"application/pdf; name=report.pdf",
+		"image/jpeg; name=\"Photo 2015-08-03 (1).jpg\"",
+		"application/vnd.ms-excel; name*0*=UTF-8''Gr%C3%BCne%20Liste; name*1=\".xls\""
+	};
+
+	/* recipient addresses, with and without space key */
+	private final String[] addresses = {
+		"news+ds@example.com",
+		"confluence.news+TEAMSPACE@mail.example.com",
+		"ds@example.com",
+		"first.last@example.com"
+	};
+
+	/* subjects of messages */
+	private final String[] subjects = {
+		"Release 1.13.2 is out!",
+		"Re: [team] Meeting notes (2015/08/03) - action items: #1, #2 & #3",
+		"Hello"
+	};
+
+	@Benchmark
+	public void getCharsetFromHeader(Blackhole bh)
+	{
+		for (int i = 0; i < contentTypes.length; i++)
+		{
+			Charset charset = MessageParser.getCharsetFromHeader(contentTypes[i]);
+			bh.consume(charset);
+		}
+	}
+
+	@Benchmark
+	public void getParameter(Blackhole bh)
+	{
+		for (int i = 0; i < attachmentTypes.length; i++)
+		{
+			bh.consume(MimeParameters.isType(attachmentTypes[i], "text/plain"));
+			bh.consume(MimeParameters.getParameter(attachmentTypes[i], "name"));
+		}
+	}
+
+	@Benchmark
+	public void getSpaceKey(Blackhole bh)
+	{
+		for (int i = 0; i < addresses.length; i++)
+		{
+			bh.consume(Mail2NewsJob.getSpaceKey(addresses[i]));
+		}
+	}
+
+	@Benchmark
+	public void sanitizeTitle(Blackhole bh)
+	{
+		/* 3.5 replaces the illegal characters, 5.8 keeps the title */
+		for (int i = 0; i < subjects.length; i++)
+		{
+			bh.consume(Mail2NewsJob.sanitizeTitle(subjects[i], "3.5.17"));
+			bh.consume(Mail2NewsJob.sanitizeTitle(subjects[i], "5.8.1"));
+		}
+	}
+}
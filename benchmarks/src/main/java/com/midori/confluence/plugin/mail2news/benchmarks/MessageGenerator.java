@@ -0,0 +1,151 @@
+/**
+ * Generates MIME messages of a given size and number of parts for the
+ * benchmarks.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news.benchmarks
+ */
+
+package com.midori.confluence.plugin.mail2news.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+
+public class MessageGenerator {
+
+	/**
+	 * A line of the text part.
+	 */
+	private static final String LINE = "The quick brown fox jumps over the lazy dog, gr\u00fc\u00dfe aus Z\u00fcrich.\r\n";
+
+	/**
+	 * Generate a message sent to "news+space@example.com", with a text part
+	 * and attachments. Half of the attachments are images.
+	 *
+	 * @param size The approximate size of the text and the attachments in bytes, before encoding.
+	 * @param parts The number of parts, 1 for a message with only a text part.
+	 * @param seed The seed for the content of the attachments.
+	 * @return Returns the message in RFC 822 format.
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	public static byte[] generate(int size, int parts, long seed) throws IOException, MessagingException
+	{
+		Random random = new Random(seed);
+		int partSize = Math.max(size / parts, 1);
+		String boundary = "----=_Part_" + seed;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size + size / 3 + 4096);
+		write(out, "From: Sender <sender@example.com>\r\n");
+		write(out, "To: news+space@example.com\r\n");
+		write(out, "Subject: Benchmark: " + size + " bytes in " + parts + " parts (1/2)\r\n");
+		write(out, "Date: Mon, 3 Aug 2015 10:15:00 +0200\r\n");
+		write(out, "Message-ID: <" + seed + "." + size + "." + parts + "@example.com>\r\n");
+		write(out, "MIME-Version: 1.0\r\n");
+		write(out, "Content-Type: multipart/mixed; boundary=\"" + boundary + "\"\r\n\r\n");
+
+		/* the text of the post */
+		write(out, "--" + boundary + "\r\n");
+		write(out, "Content-Type: text/plain; charset=UTF-8\r\n");
+		write(out, "Content-Transfer-Encoding: 8bit\r\n\r\n");
+		byte[] line = LINE.getBytes("UTF-8");
+		for (int written = 0; written < partSize; written += line.length)
+		{
+			out.write(line);
+		}
+
+		/* the attachments */
+		byte[] content = new byte[partSize];
+		for (int i = 1; i < parts; i++)
+		{
+			boolean image = (i % 2 == 1);
+			random.nextBytes(content);
+			write(out, "\r\n--" + boundary + "\r\n");
+			if (image)
+			{
+				write(out, "Content-Type: image/png; name=\"image" + i + ".png\"\r\n");
+				write(out, "Content-Disposition: inline; filename=\"image" + i + ".png\"\r\n");
+				write(out, "Content-ID: <image" + i + "@example.com>\r\n");
+			}
+			else
+			{
+				write(out, "Content-Type: application/octet-stream; name=\"file" + i + ".bin\"\r\n");
+				write(out, "Content-Disposition: attachment; filename=\"file" + i + ".bin\"\r\n");
+			}
+			write(out, "Content-Transfer-Encoding: base64\r\n\r\n");
+			OutputStream encoder = MimeUtility.encode(new NonClosingOutputStream(out), "base64");
+			encoder.write(content);
+			encoder.close();
+		}
+		write(out, "\r\n--" + boundary + "--\r\n");
+
+		return out.toByteArray();
+	}
+
+	private static void write(OutputStream out, String s) throws IOException
+	{
+		out.write(s.getBytes("US-ASCII"));
+	}
+
+	/**
+	 * Lets the encoder flush its last line without closing the message.
+	 */
+	private static class NonClosingOutputStream extends OutputStream {
+		private final OutputStream out;
+
+		NonClosingOutputStream(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+		}
+
+		public void close() throws IOException
+		{
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Benchmarks parsing complete messages, from tiny messages to 100 MB
+ * messages with many parts.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news.benchmarks
+ */
+
+package com.midori.confluence.plugin.mail2news.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.midori.confluence.plugin.mail2news.MessageParser;
+
+/**
+ * Parses a message from memory like the job does after fetching it: get the
+ * content, collect the text and the attachments and hash the attachments.
+ * The 100 MB messages need a large heap, e.g. -jvmArgsAppend -Xmx2g.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MimeTraversalBenchmark {
+
+	/**
+	 * The size of the text and the attachments in bytes: 1 KB to 100 MB.
+	 */
+	@Param({ "1024", "1048576", "10485760", "104857600" })
+	public int size;
+
+	/**
+	 * The number of parts of the message.
+	 */
+	@Param({ "1", "10", "100" })
+	public int parts;
+
+	/**
+	 * Drop inline images up to this size, like the signature image setting.
+	 */
+	@Param({ "0", "16384" })
+	public int signatureImageSize;
+
+	private Session session;
+	private byte[] message;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		session = Session.getInstance(new Properties());
+		message = MessageGenerator.generate(size, parts, 42);
+	}
+
+	@Benchmark
+	public MessageParser parse() throws Exception
+	{
+		MimeMessage m = new MimeMessage(session, new ByteArrayInputStream(message));
+		MessageParser parser = new MessageParser(signatureImageSize);
+		parser.parse(m, m.getContent());
+		return parser;
+	}
+}
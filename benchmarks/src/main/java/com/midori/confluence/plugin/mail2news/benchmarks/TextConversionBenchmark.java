@@ -0,0 +1,109 @@
+/**
+ * Benchmarks the conversion of text/plain parts to storage format.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news.benchmarks
+ */
+
+package com.midori.confluence.plugin.mail2news.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.midori.confluence.plugin.mail2news.HtmlConverter;
+import com.midori.confluence.plugin.mail2news.MessageParser;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TextConversionBenchmark {
+
+	/**
+	 * The number of lines of the text.
+	 */
+	@Param({ "10", "100", "1000", "10000" })
+	public int lines;
+
+	private String text;
+
+	private String html;
+
+	@Setup
+	public void setup()
+	{
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < lines; i++)
+		{
+			sb.append("Line ").append(i).append(": The quick brown fox jumps over the lazy dog.\r\n");
+		}
+		text = sb.toString();
+
+		/* HTML as sent by Outlook, with styles and markup around every line */
+		sb = new StringBuffer("<html><head><style>p.MsoNormal {margin:0cm;}</style></head><body lang=DE>");
+		for (int i = 0; i < lines; i++)
+		{
+			sb.append("<p class=MsoNormal><span style='font-family:\"Calibri\"'>Line ").append(i)
+				.append(": The <b>quick</b> brown fox jumps over the lazy&nbsp;dog.<o:p></o:p></span></p>\r\n");
+		}
+		html = sb.append("</body></html>").toString();
+	}
+
+	@Benchmark
+	public String convertText() throws IOException
+	{
+		return MessageParser.convertText(new BufferedReader(new StringReader(text)));
+	}
+
+	@Benchmark
+	public String convertHtml() throws IOException
+	{
+		return HtmlConverter.convert(new StringReader(html));
+	}
+}
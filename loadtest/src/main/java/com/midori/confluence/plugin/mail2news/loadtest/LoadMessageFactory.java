@@ -0,0 +1,188 @@
+/**
+ * Creates the messages of the load test, with a configurable size and mix
+ * of attachments.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news.loadtest
+ */
+
+package com.midori.confluence.plugin.mail2news.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Random;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+public class LoadMessageFactory {
+
+	/**
+	 * A line of the text part.
+	 */
+	private static final String LINE = "The quick brown fox jumps over the lazy dog, gr\u00fc\u00dfe aus Z\u00fcrich.\r\n";
+
+	private final Session session;
+	private final Random random;
+
+	/* the mix of messages */
+	private final int size;
+	private final int attachments;
+	private final double images;
+	private final double invalid;
+	private final String[] spaceKeys;
+	private final String[] senders;
+
+	/**
+	 * Create a factory for messages.
+	 *
+	 * @param session The mail session.
+	 * @param seed The seed for the random mix of messages, the same seed creates the same messages.
+	 * @param size The approximate size of a message in bytes, before encoding the attachments.
+	 * @param attachments The number of attachments of each message.
+	 * @param images The share of attachments which are images, from 0 to 1.
+	 * @param invalid The share of messages sent to an unknown space, from 0 to 1.
+	 * @param spaceKeys The spaces the messages are sent to.
+	 * @param senders The email addresses of the senders.
+	 */
+	public LoadMessageFactory(Session session, long seed, int size, int attachments, double images,
+			double invalid, String[] spaceKeys, String[] senders)
+	{
+		this.session = session;
+		this.random = new Random(seed);
+		this.size = size;
+		this.attachments = attachments;
+		this.images = images;
+		this.invalid = invalid;
+		this.spaceKeys = spaceKeys;
+		this.senders = senders;
+	}
+
+	/**
+	 * Create the next message.
+	 *
+	 * @param n The number of the message, used in the subject and the file names.
+	 * @return Returns the message.
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	public MimeMessage create(int n) throws IOException, MessagingException
+	{
+		String boundary = "----=_Part_" + n;
+		int partSize = Math.max(size / (attachments + 1), 1);
+		String spaceKey = (random.nextDouble() < invalid) ? "NOSUCHSPACE" : spaceKeys[random.nextInt(spaceKeys.length)];
+		String sender = senders[random.nextInt(senders.length)];
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size + size / 3 + 4096);
+		write(out, "From: " + sender + "\r\n");
+		write(out, "To: news+" + spaceKey + "@example.com\r\n");
+		write(out, "Subject: Load test message " + n + "\r\n");
+		write(out, "Date: " + new MailDateFormat().format(new Date()) + "\r\n");
+		write(out, "Message-ID: <" + n + "." + System.currentTimeMillis() + "@loadtest.example.com>\r\n");
+		write(out, "MIME-Version: 1.0\r\n");
+		write(out, "Content-Type: multipart/mixed; boundary=\"" + boundary + "\"\r\n\r\n");
+
+		/* the text of the post */
+		write(out, "--" + boundary + "\r\n");
+		write(out, "Content-Type: text/plain; charset=UTF-8\r\n");
+		write(out, "Content-Transfer-Encoding: 8bit\r\n\r\n");
+		byte[] line = LINE.getBytes("UTF-8");
+		for (int written = 0; written < partSize; written += line.length)
+		{
+			out.write(line);
+		}
+
+		/* the attachments, random content so deduplication does not kick in */
+		byte[] content = new byte[partSize];
+		for (int i = 0; i < attachments; i++)
+		{
+			random.nextBytes(content);
+			write(out, "\r\n--" + boundary + "\r\n");
+			if (random.nextDouble() < images)
+			{
+				write(out, "Content-Type: image/png; name=\"image" + n + "-" + i + ".png\"\r\n");
+				write(out, "Content-Disposition: inline; filename=\"image" + n + "-" + i + ".png\"\r\n");
+			}
+			else
+			{
+				write(out, "Content-Type: application/pdf; name=\"file" + n + "-" + i + ".pdf\"\r\n");
+				write(out, "Content-Disposition: attachment; filename=\"file" + n + "-" + i + ".pdf\"\r\n");
+			}
+			write(out, "Content-Transfer-Encoding: base64\r\n\r\n");
+			OutputStream encoder = MimeUtility.encode(new NonClosingOutputStream(out), "base64");
+			encoder.write(content);
+			encoder.close();
+		}
+		write(out, "\r\n--" + boundary + "--\r\n");
+
+		return new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private static void write(OutputStream out, String s) throws IOException
+	{
+		out.write(s.getBytes("US-ASCII"));
+	}
+
+	/**
+	 * Lets the encoder flush its last line without closing the message.
+	 */
+	private static class NonClosingOutputStream extends OutputStream {
+		private final OutputStream out;
+
+		NonClosingOutputStream(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+		}
+
+		public void close() throws IOException
+		{
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/**
+ * Runs the mail2news job against an embedded mail server filled with
+ * generated messages and reports the throughput.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news.loadtest
+ */
+
+package com.midori.confluence.plugin.mail2news.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.mail.Session;
+
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.SimpleTrigger;
+import org.quartz.spi.TriggerFiredBundle;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.midori.confluence.plugin.mail2news.IngestionStage;
+import com.midori.confluence.plugin.mail2news.IngestionStats;
+import com.midori.confluence.plugin.mail2news.LatencyHistogram;
+import com.midori.confluence.plugin.mail2news.Mail2NewsJob;
+import com.midori.confluence.plugin.mail2news.MailConfiguration;
+import com.midori.confluence.plugin.mail2news.RunStatistics;
+import com.midori.confluence.plugin.mail2news.testsupport.InMemoryConfluence;
+
+/**
+ * The load is configured with system properties:
+ * <ul>
+ * <li>messages: the number of messages (2000)</li>
+ * <li>size: the size of a message in bytes (20000)</li>
+ * <li>attachments: the number of attachments of a message (2)</li>
+ * <li>images: the share of attachments which are images (0.5)</li>
+ * <li>invalid: the share of messages sent to an unknown space (0.01)</li>
+ * <li>spaces: the number of spaces (10)</li>
+ * <li>protocol: imap or pop3 (imap)</li>
+ * <li>deduplicate: whether to deduplicate attachments (false)</li>
+ * <li>seed: the seed for the mix of messages (1)</li>
+ * <li>latency: the simulated latency of Confluence operations in milliseconds, e.g.
+ *     "PageManager.saveContentEntity=20,AttachmentManager.saveAttachment=5" (none)</li>
+ * </ul>
+ * The same properties and seed produce the same messages, so the results of
+ * different versions of the plugin can be compared.
+ */
+public class LoadTest {
+
+	/* the account the job reads from */
+	private static final String EMAIL = "news@example.com";
+	private static final String USERNAME = "news";
+	private static final String PASSWORD = "secret";
+
+	/* the maximum number of runs, in case messages are left in the INBOX */
+	private static final int MAX_RUNS = 100;
+
+	public static void main(String[] args) throws Exception
+	{
+		int messages = Integer.getInteger("messages", 2000).intValue();
+		int size = Integer.getInteger("size", 20000).intValue();
+		int attachments = Integer.getInteger("attachments", 2).intValue();
+		double images = Double.parseDouble(System.getProperty("images", "0.5"));
+		double invalid = Double.parseDouble(System.getProperty("invalid", "0.01"));
+		int spaceCount = Integer.getInteger("spaces", 10).intValue();
+		String protocol = System.getProperty("protocol", "imap");
+		boolean deduplicate = Boolean.getBoolean("deduplicate");
+		long seed = Long.getLong("seed", 1).longValue();
+		String latency = System.getProperty("latency", "");
+
+		GreenMail greenMail = new GreenMail(ServerSetupTest.SMTP_POP3_IMAP);
+		greenMail.start();
+		try {
+			/* the content of confluence */
+			InMemoryConfluence confluence = new InMemoryConfluence();
+			confluence.setKeepBlogPosts(false);
+			String[] latencies = latency.split(",");
+			for (int i = 0; i < latencies.length; i++)
+			{
+				if (latencies[i].indexOf('=') != -1)
+				{
+					String operation = latencies[i].substring(0, latencies[i].indexOf('=')).trim();
+					confluence.setLatency(operation, Long.parseLong(latencies[i].substring(latencies[i].indexOf('=') + 1).trim()));
+				}
+			}
+			String[] spaceKeys = new String[spaceCount];
+			for (int i = 0; i < spaceCount; i++)
+			{
+				spaceKeys[i] = "SPACE" + i;
+				confluence.addSpace(spaceKeys[i]);
+			}
+			String[] senders = new String[10];
+			for (int i = 0; i < senders.length; i++)
+			{
+				senders[i] = "user" + i + "@example.com";
+				confluence.addUser("user" + i, senders[i]);
+			}
+
+			/* fill the mailbox */
+			System.out.println("Generating " + messages + " messages of " + size + " bytes with " + attachments + " attachments...");
+			GreenMailUser mailbox = greenMail.setUser(EMAIL, USERNAME, PASSWORD);
+			LoadMessageFactory factory = new LoadMessageFactory(Session.getInstance(new Properties()), seed,
+					size, attachments, images, invalid, spaceKeys, senders);
+			for (int i = 0; i < messages; i++)
+			{
+				mailbox.deliver(factory.create(i));
+			}
+
+			/* configure the job */
+			MailConfiguration config = new MailConfiguration();
+			config.setServer("localhost");
+			config.setProtocol(protocol);
+			config.setPort("pop3".equalsIgnoreCase(protocol) ? ServerSetupTest.POP3.getPort() : ServerSetupTest.IMAP.getPort());
+			config.setSecure(false);
+			config.setUsername(USERNAME);
+			config.setPassword(PASSWORD);
+			config.setDeduplicate(deduplicate);
+			Mail2NewsJob job = confluence.createJob(config, confluence.createSMTPMailServer("localhost", ServerSetupTest.SMTP.getPort()));
+
+			/* run the job until the INBOX is empty */
+			System.out.println("Running the job...");
+			IngestionStats stats = IngestionStats.getInstance();
+			stats.reset();
+			System.gc();
+			resetPeakHeap();
+			JobExecutionContext context = createContext(job);
+			long start = System.nanoTime();
+			int runs = 0;
+			while (runs < MAX_RUNS)
+			{
+				job.doExecute(context);
+				runs++;
+				RunStatistics run = stats.getHistory().getLatest();
+				if (run.getBacklog() <= 0 || run.getMessagesProcessed() == 0)
+				{
+					break;
+				}
+			}
+			long nanos = System.nanoTime() - start;
+
+			report(stats, confluence, greenMail, runs, nanos);
+		} finally {
+			greenMail.stop();
+		}
+	}
+
+	/**
+	 * Create the context the scheduler passes to the job.
+	 */
+	private static JobExecutionContext createContext(Mail2NewsJob job)
+	{
+		JobDetail jobDetail = new JobDetail("mail2news", "loadtest", Mail2NewsJob.class);
+		SimpleTrigger trigger = new SimpleTrigger("mail2news", "loadtest");
+		Date now = new Date();
+		TriggerFiredBundle bundle = new TriggerFiredBundle(jobDetail, trigger, null, false, now, now, null, null);
+		return new JobExecutionContext(null, bundle, job);
+	}
+
+	private static void resetPeakHeap()
+	{
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP)
+			{
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * Get the high-water mark of the heap, the sum of the peaks of the heap
+	 * pools. The messages of the embedded mail server are included.
+	 */
+	private static long getPeakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP)
+			{
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static void report(IngestionStats stats, InMemoryConfluence confluence, GreenMail greenMail, int runs, long nanos)
+	{
+		double seconds = nanos / 1e9;
+		long processed = ((Long) stats.getValues().get("MessagesProcessed")).longValue();
+		long failed = ((Long) stats.getValues().get("MessagesFailed")).longValue();
+
+		System.out.println();
+		System.out.println(String.format("Runs:                 %d", new Object[] { Integer.valueOf(runs) }));
+		System.out.println(String.format("Duration:             %.1f s", new Object[] { Double.valueOf(seconds) }));
+		System.out.println(String.format("Messages:             %d (%d failed)", new Object[] { Long.valueOf(processed), Long.valueOf(failed) }));
+		System.out.println(String.format("Messages/s:           %.1f", new Object[] { Double.valueOf(processed / seconds) }));
+		System.out.println(String.format("Blog posts:           %d", new Object[] { Integer.valueOf(confluence.getBlogPostCount()) }));
+		System.out.println(String.format("Attachments:          %d (%.1f MB)", new Object[] { Integer.valueOf(confluence.getAttachmentCount()), Double.valueOf(confluence.getAttachmentBytes() / 1048576.0) }));
+		System.out.println(String.format("Error mails:          %d", new Object[] { Integer.valueOf(greenMail.getReceivedMessages().length) }));
+		System.out.println(String.format("Heap high-water mark: %.1f MB", new Object[] { Double.valueOf(getPeakHeap() / 1048576.0) }));
+		System.out.println();
+		System.out.println(String.format("%-16s %8s %8s %10s %10s %10s %10s %10s", new Object[] { "Stage", "Count", "Errors", "Mean ms", "p50 ms", "p95 ms", "p99 ms", "Max ms" }));
+		for (IngestionStage stage : IngestionStage.values())
+		{
+			LatencyHistogram h = stats.getLatencies(stage);
+			System.out.println(String.format("%-16s %8d %8d %10.2f %10.2f %10.2f %10.2f %10.2f", new Object[] {
+					stage.getAttributeName(), Long.valueOf(h.getCount()), Long.valueOf(h.getErrors()),
+					Double.valueOf(h.getMeanMillis()), Double.valueOf(h.getPercentileMillis(50)),
+					Double.valueOf(h.getPercentileMillis(95)), Double.valueOf(h.getPercentileMillis(99)),
+					Double.valueOf(h.getMaxMillis()) }));
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * Saves the attachments of a blog post created by the
+ * mail2news job. The content of the attachments can be read
+ * ahead by several threads while they are written, which helps
+ * with slow attachment stores (e.g. on NFS).
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.user.User;
+
+/**
+ * The attachments are saved by the calling thread, in the transaction
+ * which saves their blog post, so the post and its attachments are
+ * committed together and the hibernate session is never shared between
+ * threads. The hashes of the content are computed by the parser while the
+ * message is decoded.
+ */
+public class AttachmentSaver {
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	private final AttachmentManager attachmentManager;
+	private final IngestionStats stats = IngestionStats.getInstance();
+
+	/**
+	 * Generates the thumbnails of saved images, null if thumbnails
+	 * are generated when they are viewed first.
+	 */
+	private RenditionGenerator renditionGenerator;
+
+	/**
+	 * Create a new attachment saver.
+	 *
+	 * @param attachmentManager The attachment manager used to save the attachments.
+	 */
+	public AttachmentSaver(AttachmentManager attachmentManager)
+	{
+		this.attachmentManager = attachmentManager;
+	}
+
+	/**
+	 * Set the generator for the thumbnails of saved images. The thumbnail of
+	 * an image is generated once its blog post is committed.
+	 *
+	 * @param renditionGenerator The generator, null to not generate thumbnails.
+	 */
+	public void setRenditionGenerator(RenditionGenerator renditionGenerator)
+	{
+		this.renditionGenerator = renditionGenerator;
+	}
+
+	/**
+	 * Save the given attachments and add them to the blog post. Has to be
+	 * called in the transaction which saves the blog post. An attachment
+	 * which cannot be written is skipped without affecting the others, a
+	 * failure of the database rolls back the blog post with all of its
+	 * attachments.
+	 *
+	 * @param blogPost The blog post (or the page of a comment) to which the attachments belong.
+	 * @param creator The user who created the blog post, null for anonymous.
+	 * @param attachments The attachments to save.
+	 * @param inputStreams The input streams to the data of the attachments, in the same order.
+	 * @return Returns the attachments which were saved, in the original order.
+	 */
+	public List<Attachment> save(ContentEntityObject blogPost, User creator, List<Attachment> attachments, List<InputStream> inputStreams)
+	{
+		String creatorName = (creator != null) ? creator.getName() : null;
+
+		List<Attachment> saved = new LinkedList<Attachment>();
+		try {
+			for (int i = 0; i < attachments.size(); i++)
+			{
+				Attachment a = attachments.get(i);
+				/* set the creator of the attachment */
+				a.setCreatorName(creatorName);
+				/* set the content of this attachment to the blog post */
+				a.setContent(blogPost);
+
+				long start = stats.start();
+				try {
+					attachmentManager.saveAttachment(a, null, inputStreams.get(i));
+					stats.record(IngestionStage.ATTACHMENT_SAVE, start);
+				}
+				catch (IOException e)
+				{
+					stats.record(IngestionStage.ATTACHMENT_SAVE, start, false);
+					log.error("Could not save attachment " + a.getFileName() + ": " + e.getMessage(), e);
+					/* skip this attachment */
+					continue;
+				}
+
+				/* add the attachment to the blog post */
+				blogPost.addAttachment(a);
+				saved.add(a);
+			}
+		}
+		finally
+		{
+			for (InputStream is : inputStreams)
+			{
+				try {
+					is.close();
+				} catch (IOException e) {
+					log.debug("Could not close attachment: " + e.getMessage());
+				}
+			}
+		}
+
+		return saved;
+	}
+
+	/**
+	 * Generate the thumbnails of saved attachments in the background, after
+	 * their blog post is committed.
+	 *
+	 * @param saved The attachments returned by save().
+	 */
+	public void generateRenditions(List<Attachment> saved)
+	{
+		if (renditionGenerator != null)
+		{
+			for (Attachment a : saved)
+			{
+				renditionGenerator.submit(a);
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * A persistent index of the mail2news plugin, mapping
+ * string keys to string values. Every entry is stored as
+ * a bandana value of its own, so a lookup or an update
+ * does not need to load or save the whole index.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.bandana.BandanaContext;
+import com.atlassian.bandana.BandanaManager;
+import com.atlassian.confluence.setup.bandana.ConfluenceBandanaContext;
+import com.atlassian.spring.container.ContainerManager;
+
+public class BandanaIndex {
+
+	/**
+	 * The prefix of the bandana keys of all indexes of this plugin.
+	 * NOTE: bandana keys are limited to 100 characters, keep this short.
+	 */
+	private static final String BANDANA_KEY_PREFIX = "mail2news.";
+
+	/**
+	 * The bandana context to access the index.
+	 */
+	private static final BandanaContext bandanaContext = new ConfluenceBandanaContext();
+
+	/**
+	 * The bandana manager of this confluence instance,
+	 * used for storing the index.
+	 */
+	private BandanaManager bandanaManager;
+
+	/**
+	 * The prefix of the bandana keys of this index.
+	 */
+	private final String keyPrefix;
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	/**
+	 * Create a new index.
+	 *
+	 * @param name The name of the index, has to be unique within this plugin.
+	 */
+	public BandanaIndex(String name)
+	{
+		ContainerManager.autowireComponent(this);
+		this.keyPrefix = BANDANA_KEY_PREFIX + name + ".";
+	}
+
+	/**
+	 * Create a new index stored by the given bandana manager.
+	 *
+	 * @param name The name of the index, has to be unique within this plugin.
+	 * @param bandanaManager The bandana manager where the index is stored.
+	 */
+	public BandanaIndex(String name, BandanaManager bandanaManager)
+	{
+		this.bandanaManager = bandanaManager;
+		this.keyPrefix = BANDANA_KEY_PREFIX + name + ".";
+	}
+
+	/**
+	 * This method is automatically called by Confluence to pass the
+	 * bandana manager of this confluence instance.
+	 *
+	 * @param bandanaManager The bandana manager of this confluence manager
+	 */
+	public void setBandanaManager(BandanaManager bandanaManager) {
+		this.bandanaManager = bandanaManager;
+	}
+
+	/**
+	 * Get the value stored for a key.
+	 *
+	 * @param key The key, at most 64 characters.
+	 * @return Returns the value or null if there is no value for this key.
+	 */
+	public String get(String key)
+	{
+		Object value = bandanaManager.getValue(bandanaContext, keyPrefix + key, false);
+		return (value instanceof String) ? (String) value : null;
+	}
+
+	/**
+	 * Store a value for a key, replacing any previous value.
+	 *
+	 * @param key The key, at most 64 characters.
+	 * @param value The value to store.
+	 */
+	public void put(String key, String value)
+	{
+		bandanaManager.setValue(bandanaContext, keyPrefix + key, value);
+	}
+
+	/**
+	 * Remove the value stored for a key.
+	 *
+	 * @param key The key, at most 64 characters.
+	 */
+	public void remove(String key)
+	{
+		bandanaManager.removeValue(bandanaContext, keyPrefix + key);
+	}
+}
@@ -85,6 +85,19 @@ public class ConfigurationManager {
         loadConfig();
     }
 
+    /**
+     * Create a configuration manager using the given bandana manager
+     * instead of the one of confluence, e.g. for running the job outside
+     * of confluence.
+     *
+     * @param bandanaManager The bandana manager where the configuration is stored.
+     */
+    public ConfigurationManager(BandanaManager bandanaManager)
+    {
+        this.bandanaManager = bandanaManager;
+        loadConfig();
+    }
+
     /**
      * This method is automatically called by Confluence to pass the
      * bandana manager of this confluence instance.
@@ -116,6 +129,8 @@ public class ConfigurationManager {
                     /* Workaround: have to create a new xStream before deserialising */
                     xStream = new XStream();
                     xStream.setClassLoader(getClass().getClassLoader());
+                    /* removed settings, still in configurations saved by earlier versions */
+                    xStream.omitField(MailConfiguration.class, "attachmentThreads");
                     Object deserialisedData = xStream.fromXML((String)data);
                     if (deserialisedData instanceof MailConfiguration) {
                         mailConfiguration = (MailConfiguration) deserialisedData;
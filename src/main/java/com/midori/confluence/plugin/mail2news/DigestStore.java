@@ -0,0 +1,350 @@
+/**
+ * The staging area of the messages which are published together as a digest.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Every space has a directory with its staged messages as <code>.eml</code>
+ * files. When the digest of a space is due, its messages are moved into a
+ * batch directory, so messages arriving while the digest is posted wait for
+ * the next one. A batch left over by an interrupted run is finished first.
+ * The name of a staged file is derived from the key of the message, so a
+ * message staged twice by an interrupted run is only published once.
+ */
+public class DigestStore {
+
+	private static final String BATCH_PREFIX = "batch-";
+
+	/**
+	 * A counter making the names of messages without key unique.
+	 */
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	/**
+	 * The directory with a subdirectory for every space.
+	 */
+	private final File directory;
+
+	/**
+	 * Create the store in the mail2news/digest directory of the shared home.
+	 */
+	public DigestStore()
+	{
+		this(PluginHome.getFile("digest"));
+	}
+
+	/**
+	 * Create the store in the given directory.
+	 *
+	 * @param directory The directory where the messages are stored, created if it does not exist.
+	 */
+	public DigestStore(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Stage a message for the next digest of a space.
+	 *
+	 * @param spaceKey The key of the space.
+	 * @param key The key of the message in the journal, null if it has none.
+	 * @param message The message.
+	 * @return Returns true if the message was staged, false if it could not be stored.
+	 */
+	public boolean add(String spaceKey, String key, Message message)
+	{
+		File dir = new File(directory, encode(spaceKey));
+		String name = (key != null) ? MessageParser.toHex(md5(key)) : System.currentTimeMillis() + "-" + counter.incrementAndGet();
+		File eml = new File(dir, name + ".eml");
+		if (eml.exists())
+		{
+			/* staged by an interrupted run */
+			return true;
+		}
+
+		File tmp = new File(dir, name + ".tmp");
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs())
+			{
+				throw new IOException("Could not create directory " + dir);
+			}
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+			try {
+				message.writeTo(os);
+			} finally {
+				os.close();
+			}
+			if (!tmp.renameTo(eml))
+			{
+				throw new IOException("Could not rename " + tmp + " to " + eml);
+			}
+			return true;
+		} catch (Exception e) {
+			log.error("Could not stage message for the digest of space " + spaceKey + " in " + dir + ": " + e.getMessage(), e);
+			tmp.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Get the digests which are due: the batches left over by an interrupted
+	 * run and the spaces whose oldest staged message is older than the interval.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @param interval The time between two digests of a space in milliseconds.
+	 * @return Returns the batches to publish.
+	 */
+	public List<Batch> getDue(long now, long interval)
+	{
+		List<Batch> due = new ArrayList<Batch>();
+		File[] spaces = directory.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isDirectory();
+			}
+		});
+		if (spaces == null)
+		{
+			return due;
+		}
+
+		for (int i = 0; i < spaces.length; i++)
+		{
+			String spaceKey = decode(spaces[i].getName());
+			File[] batches = spaces[i].listFiles(new FileFilter() {
+				public boolean accept(File f) {
+					return f.isDirectory() && f.getName().startsWith(BATCH_PREFIX);
+				}
+			});
+			for (int j = 0; batches != null && j < batches.length; j++)
+			{
+				due.add(new Batch(spaceKey, batches[j]));
+			}
+
+			File[] staged = listMessages(spaces[i]);
+			if (staged.length == 0 || now - staged[0].lastModified() < interval)
+			{
+				continue;
+			}
+			File batch = new File(spaces[i], BATCH_PREFIX + now);
+			if (!batch.mkdir())
+			{
+				log.error("Could not create directory " + batch);
+				continue;
+			}
+			for (int j = 0; j < staged.length; j++)
+			{
+				staged[j].renameTo(new File(batch, staged[j].getName()));
+			}
+			due.add(new Batch(spaceKey, batch));
+		}
+		return due;
+	}
+
+	/**
+	 * Remove a batch whose digest was published.
+	 *
+	 * @param batch The batch.
+	 */
+	public void remove(Batch batch)
+	{
+		File[] files = batch.directory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+		{
+			files[i].delete();
+		}
+		batch.directory.delete();
+	}
+
+	/**
+	 * Get the number of staged messages of all spaces.
+	 *
+	 * @return Returns the number of messages waiting for their digest.
+	 */
+	public int size()
+	{
+		int size = 0;
+		File[] spaces = directory.listFiles();
+		for (int i = 0; spaces != null && i < spaces.length; i++)
+		{
+			if (spaces[i].isDirectory())
+			{
+				size += listMessages(spaces[i]).length;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * List the messages of a directory, the oldest first.
+	 */
+	private static File[] listMessages(File dir)
+	{
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.endsWith(".eml");
+			}
+		});
+		if (files == null)
+		{
+			return new File[0];
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified();
+				long m2 = f2.lastModified();
+				return (m1 < m2) ? -1 : ((m1 == m2) ? f1.getName().compareTo(f2.getName()) : 1);
+			}
+		});
+		return files;
+	}
+
+	private static byte[] md5(String s)
+	{
+		try {
+			return MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String encode(String spaceKey)
+	{
+		try {
+			return URLEncoder.encode(spaceKey, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String decode(String name)
+	{
+		try {
+			return URLDecoder.decode(name, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The messages of a space published in one digest.
+	 */
+	public static class Batch {
+		private final String spaceKey;
+		private final File directory;
+
+		Batch(String spaceKey, File directory)
+		{
+			this.spaceKey = spaceKey;
+			this.directory = directory;
+		}
+
+		/**
+		 * @return Returns the key of the space.
+		 */
+		public String getSpaceKey()
+		{
+			return spaceKey;
+		}
+
+		/**
+		 * @return Returns a key of the batch, unique for the space.
+		 */
+		public String getId()
+		{
+			return spaceKey + ":" + directory.getName();
+		}
+
+		/**
+		 * @return Returns the files of the messages in this batch, the oldest first.
+		 */
+		public List<File> getMessages()
+		{
+			return Arrays.asList(listMessages(directory));
+		}
+
+		/**
+		 * Load a message of this batch.
+		 *
+		 * @param file The file of the message, as returned by getMessages().
+		 * @param session The session of the message.
+		 * @return Returns the message.
+		 * @throws IOException
+		 * @throws MessagingException
+		 */
+		public MimeMessage load(File file, Session session) throws IOException, MessagingException
+		{
+			InputStream is = new BufferedInputStream(new FileInputStream(file));
+			try {
+				return new MimeMessage(session, is);
+			} finally {
+				is.close();
+			}
+		}
+	}
+}
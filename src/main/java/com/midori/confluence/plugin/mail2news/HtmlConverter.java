@@ -0,0 +1,815 @@
+/**
+ * Converts the HTML of a text/html part to Confluence storage format in a
+ * single pass, keeping only harmless formatting.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The HTML is read as a stream of tags, text and entities, like a SAX
+ * parser does, without building a document tree. Only the elements and
+ * attributes listed here are written, everything else is dropped while its
+ * text is kept. Scripts, styles and the head are skipped entirely. The
+ * output is well-formed: elements are closed in order, unclosed elements
+ * are closed at the end, and text and attribute values are escaped.
+ *
+ * The memory used besides the output is bounded by the read buffer, the
+ * longest tag and the stack of open elements.
+ */
+public class HtmlConverter {
+
+	/**
+	 * The elements written, with the same name in storage format.
+	 */
+	private static final Set<String> ALLOWED = new HashSet<String>(Arrays.asList(new String[] {
+		"p", "br", "hr", "h1", "h2", "h3", "h4", "h5", "h6", "b", "strong", "i", "em", "u", "s",
+		"sub", "sup", "code", "pre", "blockquote", "ul", "ol", "li", "table", "thead", "tbody",
+		"tfoot", "tr", "th", "td", "a" }));
+
+	/**
+	 * Elements written with another name.
+	 */
+	private static final Map<String, String> RENAMED = new HashMap<String, String>();
+
+	/**
+	 * Elements whose content is skipped.
+	 */
+	private static final Set<String> SKIPPED = new HashSet<String>(Arrays.asList(new String[] {
+		"head", "script", "style", "title", "noscript", "object", "iframe", "template", "xml" }));
+
+	/**
+	 * Elements which close an open paragraph.
+	 */
+	private static final Set<String> BLOCKS = new HashSet<String>(Arrays.asList(new String[] {
+		"p", "hr", "h1", "h2", "h3", "h4", "h5", "h6", "pre", "blockquote", "ul", "ol", "table" }));
+
+	/**
+	 * The named entities converted to characters, the others are written as text.
+	 */
+	private static final Map<String, Character> ENTITIES = new HashMap<String, Character>();
+
+	/**
+	 * The longest tag read, longer tags are dropped.
+	 */
+	private static final int MAX_TAG = 16384;
+
+	/**
+	 * The deepest nesting of elements written, deeper elements are dropped.
+	 */
+	private static final int MAX_DEPTH = 64;
+
+	static {
+		RENAMED.put("strike", "s");
+		RENAMED.put("del", "s");
+		RENAMED.put("ins", "u");
+		RENAMED.put("tt", "code");
+		RENAMED.put("kbd", "code");
+		RENAMED.put("samp", "code");
+		RENAMED.put("dir", "ul");
+		RENAMED.put("menu", "ul");
+
+		String[] names = { "nbsp", "amp", "lt", "gt", "quot", "apos", "copy", "reg", "trade", "hellip",
+				"mdash", "ndash", "lsquo", "rsquo", "sbquo", "ldquo", "rdquo", "bdquo", "bull", "middot",
+				"euro", "pound", "yen", "cent", "sect", "para", "deg", "plusmn", "times", "divide", "laquo",
+				"raquo", "shy", "auml", "ouml", "uuml", "Auml", "Ouml", "Uuml", "szlig", "eacute", "egrave",
+				"ecirc", "agrave", "aacute", "acirc", "ccedil", "iacute", "oacute", "uacute", "ntilde" };
+		char[] chars = { '\u00a0', '&', '<', '>', '"', '\'', '\u00a9', '\u00ae', '\u2122', '\u2026',
+				'\u2014', '\u2013', '\u2018', '\u2019', '\u201a', '\u201c', '\u201d', '\u201e', '\u2022', '\u00b7',
+				'\u20ac', '\u00a3', '\u00a5', '\u00a2', '\u00a7', '\u00b6', '\u00b0', '\u00b1', '\u00d7', '\u00f7', '\u00ab',
+				'\u00bb', '\u00ad', '\u00e4', '\u00f6', '\u00fc', '\u00c4', '\u00d6', '\u00dc', '\u00df', '\u00e9', '\u00e8',
+				'\u00ea', '\u00e0', '\u00e1', '\u00e2', '\u00e7', '\u00ed', '\u00f3', '\u00fa', '\u00f1' };
+		for (int i = 0; i < names.length; i++)
+		{
+			ENTITIES.put(names[i], new Character(chars[i]));
+		}
+	}
+
+	/* the input and its buffer */
+	private final Reader in;
+	private final char[] buffer = new char[8192];
+	private int position;
+	private int length;
+	private int pushback = -1;
+
+	/* the output and the names of the elements open in it, innermost first */
+	private final StringBuilder out;
+	private final LinkedList<String> open = new LinkedList<String>();
+
+	/* the number of open pre elements, whitespace is kept within them */
+	private int pre;
+
+	/* whether there was whitespace since the last text */
+	private boolean space;
+
+	/* whether text was written since the start of the current block */
+	private boolean inline;
+
+	private HtmlConverter(Reader in, StringBuilder out)
+	{
+		this.in = in;
+		this.out = out;
+	}
+
+	/**
+	 * Convert HTML to storage format.
+	 *
+	 * @param in The HTML.
+	 * @return Returns the converted HTML.
+	 * @throws IOException
+	 */
+	public static String convert(Reader in) throws IOException
+	{
+		StringBuilder out = new StringBuilder();
+		new HtmlConverter(in, out).run();
+		return out.toString();
+	}
+
+	/**
+	 * Read the whole input.
+	 */
+	private void run() throws IOException
+	{
+		int c;
+		while ((c = read()) != -1)
+		{
+			if (c == '<')
+			{
+				markup();
+			}
+			else if (c == '&')
+			{
+				entity();
+			}
+			else
+			{
+				text((char) c);
+			}
+		}
+		while (!open.isEmpty())
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Read a tag, comment or declaration after a '<'.
+	 */
+	private void markup() throws IOException
+	{
+		int c = read();
+		if (c == '!')
+		{
+			c = read();
+			if (c == '-' && (c = read()) == '-')
+			{
+				skip("-->");
+			}
+			else
+			{
+				/* a doctype or CDATA section */
+				unread(c);
+				skip(">");
+			}
+			return;
+		}
+		if (c == '?')
+		{
+			skip(">");
+			return;
+		}
+		if (c != '/' && !Character.isLetter((char) c))
+		{
+			/* not a tag, e.g. "a < b" */
+			text('<');
+			unread(c);
+			return;
+		}
+
+		/* read up to the closing '>', which may be within a quoted attribute value */
+		StringBuilder tag = new StringBuilder();
+		char quote = 0;
+		while (c != -1 && (c != '>' || quote != 0))
+		{
+			if (quote != 0)
+			{
+				if (c == quote)
+				{
+					quote = 0;
+				}
+			}
+			else if (c == '"' || c == '\'')
+			{
+				quote = (char) c;
+			}
+			if (tag.length() < MAX_TAG)
+			{
+				tag.append((char) c);
+			}
+			c = read();
+		}
+		if (tag.length() < MAX_TAG)
+		{
+			tag(tag);
+		}
+	}
+
+	/**
+	 * Handle a tag, without the angle brackets.
+	 */
+	private void tag(StringBuilder tag) throws IOException
+	{
+		boolean end = tag.charAt(0) == '/';
+		int i = end ? 1 : 0;
+		int start = i;
+		while (i < tag.length() && (Character.isLetterOrDigit(tag.charAt(i)) || tag.charAt(i) == ':'))
+		{
+			i++;
+		}
+		String name = tag.substring(start, i).toLowerCase();
+		if (RENAMED.containsKey(name))
+		{
+			name = RENAMED.get(name);
+		}
+
+		if (end)
+		{
+			endTag(name);
+			return;
+		}
+
+		boolean empty = tag.charAt(tag.length() - 1) == '/';
+		if (SKIPPED.contains(name))
+		{
+			if (!empty)
+			{
+				/* a head without end tag ends with the body */
+				skipElement(name, "head".equals(name) ? "<body" : null);
+			}
+			return;
+		}
+		startTag(name, parseAttributes(tag, i));
+	}
+
+	/**
+	 * Handle a start tag.
+	 */
+	private void startTag(String name, Map<String, String> attributes)
+	{
+		if ("div".equals(name))
+		{
+			lineBreak();
+			return;
+		}
+		if ("img".equals(name))
+		{
+			image(attributes.get("src"));
+			return;
+		}
+		if (!ALLOWED.contains(name))
+		{
+			return;
+		}
+
+		/* close the elements which cannot contain this one */
+		if (BLOCKS.contains(name))
+		{
+			closeTo("p", null);
+			if (name.startsWith("h") && name.length() == 2)
+			{
+				for (int level = 1; level <= 6; level++)
+				{
+					closeTo("h" + level, null);
+				}
+			}
+		}
+		else if ("li".equals(name))
+		{
+			closeTo("li", new String[] {"ul", "ol"});
+		}
+		else if ("tr".equals(name))
+		{
+			closeTo("tr", new String[] {"table"});
+		}
+		else if ("td".equals(name) || "th".equals(name))
+		{
+			closeTo("td", new String[] {"tr", "table"});
+			closeTo("th", new String[] {"tr", "table"});
+		}
+		else if ("a".equals(name))
+		{
+			closeTo("a", null);
+		}
+
+		if ("br".equals(name) || "hr".equals(name))
+		{
+			out.append('<').append(name).append("/>");
+			if ("hr".equals(name))
+			{
+				block();
+			}
+			else
+			{
+				space = false;
+			}
+			return;
+		}
+		if (open.size() >= MAX_DEPTH)
+		{
+			return;
+		}
+
+		out.append('<').append(name);
+		if ("a".equals(name))
+		{
+			String href = attributes.get("href");
+			if (href != null && isSafeUrl(href))
+			{
+				attribute("href", href);
+			}
+		}
+		else if ("td".equals(name) || "th".equals(name))
+		{
+			for (String a : new String[] {"colspan", "rowspan"})
+			{
+				String value = attributes.get(a);
+				if (value != null && value.matches("[0-9]{1,3}"))
+				{
+					attribute(a, value);
+				}
+			}
+		}
+		out.append('>');
+		open.addFirst(name);
+
+		if ("pre".equals(name))
+		{
+			pre++;
+		}
+		if (!isInline(name))
+		{
+			block();
+		}
+	}
+
+	/**
+	 * Handle an end tag.
+	 */
+	private void endTag(String name)
+	{
+		if ("div".equals(name))
+		{
+			lineBreak();
+			return;
+		}
+		if (!ALLOWED.contains(name))
+		{
+			return;
+		}
+		boolean table = "table".equals(name) || "tr".equals(name) || "td".equals(name) || "th".equals(name);
+		closeTo(name, table ? null : new String[] {"table", "td", "th"});
+	}
+
+	/**
+	 * Close the innermost open element with the given name and all elements
+	 * within it, unless one of the boundaries is found first.
+	 */
+	private void closeTo(String name, String[] boundaries)
+	{
+		int depth = 0;
+		for (String element : open)
+		{
+			if (element.equals(name))
+			{
+				for (int i = 0; i <= depth; i++)
+				{
+					close();
+				}
+				return;
+			}
+			if (boundaries != null)
+			{
+				for (String boundary : boundaries)
+				{
+					if (element.equals(boundary))
+					{
+						return;
+					}
+				}
+			}
+			depth++;
+		}
+	}
+
+	/**
+	 * Close the innermost open element.
+	 */
+	private void close()
+	{
+		String name = open.removeFirst();
+		out.append("</").append(name).append('>');
+		if ("pre".equals(name))
+		{
+			pre--;
+		}
+		if (!isInline(name))
+		{
+			block();
+		}
+	}
+
+	/**
+	 * Write an image, only images referenced by URL. Images referenced by
+	 * Content-ID are attachments of the message and added to the blog post anyway.
+	 */
+	private void image(String src)
+	{
+		if (src != null && isSafeUrl(src) && !src.trim().toLowerCase().startsWith("mailto:"))
+		{
+			out.append("<ac:image><ri:url ri:value=\"");
+			escape(src.trim(), true);
+			out.append("\"/></ac:image>");
+			inline = true;
+		}
+	}
+
+	/**
+	 * Separate the lines of a div, which is not written itself.
+	 */
+	private void lineBreak()
+	{
+		if (inline)
+		{
+			out.append("<br/>");
+			block();
+		}
+	}
+
+	/**
+	 * Start a new block, leading whitespace is dropped.
+	 */
+	private void block()
+	{
+		inline = false;
+		space = false;
+	}
+
+	/**
+	 * Write a character of text.
+	 */
+	private void text(char c)
+	{
+		if (pre > 0)
+		{
+			if (c != '\r')
+			{
+				escape(c, false);
+			}
+			return;
+		}
+		if (Character.isWhitespace(c))
+		{
+			space = true;
+			return;
+		}
+		if (space && inline)
+		{
+			out.append(' ');
+		}
+		space = false;
+		inline = true;
+		escape(c, false);
+	}
+
+	/**
+	 * Read an entity after a '&'.
+	 */
+	private void entity() throws IOException
+	{
+		StringBuilder name = new StringBuilder();
+		int c = read();
+		while (c != -1 && c != ';' && name.length() < 10 && (Character.isLetterOrDigit((char) c) || (c == '#' && name.length() == 0)))
+		{
+			name.append((char) c);
+			c = read();
+		}
+
+		if (c == ';' && name.length() > 0)
+		{
+			int code = -1;
+			if (name.charAt(0) == '#')
+			{
+				try {
+					boolean hex = name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X');
+					code = Integer.parseInt(name.substring(hex ? 2 : 1), hex ? 16 : 10);
+				} catch (NumberFormatException e) {
+					code = -1;
+				}
+			}
+			else if (ENTITIES.containsKey(name.toString()))
+			{
+				code = ENTITIES.get(name.toString()).charValue();
+			}
+			if (isXmlChar(code))
+			{
+				for (char ch : Character.toChars(code))
+				{
+					text(ch);
+				}
+				return;
+			}
+			c = -2;
+		}
+
+		/* not an entity, the characters are text */
+		text('&');
+		for (int i = 0; i < name.length(); i++)
+		{
+			text(name.charAt(i));
+		}
+		if (c == -2)
+		{
+			text(';');
+		}
+		else
+		{
+			unread(c);
+		}
+	}
+
+	/**
+	 * Skip the content of an element up to its end tag.
+	 *
+	 * @param name The name of the element.
+	 * @param alternative Another tag ending the element, null if there is none.
+	 */
+	private void skipElement(String name, String alternative) throws IOException
+	{
+		String endTag = "</" + name;
+		int matched = 0;
+		int matchedAlternative = 0;
+		int c;
+		while ((c = read()) != -1)
+		{
+			char lower = Character.toLowerCase((char) c);
+			matched = match(endTag, matched, lower);
+			if (alternative != null)
+			{
+				matchedAlternative = match(alternative, matchedAlternative, lower);
+			}
+			if (matched == endTag.length() || (alternative != null && matchedAlternative == alternative.length()))
+			{
+				skip(">");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Skip the input up to and including the given string.
+	 */
+	private void skip(String end) throws IOException
+	{
+		int matched = 0;
+		int c;
+		while ((c = read()) != -1)
+		{
+			matched = match(end, matched, (char) c);
+			if (matched == end.length())
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Continue matching a string with the next character of the input. After
+	 * a mismatch the match continues with the longest start of the string
+	 * read so far, e.g. "--->" still ends a comment.
+	 *
+	 * @param s The string to find.
+	 * @param matched The number of characters of the string matched so far.
+	 * @param c The next character.
+	 * @return Returns the number of characters of the string matched now.
+	 */
+	static int match(String s, int matched, char c)
+	{
+		for (int k = matched + 1; k > 0; k--)
+		{
+			/* the first k - 1 characters of the string end the matched part */
+			if (s.charAt(k - 1) == c && s.regionMatches(0, s, matched - k + 1, k - 1))
+			{
+				return k;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Parse the attributes of a tag.
+	 *
+	 * @param tag The tag.
+	 * @param i The position after the name of the element.
+	 * @return Returns the attributes by lower case name.
+	 */
+	private static Map<String, String> parseAttributes(StringBuilder tag, int i)
+	{
+		Map<String, String> attributes = new HashMap<String, String>();
+		int n = tag.length();
+		while (i < n)
+		{
+			while (i < n && (Character.isWhitespace(tag.charAt(i)) || tag.charAt(i) == '/'))
+			{
+				i++;
+			}
+			int start = i;
+			while (i < n && tag.charAt(i) != '=' && !Character.isWhitespace(tag.charAt(i)) && tag.charAt(i) != '/')
+			{
+				i++;
+			}
+			String name = tag.substring(start, i).toLowerCase();
+			while (i < n && Character.isWhitespace(tag.charAt(i)))
+			{
+				i++;
+			}
+			String value = "";
+			if (i < n && tag.charAt(i) == '=')
+			{
+				i++;
+				while (i < n && Character.isWhitespace(tag.charAt(i)))
+				{
+					i++;
+				}
+				if (i < n && (tag.charAt(i) == '"' || tag.charAt(i) == '\''))
+				{
+					char quote = tag.charAt(i++);
+					start = i;
+					while (i < n && tag.charAt(i) != quote)
+					{
+						i++;
+					}
+					value = tag.substring(start, i);
+					i++;
+				}
+				else
+				{
+					start = i;
+					while (i < n && !Character.isWhitespace(tag.charAt(i)))
+					{
+						i++;
+					}
+					value = tag.substring(start, i);
+				}
+			}
+			if (name.length() > 0)
+			{
+				attributes.put(name, decodeEntities(value));
+			}
+		}
+		return attributes;
+	}
+
+	/**
+	 * Decode the most common entities of an attribute value, e.g. in URLs.
+	 */
+	private static String decodeEntities(String value)
+	{
+		if (value.indexOf('&') < 0)
+		{
+			return value;
+		}
+		return value.replace("&amp;", "&").replace("&quot;", "\"").replace("&lt;", "<").replace("&gt;", ">").replace("&#39;", "'");
+	}
+
+	/**
+	 * Write an attribute.
+	 */
+	private void attribute(String name, String value)
+	{
+		out.append(' ').append(name).append("=\"");
+		escape(value, true);
+		out.append('"');
+	}
+
+	private void escape(String s, boolean attribute)
+	{
+		for (int i = 0; i < s.length(); i++)
+		{
+			escape(s.charAt(i), attribute);
+		}
+	}
+
+	private void escape(char c, boolean attribute)
+	{
+		switch (c)
+		{
+		case '&':
+			out.append("&amp;");
+			break;
+		case '<':
+			out.append("&lt;");
+			break;
+		case '>':
+			out.append("&gt;");
+			break;
+		case '"':
+			out.append(attribute ? "&quot;" : "\"");
+			break;
+		default:
+			if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r')
+			{
+				out.append(c);
+			}
+			/* other control characters are not allowed in XML */
+		}
+	}
+
+	/**
+	 * Check whether a URL may be linked, i.e. it is no javascript: or data: URL.
+	 */
+	private static boolean isSafeUrl(String url)
+	{
+		String u = url.trim().toLowerCase();
+		return u.startsWith("http://") || u.startsWith("https://") || u.startsWith("mailto:") || u.startsWith("ftp://");
+	}
+
+	private static boolean isInline(String name)
+	{
+		return "b".equals(name) || "strong".equals(name) || "i".equals(name) || "em".equals(name)
+			|| "u".equals(name) || "s".equals(name) || "sub".equals(name) || "sup".equals(name)
+			|| "code".equals(name) || "a".equals(name);
+	}
+
+	private static boolean isXmlChar(int code)
+	{
+		return code == 0x9 || code == 0xa || code == 0xd || (code >= 0x20 && code <= 0xd7ff)
+			|| (code >= 0xe000 && code <= 0xfffd) || (code >= 0x10000 && code <= 0x10ffff);
+	}
+
+	private int read() throws IOException
+	{
+		if (pushback != -1)
+		{
+			int c = pushback;
+			pushback = -1;
+			return c;
+		}
+		if (position == length)
+		{
+			length = in.read(buffer);
+			position = 0;
+			if (length <= 0)
+			{
+				length = 0;
+				return -1;
+			}
+		}
+		return buffer[position++];
+	}
+
+	private void unread(int c)
+	{
+		pushback = c;
+	}
+}
@@ -0,0 +1,671 @@
+/**
+ * An append-only journal of the state of every message, so a run which was
+ * interrupted (e.g. by a crash of the node) can be finished without posting
+ * a message twice or losing it.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Every change of the state of a message is appended as a line
+ * <code>time state key [fields]</code>, separated by tabs and URL encoded.
+ * The key identifies the message in the mailbox (e.g. its IMAP UID), so
+ * the job can look up what happened to a message before handling it.
+ *
+ * A message is disposed when it was moved out of the INBOX; disposed
+ * messages are dropped when the journal is compacted at the end of a run.
+ *
+ * The content of a message is written ahead to a copy beside the journal
+ * before it is parsed, and kept until the message is disposed. A run which
+ * was interrupted is replayed from these copies, the messages are not
+ * downloaded from the mailbox again.
+ */
+public class IngestionJournal {
+
+	/**
+	 * The states of a message.
+	 */
+	public enum State {
+		/** The message was fetched from the mailbox. */
+		FETCHED,
+		/** The message was parsed and is about to be posted. */
+		PARSED,
+		/** The blog post of the message was committed. */
+		POSTED,
+		/** The message was moved out of the INBOX. */
+		DISPOSED
+	}
+
+	/**
+	 * Entries which are not disposed after this time are dropped
+	 * (e.g. the message was deleted from the mailbox by someone else).
+	 */
+	private static final long MAX_AGE = 30 * 24 * 60 * 60 * 1000L;
+
+	/**
+	 * The encoding of the journal.
+	 */
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	/**
+	 * The journal file.
+	 */
+	private final File file;
+
+	/**
+	 * The messages which are not disposed yet, by key. Loaded from the file
+	 * on first use.
+	 */
+	private Map<String, Entry> entries;
+
+	/**
+	 * The stream appending to the file, open until the next compaction.
+	 */
+	private FileOutputStream out;
+
+	/**
+	 * The directory of the copies of the messages which are not disposed yet.
+	 */
+	private final File copies;
+
+	/**
+	 * The streams of the copies read by this run, by key.
+	 */
+	private final Map<String, SharedFileInputStream> openCopies = new HashMap<String, SharedFileInputStream>();
+
+	/**
+	 * Create the journal in the mail2news directory of the shared home.
+	 */
+	public IngestionJournal()
+	{
+		this(PluginHome.getFile("journal.log"));
+	}
+
+	/**
+	 * Create the journal in the given file.
+	 *
+	 * @param file The journal file, created if it does not exist.
+	 */
+	public IngestionJournal(File file)
+	{
+		this.file = file;
+		this.copies = new File(file.getPath() + ".messages");
+	}
+
+	/**
+	 * Get what happened to a message.
+	 *
+	 * @param key The key of the message, may be null.
+	 * @return Returns the entry of the message, or null if it is not in the journal.
+	 */
+	public synchronized Entry get(String key)
+	{
+		if (key == null)
+		{
+			return null;
+		}
+		return getEntries().get(key);
+	}
+
+	/**
+	 * Get the messages which are not disposed yet.
+	 *
+	 * @return Returns the entries in the order they were added.
+	 */
+	public synchronized List<Entry> getUnfinished()
+	{
+		return new ArrayList<Entry>(getEntries().values());
+	}
+
+	/**
+	 * Record that a message was fetched from the mailbox.
+	 *
+	 * @param key The key of the message. Nothing is recorded if it is null.
+	 */
+	public synchronized void fetched(String key)
+	{
+		append(key, State.FETCHED, new String[0], false);
+	}
+
+	/**
+	 * Record that a message is about to be posted. The space and the title
+	 * allow to find the blog post if the run is interrupted while posting.
+	 *
+	 * @param key The key of the message. Nothing is recorded if it is null.
+	 * @param spaceKey The key of the space of the blog post.
+	 * @param title The title of the blog post.
+	 */
+	public synchronized void parsed(String key, String spaceKey, String title)
+	{
+		append(key, State.PARSED, new String[] {spaceKey, title}, false);
+	}
+
+	/**
+	 * Record that the blog post of a message was committed.
+	 *
+	 * @param key The key of the message. Nothing is recorded if it is null.
+	 * @param contentId The id of the blog post.
+	 */
+	public synchronized void posted(String key, long contentId)
+	{
+		append(key, State.POSTED, new String[] {"" + contentId}, true);
+	}
+
+	/**
+	 * Record that a message was moved out of the INBOX.
+	 *
+	 * @param key The key of the message. Nothing is recorded if it is null.
+	 */
+	public synchronized void disposed(String key)
+	{
+		append(key, State.DISPOSED, new String[0], true);
+		if (key != null)
+		{
+			closeCopy(key);
+			File copy = getCopyFile(key);
+			if (copy.exists() && !copy.delete())
+			{
+				this.log.warn("Could not delete the copy " + copy + " of a disposed message.");
+			}
+		}
+	}
+
+	/**
+	 * Write the content of a message ahead to the disk, before it is
+	 * parsed and posted. The copy is kept until the message is disposed, so
+	 * an interrupted run can be replayed without downloading it again.
+	 *
+	 * @param key The key of the message.
+	 * @param message The message in the mailbox.
+	 * @param session The session of the copy.
+	 * @return Returns the copy, read from the disk.
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	public synchronized MimeMessage saveCopy(String key, Message message, Session session) throws IOException, MessagingException
+	{
+		File copy = getCopyFile(key);
+		if (!copies.isDirectory() && !copies.mkdirs())
+		{
+			throw new IOException("Could not create directory " + copies);
+		}
+		/* a copy is complete or does not exist */
+		File tmp = new File(copy.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			OutputStream os = new BufferedOutputStream(fos);
+			message.writeTo(os);
+			os.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(copy))
+		{
+			/* windows does not replace existing files */
+			copy.delete();
+			if (!tmp.renameTo(copy))
+			{
+				tmp.delete();
+				throw new IOException("Could not rename " + tmp);
+			}
+		}
+		return getCopy(key, session);
+	}
+
+	/**
+	 * Get the copy of a message written by saveCopy().
+	 *
+	 * @param key The key of the message, may be null.
+	 * @param session The session of the copy.
+	 * @return Returns the copy, or null if there is none. Its content is
+	 *         read from the disk when it is needed.
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	public synchronized MimeMessage getCopy(String key, Session session) throws IOException, MessagingException
+	{
+		if (key == null)
+		{
+			return null;
+		}
+		File copy = getCopyFile(key);
+		if (!copy.isFile())
+		{
+			return null;
+		}
+		closeCopy(key);
+		SharedFileInputStream is = new SharedFileInputStream(copy);
+		openCopies.put(key, is);
+		return new MimeMessage(session, is);
+	}
+
+	/**
+	 * Get the number of messages which are not disposed yet.
+	 *
+	 * @return Returns the number of unfinished messages.
+	 */
+	public synchronized int size()
+	{
+		return getEntries().size();
+	}
+
+	/**
+	 * Rewrite the journal with the messages which are not disposed yet, so
+	 * it does not grow forever. Called at the end of every run, while the
+	 * lease of the mailbox is still held, as the file is shared by the nodes
+	 * of a cluster.
+	 */
+	public synchronized void compact()
+	{
+		closeStream();
+		for (String key : new ArrayList<String>(openCopies.keySet()))
+		{
+			closeCopy(key);
+		}
+		if (entries == null)
+		{
+			/* nothing was recorded */
+			return;
+		}
+
+		long oldest = System.currentTimeMillis() - MAX_AGE;
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(tmp);
+			for (Entry entry : new ArrayList<Entry>(entries.values()))
+			{
+				if (entry.time < oldest)
+				{
+					this.log.warn("Dropping message " + entry.key + " from the journal, it was not disposed since " + new Date(entry.time));
+					entries.remove(entry.key);
+					continue;
+				}
+				/* the last state is enough to finish the message */
+				os.write(format(entry.time, entry.key, entry.state, entry.getFields()).getBytes(ENCODING));
+			}
+			os.close();
+			os = null;
+			if (!tmp.renameTo(file))
+			{
+				/* windows does not replace existing files */
+				file.delete();
+				if (!tmp.renameTo(file))
+				{
+					throw new IOException("Could not rename " + tmp);
+				}
+			}
+		} catch (IOException e) {
+			/* the old journal is still valid */
+			this.log.error("Could not compact the journal " + file + ": " + e.getMessage(), e);
+		} finally {
+			if (os != null)
+			{
+				try {
+					os.close();
+				} catch (IOException e) {}
+			}
+		}
+		deleteStaleCopies();
+	}
+
+	/**
+	 * Delete the copies of the messages which are not in the journal any
+	 * more, e.g. dropped because of their age, and incomplete copies.
+	 */
+	private void deleteStaleCopies()
+	{
+		File[] files = copies.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File f : files)
+		{
+			try {
+				String name = f.getName();
+				if (name.endsWith(".tmp") || !entries.containsKey(URLDecoder.decode(name, ENCODING)))
+				{
+					f.delete();
+				}
+			} catch (UnsupportedEncodingException e) {
+				/* UTF-8 is always supported */
+			}
+		}
+	}
+
+	/**
+	 * Get the file of the copy of a message.
+	 */
+	private File getCopyFile(String key)
+	{
+		try {
+			return new File(copies, URLEncoder.encode(key, ENCODING));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Close the stream of the copy of a message, if it was read.
+	 */
+	private void closeCopy(String key)
+	{
+		SharedFileInputStream is = openCopies.remove(key);
+		if (is != null)
+		{
+			try {
+				is.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Append a line to the journal and update the entry of the message.
+	 *
+	 * @param key The key of the message.
+	 * @param state The new state.
+	 * @param fields The fields of the state.
+	 * @param sync Whether to force the line to the disk before returning.
+	 */
+	private void append(String key, State state, String[] fields, boolean sync)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		long now = System.currentTimeMillis();
+		apply(getEntries(), now, key, state, fields);
+		try {
+			if (out == null)
+			{
+				File dir = file.getParentFile();
+				if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+				{
+					throw new IOException("Could not create directory " + dir);
+				}
+				out = new FileOutputStream(file, true);
+			}
+			out.write(format(now, key, state, fields).getBytes(ENCODING));
+			if (sync)
+			{
+				out.getFD().sync();
+			}
+		} catch (IOException e) {
+			/* the message is handled anyway, only the recovery after a crash is affected */
+			this.log.error("Could not write to the journal " + file + ": " + e.getMessage(), e);
+			closeStream();
+		}
+	}
+
+	/**
+	 * Get the entries, loading them from the file on first use.
+	 *
+	 * @return Returns the messages which are not disposed yet.
+	 */
+	private Map<String, Entry> getEntries()
+	{
+		if (entries == null)
+		{
+			entries = new LinkedHashMap<String, Entry>();
+			if (file.exists())
+			{
+				load();
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Replay the journal file.
+	 */
+	private void load()
+	{
+		BufferedReader reader = null;
+		int lines = 0;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] f = line.split("\t");
+				try {
+					String[] fields = new String[f.length - 3];
+					for (int i = 0; i < fields.length; i++)
+					{
+						fields[i] = URLDecoder.decode(f[i + 3], ENCODING);
+					}
+					apply(entries, Long.parseLong(f[0]), URLDecoder.decode(f[2], ENCODING), State.valueOf(f[1]), fields);
+					lines++;
+				} catch (RuntimeException e) {
+					/* the last line may be incomplete after a crash */
+					this.log.warn("Ignoring invalid line in the journal " + file + ": " + line);
+				}
+			}
+		} catch (IOException e) {
+			this.log.error("Could not read the journal " + file + ": " + e.getMessage(), e);
+		} finally {
+			if (reader != null)
+			{
+				try {
+					reader.close();
+				} catch (IOException e) {}
+			}
+		}
+		if (!entries.isEmpty())
+		{
+			this.log.info("Replayed " + lines + " journal records, " + entries.size() + " messages were not finished.");
+		}
+	}
+
+	/**
+	 * Apply a state change to the entries.
+	 */
+	private static void apply(Map<String, Entry> entries, long time, String key, State state, String[] fields)
+	{
+		if (state == State.DISPOSED)
+		{
+			entries.remove(key);
+			return;
+		}
+		Entry entry = entries.get(key);
+		if (entry == null)
+		{
+			entry = new Entry(key);
+			entries.put(key, entry);
+		}
+		entry.time = time;
+		entry.state = state;
+		if (state == State.PARSED && fields.length >= 2)
+		{
+			entry.spaceKey = fields[0];
+			entry.title = fields[1];
+		}
+		else if (state == State.POSTED && fields.length >= 1)
+		{
+			entry.contentId = Long.parseLong(fields[0]);
+		}
+		else if (state == State.FETCHED)
+		{
+			/* a new attempt, the fields of an earlier one are outdated */
+			entry.spaceKey = null;
+			entry.title = null;
+			entry.contentId = 0;
+		}
+	}
+
+	/**
+	 * Format a line of the journal.
+	 */
+	private static String format(long time, String key, State state, String[] fields) throws UnsupportedEncodingException
+	{
+		StringBuilder line = new StringBuilder();
+		line.append(time).append('\t').append(state.name()).append('\t').append(URLEncoder.encode(key, ENCODING));
+		for (String field : fields)
+		{
+			line.append('\t').append(URLEncoder.encode((field != null) ? field : "", ENCODING));
+		}
+		return line.append('\n').toString();
+	}
+
+	/**
+	 * Close the stream appending to the file.
+	 */
+	private void closeStream()
+	{
+		if (out != null)
+		{
+			try {
+				out.close();
+			} catch (IOException e) {}
+			out = null;
+		}
+	}
+
+	/**
+	 * The last state of a message which is not disposed yet.
+	 */
+	public static class Entry {
+
+		private final String key;
+		private long time;
+		private State state;
+		private String spaceKey;
+		private String title;
+		private long contentId;
+
+		private Entry(String key)
+		{
+			this.key = key;
+		}
+
+		/**
+		 * @return Returns the key of the message.
+		 */
+		public String getKey()
+		{
+			return key;
+		}
+
+		/**
+		 * @return Returns when the last state was recorded, in milliseconds.
+		 */
+		public long getTime()
+		{
+			return time;
+		}
+
+		/**
+		 * @return Returns the last state.
+		 */
+		public State getState()
+		{
+			return state;
+		}
+
+		/**
+		 * @return Returns the key of the space of the blog post, or null if the message was not parsed.
+		 */
+		public String getSpaceKey()
+		{
+			return spaceKey;
+		}
+
+		/**
+		 * @return Returns the title of the blog post, or null if the message was not parsed.
+		 */
+		public String getTitle()
+		{
+			return title;
+		}
+
+		/**
+		 * @return Returns the id of the blog post, or 0 if it was not posted.
+		 */
+		public long getContentId()
+		{
+			return contentId;
+		}
+
+		/**
+		 * Get the fields of the last state, used for the compaction.
+		 */
+		private String[] getFields()
+		{
+			if (state == State.POSTED)
+			{
+				return new String[] {"" + contentId};
+			}
+			if (state == State.PARSED)
+			{
+				return new String[] {spaceKey, title};
+			}
+			return new String[0];
+		}
+	}
+}
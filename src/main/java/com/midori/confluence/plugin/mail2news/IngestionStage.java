@@ -0,0 +1,83 @@
+/**
+ * The stages of handling a message in the mail2news job,
+ * for which statistics are collected.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+public enum IngestionStage {
+
+	/* connecting to the mail store and opening the folders */
+	CONNECT("Connect"),
+	/* retrieving the content of a message */
+	FETCH("Fetch"),
+	/* traversing the MIME parts of a message */
+	PARSE("Parse"),
+	/* getting the space from the recipient addresses */
+	SPACE_RESOLVE("SpaceResolve"),
+	/* checking whether the sender may add blog posts to the spaces */
+	AUTHORIZE("Authorize"),
+	/* looking up the user by the sender address */
+	USER_RESOLVE("UserResolve"),
+	/* saving the blog post */
+	BLOG_SAVE("BlogSave"),
+	/* saving a single attachment */
+	ATTACHMENT_SAVE("AttachmentSave"),
+	/* moving or deleting a handled message */
+	DISPOSITION("Disposition"),
+	/* sending an error message to the sender */
+	ERROR_MAIL("ErrorMail");
+
+	/**
+	 * The name used for the attributes of this stage in JMX.
+	 */
+	private final String attributeName;
+
+	private IngestionStage(String attributeName)
+	{
+		this.attributeName = attributeName;
+	}
+
+	/**
+	 * Get the name used for the attributes of this stage.
+	 *
+	 * @return The name in camel case, e.g. "BlogSave".
+	 */
+	public String getAttributeName()
+	{
+		return attributeName;
+	}
+}
@@ -0,0 +1,693 @@
+/**
+ * The statistics of the mail2news job: latencies of the
+ * stages of handling a message, throughput and cache hit
+ * rates. The statistics are published as a JMX MBean.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+public class IngestionStats implements DynamicMBean {
+
+	/**
+	 * The name under which the statistics are published in JMX.
+	 */
+	public static final String OBJECT_NAME = "com.midori.confluence.plugin.mail2news:type=IngestionStats";
+
+	/**
+	 * The statistics of this plugin, created and published on first use.
+	 */
+	private static IngestionStats instance;
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	private final Map<IngestionStage, LatencyHistogram> stages = new EnumMap<IngestionStage, LatencyHistogram>(IngestionStage.class);
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong runsSkipped = new AtomicLong();
+	private final AtomicLong messagesDeferred = new AtomicLong();
+	private final AtomicLong messagesDigested = new AtomicLong();
+	private final AtomicLong digestsPublished = new AtomicLong();
+	private final AtomicLong messagesFiltered = new AtomicLong();
+	private final AtomicLong messagesUnauthorized = new AtomicLong();
+	private final AtomicLong attachmentsSpooled = new AtomicLong();
+	private final AtomicLong messagesProcessed = new AtomicLong();
+	private final AtomicLong messagesFailed = new AtomicLong();
+	private final AtomicLong bytesProcessed = new AtomicLong();
+	private final AtomicLong totalRunNanos = new AtomicLong();
+	private volatile double lastRunMessagesPerSecond;
+
+	/**
+	 * The statistics of the most recent runs.
+	 */
+	private final RunHistory history = new RunHistory();
+
+	/**
+	 * The statistics of the current run, null if the job is not running.
+	 */
+	private volatile RunStatistics currentRun;
+
+	/**
+	 * The hits and misses of the caches used by the job, by cache name.
+	 */
+	private final Map<String, AtomicLong[]> caches = new ConcurrentHashMap<String, AtomicLong[]>();
+
+	/**
+	 * The time from the date of a message until its blog post was saved.
+	 */
+	private final LatencyHistogram lag = new LatencyHistogram();
+
+	/**
+	 * The time from fetching a message until its blog post was saved.
+	 */
+	private final LatencyHistogram publishLag = new LatencyHistogram();
+
+	/**
+	 * The time from the date of a message until its blog post was saved, by space key.
+	 */
+	private final Map<String, LatencyHistogram> spaceLag = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	/**
+	 * The number of messages published later than the configured lag budget.
+	 */
+	private final AtomicLong lagBudgetExceeded = new AtomicLong();
+
+	/**
+	 * The number of failed attempts which were queued for a retry.
+	 */
+	private final AtomicLong messagesRetried = new AtomicLong();
+
+	/**
+	 * The number of messages which were given up after all attempts.
+	 */
+	private final AtomicLong messagesDeadLettered = new AtomicLong();
+
+	/* the size of the retry queue after the last run */
+	private volatile int retryQueueSize;
+	private volatile int deadLetters;
+
+	/**
+	 * Get the statistics of this plugin. They are published in JMX when this
+	 * method is called the first time.
+	 *
+	 * @return Returns the statistics.
+	 */
+	public static synchronized IngestionStats getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new IngestionStats();
+			instance.register();
+		}
+		return instance;
+	}
+
+	/**
+	 * Remove the statistics from JMX, e.g. when the plugin is disabled. The
+	 * next call of getInstance() publishes new statistics.
+	 */
+	public static synchronized void unregister()
+	{
+		if (instance == null)
+		{
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+			{
+				server.unregisterMBean(name);
+			}
+		} catch (Exception e) {
+			instance.log.warn("Could not unregister the mail2news statistics from JMX: " + e.getMessage());
+		}
+		instance = null;
+	}
+
+	private IngestionStats()
+	{
+		for (IngestionStage stage : IngestionStage.values())
+		{
+			stages.put(stage, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Publish these statistics in JMX, replacing the statistics published
+	 * by a previous instance of this plugin (e.g. before an upgrade).
+	 */
+	private void register()
+	{
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+			{
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			/* the statistics are still collected, they are just not visible in JMX */
+			log.warn("Could not register the mail2news statistics in JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get the start time of a stage, to be passed to record().
+	 *
+	 * @return Returns the current time in nanoseconds.
+	 */
+	public long start()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the latency of a successful stage.
+	 *
+	 * @param stage The stage.
+	 * @param start The start time of the stage, as returned by start().
+	 */
+	public void record(IngestionStage stage, long start)
+	{
+		record(stage, start, true);
+	}
+
+	/**
+	 * Record the latency of a stage.
+	 *
+	 * @param stage The stage.
+	 * @param start The start time of the stage, as returned by start().
+	 * @param success Whether the stage was successful.
+	 */
+	public void record(IngestionStage stage, long start, boolean success)
+	{
+		long nanos = System.nanoTime() - start;
+		stages.get(stage).record(nanos, success);
+		IngestionTrace.event(stage, nanos, success);
+
+		RunStatistics run = currentRun;
+		if (run != null)
+		{
+			run.record(stage, nanos);
+		}
+	}
+
+	/**
+	 * Get the latencies of a stage.
+	 *
+	 * @param stage The stage.
+	 * @return Returns the latencies since the plugin was started.
+	 */
+	public LatencyHistogram getLatencies(IngestionStage stage)
+	{
+		return stages.get(stage);
+	}
+
+	/**
+	 * Record a handled message.
+	 *
+	 * @param bytes The size of the message in bytes, -1 if unknown.
+	 * @param success Whether the message was published.
+	 */
+	public void messageProcessed(long bytes, boolean success)
+	{
+		messagesProcessed.incrementAndGet();
+		if (!success)
+		{
+			messagesFailed.incrementAndGet();
+		}
+		if (bytes > 0)
+		{
+			bytesProcessed.addAndGet(bytes);
+		}
+
+		RunStatistics run = currentRun;
+		if (run != null)
+		{
+			run.messageProcessed(bytes, success);
+		}
+	}
+
+	/**
+	 * Record the start of a run of the job.
+	 *
+	 * @return Returns the statistics of the new run.
+	 */
+	public RunStatistics startRun()
+	{
+		RunStatistics run = new RunStatistics();
+		currentRun = run;
+		IngestionTrace.refresh();
+		return run;
+	}
+
+	/**
+	 * Record a run which was skipped because another node of the cluster
+	 * polls the mailbox.
+	 */
+	public void runSkipped()
+	{
+		runsSkipped.incrementAndGet();
+	}
+
+	/**
+	 * Record messages left in the mailbox because their space reached the
+	 * maximum number of messages per run.
+	 *
+	 * @param count The number of messages.
+	 */
+	public void messagesDeferred(int count)
+	{
+		messagesDeferred.addAndGet(count);
+	}
+
+	/**
+	 * Record a message staged for a digest instead of being published.
+	 */
+	public void messageDigested()
+	{
+		messagesDigested.incrementAndGet();
+	}
+
+	/**
+	 * Record a digest published as one blog post.
+	 */
+	public void digestPublished()
+	{
+		digestsPublished.incrementAndGet();
+	}
+
+	/**
+	 * Record a message discarded by the filter, e.g. an out-of-office reply.
+	 */
+	public void messageFiltered()
+	{
+		messagesFiltered.incrementAndGet();
+	}
+
+	/**
+	 * Record a message rejected because its sender may not post to the space.
+	 */
+	public void messageUnauthorized()
+	{
+		messagesUnauthorized.incrementAndGet();
+	}
+
+	/**
+	 * Record an attachment written to a temporary file because the memory
+	 * budget was used up.
+	 */
+	public void attachmentSpooled()
+	{
+		attachmentsSpooled.incrementAndGet();
+	}
+
+	/**
+	 * Record a finished run of the job and add it to the history.
+	 *
+	 * @param run The statistics of the run, as returned by startRun().
+	 */
+	public void runFinished(RunStatistics run)
+	{
+		run.finish();
+		currentRun = null;
+		runs.incrementAndGet();
+		totalRunNanos.addAndGet(run.getDurationMillis() * 1000000);
+		lastRunMessagesPerSecond = run.getMessagesPerSecond();
+		history.add(run);
+	}
+
+	/**
+	 * Get the statistics of the current run.
+	 *
+	 * @return Returns the statistics, null if the job is not running.
+	 */
+	public RunStatistics getCurrentRun()
+	{
+		return currentRun;
+	}
+
+	/**
+	 * Get the statistics of the most recent runs.
+	 *
+	 * @return Returns the history of the runs.
+	 */
+	public RunHistory getHistory()
+	{
+		return history;
+	}
+
+	/**
+	 * Record an access to a cache used by the job.
+	 *
+	 * @param cache The name of the cache in camel case, e.g. "AttachmentIndex".
+	 * @param hit Whether the entry was found in the cache.
+	 */
+	public void cacheAccess(String cache, boolean hit)
+	{
+		AtomicLong[] counters = caches.get(cache);
+		if (counters == null)
+		{
+			synchronized (caches)
+			{
+				counters = caches.get(cache);
+				if (counters == null)
+				{
+					counters = new AtomicLong[] { new AtomicLong(), new AtomicLong() };
+					caches.put(cache, counters);
+				}
+			}
+		}
+		counters[hit ? 0 : 1].incrementAndGet();
+	}
+
+	/**
+	 * Record the lag of a published message.
+	 *
+	 * @param spaceKey The key of the space where the message was published.
+	 * @param sent The date of the message (Date or Received header), in milliseconds.
+	 * @param fetched When the message was fetched, in milliseconds.
+	 * @param saved When the blog post was saved, in milliseconds.
+	 */
+	public void recordLag(String spaceKey, long sent, long fetched, long saved)
+	{
+		long nanos = (saved - sent) * 1000000;
+		lag.record(nanos, true);
+		publishLag.record((saved - fetched) * 1000000, true);
+
+		LatencyHistogram h = spaceLag.get(spaceKey);
+		if (h == null)
+		{
+			synchronized (spaceLag)
+			{
+				h = spaceLag.get(spaceKey);
+				if (h == null)
+				{
+					h = new LatencyHistogram();
+					spaceLag.put(spaceKey, h);
+				}
+			}
+		}
+		h.record(nanos, true);
+	}
+
+	/**
+	 * Record a message which was published later than the configured lag budget.
+	 */
+	public void lagBudgetExceeded()
+	{
+		lagBudgetExceeded.incrementAndGet();
+	}
+
+	/**
+	 * Get the lag of the published messages by space.
+	 *
+	 * @return Returns a map from the space keys to the lag of the messages published there.
+	 */
+	public Map<String, LatencyHistogram> getSpaceLag()
+	{
+		return new TreeMap<String, LatencyHistogram>(spaceLag);
+	}
+
+	/**
+	 * Get the number of messages published later than the configured lag budget.
+	 *
+	 * @return Returns the number of messages since the plugin was started.
+	 */
+	public long getLagBudgetExceeded()
+	{
+		return lagBudgetExceeded.get();
+	}
+
+	/**
+	 * Record a message which failed because of a temporary problem and will be retried.
+	 */
+	public void messageRetried()
+	{
+		messagesRetried.incrementAndGet();
+	}
+
+	/**
+	 * Record a message which was given up after all attempts.
+	 */
+	public void messageDeadLettered()
+	{
+		messagesDeadLettered.incrementAndGet();
+	}
+
+	/**
+	 * Set the size of the retry queue.
+	 *
+	 * @param size The number of messages waiting for a retry.
+	 * @param deadLetters The number of messages which were given up.
+	 */
+	public void setRetryQueue(int size, int deadLetters)
+	{
+		this.retryQueueSize = size;
+		this.deadLetters = deadLetters;
+	}
+
+	/**
+	 * Get the number of messages waiting for a retry after the last run.
+	 *
+	 * @return Returns the size of the retry queue.
+	 */
+	public int getRetryQueueSize()
+	{
+		return retryQueueSize;
+	}
+
+	/**
+	 * Get the number of messages which were given up after all attempts.
+	 *
+	 * @return Returns the number of dead letters.
+	 */
+	public int getDeadLetters()
+	{
+		return deadLetters;
+	}
+
+	/**
+	 * Reset all statistics.
+	 */
+	public void reset()
+	{
+		for (LatencyHistogram h : stages.values())
+		{
+			h.reset();
+		}
+		runs.set(0);
+		runsSkipped.set(0);
+		messagesDeferred.set(0);
+		messagesDigested.set(0);
+		digestsPublished.set(0);
+		messagesFiltered.set(0);
+		messagesUnauthorized.set(0);
+		attachmentsSpooled.set(0);
+		MemoryBudget.getInstance().resetHighWaterMark();
+		messagesProcessed.set(0);
+		messagesFailed.set(0);
+		bytesProcessed.set(0);
+		totalRunNanos.set(0);
+		lastRunMessagesPerSecond = 0;
+		caches.clear();
+		lag.reset();
+		publishLag.reset();
+		spaceLag.clear();
+		lagBudgetExceeded.set(0);
+		messagesRetried.set(0);
+		messagesDeadLettered.set(0);
+	}
+
+	/**
+	 * Get all statistics by attribute name, in the order in which they are
+	 * published in JMX.
+	 *
+	 * @return Returns a map from the attribute names to the values.
+	 */
+	public Map<String, Object> getValues()
+	{
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("Runs", new Long(runs.get()));
+		values.put("RunsSkipped", new Long(runsSkipped.get()));
+		values.put("MessagesProcessed", new Long(messagesProcessed.get()));
+		values.put("MessagesFailed", new Long(messagesFailed.get()));
+		values.put("BytesProcessed", new Long(bytesProcessed.get()));
+		values.put("MessagesRetried", new Long(messagesRetried.get()));
+		values.put("MessagesDeadLettered", new Long(messagesDeadLettered.get()));
+		values.put("MessagesDeferred", new Long(messagesDeferred.get()));
+		values.put("MessagesDigested", new Long(messagesDigested.get()));
+		values.put("DigestsPublished", new Long(digestsPublished.get()));
+		values.put("MessagesFiltered", new Long(messagesFiltered.get()));
+		values.put("MessagesUnauthorized", new Long(messagesUnauthorized.get()));
+		MemoryBudget memory = MemoryBudget.getInstance();
+		values.put("MemoryBudget", new Long(memory.getCapacity()));
+		values.put("MemoryUsed", new Long(memory.getUsed()));
+		values.put("MemoryHighWaterMark", new Long(memory.getHighWaterMark()));
+		values.put("AttachmentsSpooled", new Long(attachmentsSpooled.get()));
+		values.put("RetryQueueSize", new Integer(retryQueueSize));
+		values.put("DeadLetters", new Integer(deadLetters));
+		values.put("LastRunMessagesPerSecond", new Double(lastRunMessagesPerSecond));
+		long nanos = totalRunNanos.get();
+		values.put("MessagesPerSecond", new Double((nanos > 0) ? messagesProcessed.get() * 1000000000.0 / nanos : 0));
+
+		for (IngestionStage stage : IngestionStage.values())
+		{
+			LatencyHistogram h = stages.get(stage);
+			String name = stage.getAttributeName();
+			values.put(name + "Count", new Long(h.getCount()));
+			values.put(name + "Errors", new Long(h.getErrors()));
+			values.put(name + "MeanMillis", new Double(h.getMeanMillis()));
+			values.put(name + "P50Millis", new Double(h.getPercentileMillis(50)));
+			values.put(name + "P95Millis", new Double(h.getPercentileMillis(95)));
+			values.put(name + "P99Millis", new Double(h.getPercentileMillis(99)));
+			values.put(name + "MaxMillis", new Double(h.getMaxMillis()));
+		}
+
+		putLag(values, "Lag", lag);
+		putLag(values, "PublishLag", publishLag);
+		values.put("LagBudgetExceeded", new Long(lagBudgetExceeded.get()));
+		for (Map.Entry<String, LatencyHistogram> e : getSpaceLag().entrySet())
+		{
+			putLag(values, "Lag." + e.getKey() + ".", e.getValue());
+		}
+
+		for (Iterator<Map.Entry<String, AtomicLong[]>> it = caches.entrySet().iterator(); it.hasNext(); )
+		{
+			Map.Entry<String, AtomicLong[]> e = it.next();
+			long hits = e.getValue()[0].get();
+			long misses = e.getValue()[1].get();
+			values.put(e.getKey() + "Hits", new Long(hits));
+			values.put(e.getKey() + "Misses", new Long(misses));
+			values.put(e.getKey() + "HitRate", new Double((hits + misses > 0) ? (double) hits / (hits + misses) : 0));
+		}
+
+		return values;
+	}
+
+	private void putLag(Map<String, Object> values, String prefix, LatencyHistogram h)
+	{
+		values.put(prefix + "Count", new Long(h.getCount()));
+		values.put(prefix + "P50Millis", new Double(h.getPercentileMillis(50)));
+		values.put(prefix + "P95Millis", new Double(h.getPercentileMillis(95)));
+		values.put(prefix + "P99Millis", new Double(h.getPercentileMillis(99)));
+		values.put(prefix + "MaxMillis", new Double(h.getMaxMillis()));
+	}
+
+	/*
+	 * DynamicMBean
+	 */
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Map<String, Object> values = getValues();
+		if (!values.containsKey(attribute))
+		{
+			throw new AttributeNotFoundException(attribute);
+		}
+		return values.get(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Object> values = getValues();
+		AttributeList list = new AttributeList();
+		for (int i = 0; i < attributes.length; i++)
+		{
+			if (values.containsKey(attributes[i]))
+			{
+				list.add(new Attribute(attributes[i], values.get(attributes[i])));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		/* all attributes are read only */
+		throw new AttributeNotFoundException(attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		/* all attributes are read only */
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		if ("reset".equals(actionName))
+		{
+			reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Object> values = getValues();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for (Map.Entry<String, Object> e : values.entrySet())
+		{
+			attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false);
+		}
+		MBeanOperationInfo[] operations = new MBeanOperationInfo[] {
+			new MBeanOperationInfo("reset", "Reset all statistics", null, "void", MBeanOperationInfo.ACTION)
+		};
+		return new MBeanInfo(getClass().getName(), "Statistics of the mail to news job", attributes, null, operations, null);
+	}
+}
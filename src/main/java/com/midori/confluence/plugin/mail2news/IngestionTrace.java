@@ -0,0 +1,205 @@
+/**
+ * Trace events of the stages of handling a message, with the context of
+ * the message (number, size, parts and space key), so the stages can be
+ * correlated with GC pauses and database contention in a profiler.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The events are written to the logger of this class at DEBUG level, e.g.
+ * enable them with <code>log4j.logger.com.midori.confluence.plugin.mail2news.IngestionTrace=DEBUG</code>.
+ * Whether the events are enabled is checked once per run of the job, so
+ * there is no overhead besides a field access when tracing is off.
+ */
+public final class IngestionTrace {
+
+	/**
+	 * The logger the events are written to.
+	 */
+	private static final Logger log = Logger.getLogger(IngestionTrace.class);
+
+	/**
+	 * Whether trace events are written, updated at the start of each run.
+	 */
+	private static volatile boolean enabled;
+
+	/**
+	 * The context of the message handled by the current thread.
+	 */
+	private static final ThreadLocal<IngestionTrace> current = new ThreadLocal<IngestionTrace>();
+
+	/* the context of the message */
+	private final int messageNumber;
+	private final int size;
+	private volatile int parts;
+	private volatile String spaceKey;
+
+	private IngestionTrace(int messageNumber, int size)
+	{
+		this.messageNumber = messageNumber;
+		this.size = size;
+	}
+
+	/**
+	 * Check whether trace events are enabled. Called at the start of each run.
+	 */
+	public static void refresh()
+	{
+		enabled = log.isDebugEnabled();
+	}
+
+	/**
+	 * Check whether trace events are written.
+	 *
+	 * @return Returns true if trace events are enabled.
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Start handling a message in the current thread. Replaces the context of
+	 * the previous message.
+	 *
+	 * @param messageNumber The number of the message in its folder.
+	 * @param size The size of the message in bytes, -1 if unknown.
+	 */
+	public static void begin(int messageNumber, int size)
+	{
+		if (enabled)
+		{
+			current.set(new IngestionTrace(messageNumber, size));
+		}
+	}
+
+	/**
+	 * Get the context of the message handled by the current thread, to be
+	 * passed to other threads working on the same message.
+	 *
+	 * @return Returns the context, null if tracing is off.
+	 */
+	public static IngestionTrace current()
+	{
+		return enabled ? current.get() : null;
+	}
+
+	/**
+	 * Continue the context of a message in the current thread.
+	 *
+	 * @param trace The context as returned by current(), may be null.
+	 */
+	public static void resume(IngestionTrace trace)
+	{
+		if (trace != null)
+		{
+			current.set(trace);
+		}
+	}
+
+	/**
+	 * Finish handling a message in the current thread.
+	 */
+	public static void end()
+	{
+		current.remove();
+	}
+
+	/**
+	 * Set the space key of the message handled by the current thread.
+	 *
+	 * @param spaceKey The key of the space.
+	 */
+	public static void setSpaceKey(String spaceKey)
+	{
+		IngestionTrace trace = current();
+		if (trace != null)
+		{
+			trace.spaceKey = spaceKey;
+		}
+	}
+
+	/**
+	 * Count a part of the message handled by the current thread.
+	 */
+	public static void addPart()
+	{
+		IngestionTrace trace = current();
+		if (trace != null)
+		{
+			trace.parts++;
+		}
+	}
+
+	/**
+	 * Write the trace event of a finished stage.
+	 *
+	 * @param stage The stage.
+	 * @param nanos The duration of the stage in nanoseconds.
+	 * @param success Whether the stage was successful.
+	 */
+	static void event(IngestionStage stage, long nanos, boolean success)
+	{
+		if (!enabled)
+		{
+			return;
+		}
+
+		long end = System.currentTimeMillis();
+		StringBuffer sb = new StringBuffer(160);
+		sb.append("stage=").append(stage.getAttributeName());
+		sb.append(" start=").append(new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(end - nanos / 1000000)));
+		sb.append(" durationMicros=").append(nanos / 1000);
+		sb.append(" success=").append(success);
+		sb.append(" thread=").append(Thread.currentThread().getName());
+
+		IngestionTrace trace = current.get();
+		if (trace != null)
+		{
+			sb.append(" message=").append(trace.messageNumber);
+			sb.append(" size=").append(trace.size);
+			sb.append(" parts=").append(trace.parts);
+			sb.append(" space=").append(trace.spaceKey);
+		}
+		log.debug(sb.toString());
+	}
+}
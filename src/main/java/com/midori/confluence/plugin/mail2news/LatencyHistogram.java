@@ -0,0 +1,196 @@
+/**
+ * A histogram of latencies, used for the statistics of the
+ * mail2news job. Latencies are counted in buckets with
+ * power of two boundaries (in microseconds), so recording
+ * is cheap and lock-free and the percentiles are accurate
+ * to a factor of two.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+	/**
+	 * The number of buckets. Bucket i counts latencies below 2^i microseconds,
+	 * the last bucket counts everything above (more than 12 days).
+	 */
+	private static final int BUCKETS = 41;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos The latency in nanoseconds.
+	 * @param success Whether the operation was successful.
+	 */
+	public void record(long nanos, boolean success)
+	{
+		if (nanos < 0)
+		{
+			nanos = 0;
+		}
+
+		/* the bucket is the number of significant bits of the latency in microseconds */
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+
+		count.incrementAndGet();
+		if (!success)
+		{
+			errors.incrementAndGet();
+		}
+		totalNanos.addAndGet(nanos);
+
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+		{
+			max = maxNanos.get();
+		}
+	}
+
+	/**
+	 * @return Returns the number of recorded latencies.
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * @return Returns the number of recorded latencies of failed operations.
+	 */
+	public long getErrors()
+	{
+		return errors.get();
+	}
+
+	/**
+	 * @return Returns the mean latency in milliseconds, 0 if nothing was recorded.
+	 */
+	public double getMeanMillis()
+	{
+		long c = count.get();
+		return (c == 0) ? 0 : totalNanos.get() / (c * 1000000.0);
+	}
+
+	/**
+	 * @return Returns the maximum latency in milliseconds.
+	 */
+	public double getMaxMillis()
+	{
+		return maxNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * Get a percentile of the recorded latencies. The result is the upper
+	 * boundary of the bucket containing the percentile.
+	 *
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return Returns the latency in milliseconds, 0 if nothing was recorded.
+	 */
+	public double getPercentileMillis(double percentile)
+	{
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= Math.max(rank, 1))
+			{
+				return Math.min((1L << i) / 1000.0, getMaxMillis());
+			}
+		}
+		return getMaxMillis();
+	}
+
+	/**
+	 * Remove all recorded latencies.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		errors.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	/**
+	 * Add the latencies recorded by another histogram to this one.
+	 *
+	 * @param other The other histogram.
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			buckets.addAndGet(i, other.buckets.get(i));
+		}
+		count.addAndGet(other.count.get());
+		errors.addAndGet(other.errors.get());
+		totalNanos.addAndGet(other.totalNanos.get());
+		long max = maxNanos.get();
+		long otherMax = other.maxNanos.get();
+		while (otherMax > max && !maxNanos.compareAndSet(max, otherMax))
+		{
+			max = maxNanos.get();
+		}
+	}
+}
@@ -41,51 +41,69 @@
 
 package com.midori.confluence.plugin.mail2news;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.File;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.mail.Address;
 import javax.mail.AuthenticationFailedException;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.FolderNotFoundException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Multipart;
-import javax.mail.Part;
 import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.Transport;
+import javax.mail.UIDFolder;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MailDateFormat;
 import javax.mail.internet.MimeMessage;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.quartz.InterruptableJob;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.pages.AbstractPage;
 import com.atlassian.confluence.pages.Attachment;
 import com.atlassian.confluence.pages.AttachmentManager;
 import com.atlassian.confluence.pages.BlogPost;
+import com.atlassian.confluence.pages.Comment;
+import com.atlassian.confluence.pages.CommentManager;
 import com.atlassian.confluence.pages.PageManager;
+import com.atlassian.confluence.pages.thumbnail.ThumbnailManager;
+import com.atlassian.confluence.security.ContentPermission;
+import com.atlassian.confluence.security.SpacePermission;
+import com.atlassian.confluence.security.SpacePermissionManager;
 import com.atlassian.confluence.spaces.Space;
 import com.atlassian.confluence.spaces.SpaceManager;
 import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
 import com.atlassian.confluence.user.UserAccessor;
 import com.atlassian.confluence.util.GeneralUtil;
+import com.atlassian.event.api.EventPublisher;
 import com.atlassian.mail.MailFactory;
 import com.atlassian.mail.server.SMTPMailServer;
 import com.atlassian.quartz.jobs.AbstractJob;
@@ -95,15 +113,30 @@ import com.atlassian.spring.container.ContainerManager;
 import com.atlassian.user.User;
 import com.atlassian.user.search.SearchResult;
 import com.atlassian.user.search.page.Pager;
+import com.sun.mail.pop3.POP3Folder;
 
-public class Mail2NewsJob extends AbstractJob {
+public class Mail2NewsJob extends AbstractJob implements InterruptableJob {
 	protected final Logger log = Logger.getLogger(this.getClass());
 
+	/**
+	 * The maximum time to wait for the thumbnails at the end of a run, in milliseconds.
+	 */
+	private static final long RENDITION_TIMEOUT = 10 * 60 * 1000L;
+
+	/**
+	 * The number of Message-IDs of the References header looked up for a reply.
+	 */
+	private static final int MAX_REFERENCES = 20;
+
 	private AttachmentManager attachmentManager;
+	private CommentManager commentManager;
 	private PageManager pageManager;
 	private SpaceManager spaceManager;
 	private TransactionTemplate transactionTemplate;
 	private UserAccessor userAccessor;
+	private ThumbnailManager thumbnailManager;
+	private SpacePermissionManager spacePermissionManager;
+	private EventPublisher eventPublisher;
 
 	/**
 	 * The configuration manager of this plugin which contains
@@ -121,19 +154,140 @@ public class Mail2NewsJob extends AbstractJob {
 	/**
 	 * A list of attachments, used when examining a new message
 	 */
-	private LinkedList attachments;
+	private LinkedList<Attachment> attachments;
 	/**
 	 * A list of input streams for the attachments.
 	 */
-	private LinkedList attachmentsInputStreams;
+	private LinkedList<InputStream> attachmentsInputStreams;
+
+	/**
+	 * The SHA-256 hashes of the content of the attachments.
+	 */
+	private Map<Attachment, String> attachmentsHashes;
+
+	/**
+	 * Saves the attachments of the blog posts created by the current run.
+	 */
+	private AttachmentSaver attachmentSaver;
+
+	/**
+	 * The index of all attachments saved by this plugin, mapping the hash of
+	 * their content to their id. Used to store identical attachments (e.g.
+	 * logos in signatures) only once.
+	 */
+	private BandanaIndex attachmentIndex;
+
+	/**
+	 * The messages which failed because of a temporary problem, created
+	 * when the job runs for the first time.
+	 */
+	private RetryQueue retryQueue;
+
+	/**
+	 * The journal of the state of every message, created when the job runs
+	 * for the first time.
+	 */
+	private IngestionJournal journal;
+
+	/**
+	 * The index of the published messages, mapping the space and the
+	 * Message-ID to the blog post, so replies can be added as comments.
+	 * Created when the job runs for the first time.
+	 */
+	private BandanaIndex threadIndex;
+
+	/**
+	 * Recognizes the messages which are discarded by their headers,
+	 * created for every run from the configuration.
+	 */
+	private MessageFilter messageFilter;
+
+	/**
+	 * Decides whether a sender may post to a space, created when the job
+	 * runs for the first time and kept, so its decisions are reused.
+	 */
+	private SenderAuthorizer senderAuthorizer;
+
+	/**
+	 * The messages waiting to be published as a digest, created when the job
+	 * runs for the first time.
+	 */
+	private DigestStore digestStore;
+
+	/**
+	 * The key of the current message in the journal, null if it is not journaled.
+	 */
+	private String journalKey;
+
+	/**
+	 * The cluster lock service of confluence, null if not available.
+	 */
+	private ClusterLockService clusterLockService;
+
+	/**
+	 * The lease of the mailbox, so only one node of a cluster polls it.
+	 * Created when the job runs for the first time.
+	 */
+	private MailboxLease mailboxLease;
+
+	/**
+	 * Whether an error message is sent back to the sender of an invalid message.
+	 */
+	private boolean sendErrorMessages = true;
+
+	/**
+	 * Whether the messages are imported from an archive instead of being
+	 * received now.
+	 */
+	private boolean importing;
+
+	/**
+	 * When the blog post of the current message was saved, in milliseconds.
+	 */
+	private long blogPostSaved;
 
 	/**
 	 * A flag indicating whether the current post contains an image
 	 */
 	private boolean containsImage;
 
+	/**
+	 * The statistics of this plugin, published in JMX.
+	 */
+	private final IngestionStats stats = IngestionStats.getInstance();
+
+	/**
+	 * The statistics of the current run.
+	 */
+	private RunStatistics run;
+
+	/**
+	 * The reason why the current run was aborted (by the watchdog or
+	 * the scheduler), null as long as the run is not aborted.
+	 */
+	private volatile String abortReason;
+
+	/**
+	 * The mail store of the current run, null if the job is not connected.
+	 */
+	private volatile Store currentStore;
+
 	public Mail2NewsJob() {
 		this.configurationManager = new ConfigurationManager();
+		this.attachmentIndex = new BandanaIndex("attachment");
+	}
+
+	/**
+	 * Create a job using the given configuration and attachment index instead
+	 * of the ones stored in confluence, e.g. for running the job outside of
+	 * confluence. The managers still have to be set.
+	 *
+	 * @param configurationManager The configuration of the job.
+	 * @param attachmentIndex The index of the saved attachments.
+	 */
+	public Mail2NewsJob(ConfigurationManager configurationManager, BandanaIndex attachmentIndex) {
+		this.configurationManager = configurationManager;
+		this.attachmentIndex = attachmentIndex;
 	}
 
 	public void setPageManager(PageManager pageManager) {
@@ -148,6 +302,10 @@ public class Mail2NewsJob extends AbstractJob {
 		this.attachmentManager = attachmentManager;
 	}
 
+	public void setCommentManager(CommentManager commentManager) {
+		this.commentManager = commentManager;
+	}
+
 	public void setUserAccessor(UserAccessor userAccessor) {
 		this.userAccessor = userAccessor;
 	}
@@ -156,6 +314,67 @@ public class Mail2NewsJob extends AbstractJob {
 		this.transactionTemplate = transactionTemplate;
 	}
 
+	public void setClusterLockService(ClusterLockService clusterLockService) {
+		this.clusterLockService = clusterLockService;
+	}
+
+	public void setThumbnailManager(ThumbnailManager thumbnailManager) {
+		this.thumbnailManager = thumbnailManager;
+	}
+
+	public void setSpacePermissionManager(SpacePermissionManager spacePermissionManager) {
+		this.spacePermissionManager = spacePermissionManager;
+	}
+
+	public void setEventPublisher(EventPublisher eventPublisher) {
+		this.eventPublisher = eventPublisher;
+	}
+
+	/**
+	 * Set the queue of the messages to retry, instead of the one in the shared home.
+	 *
+	 * @param retryQueue The retry queue.
+	 */
+	public void setRetryQueue(RetryQueue retryQueue) {
+		this.retryQueue = retryQueue;
+	}
+
+	/**
+	 * Set the journal of the messages, instead of the one in the shared home.
+	 *
+	 * @param journal The journal.
+	 */
+	public void setJournal(IngestionJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Set the index of the published messages, instead of the one in bandana.
+	 *
+	 * @param threadIndex The index.
+	 */
+	public void setThreadIndex(BandanaIndex threadIndex) {
+		this.threadIndex = threadIndex;
+	}
+
+	/**
+	 * Set the staging area of the digests, instead of the one in the shared home.
+	 *
+	 * @param digestStore The staging area.
+	 */
+	public void setDigestStore(DigestStore digestStore) {
+		this.digestStore = digestStore;
+	}
+
+	/**
+	 * Set the lease of the mailbox, instead of the one stored in confluence.
+	 *
+	 * @param mailboxLease The lease.
+	 */
+	public void setMailboxLease(MailboxLease mailboxLease) {
+		this.mailboxLease = mailboxLease;
+	}
+
 	/**
 	 * The main method of this job. Called by confluence every time the mail2news trigger
 	 * fires.
@@ -163,20 +382,177 @@ public class Mail2NewsJob extends AbstractJob {
 	 * @see com.atlassian.quartz.jobs.AbstractJob#doExecute(org.quartz.JobExecutionContext)
 	 */
 	public void doExecute(final JobExecutionContext jobExecutionContext) throws JobExecutionException {
-		transactionTemplate.execute(new TransactionCallback<Void>() {
-			public Void doInTransaction() {
-				try {
-					doExecuteInTransaction(jobExecutionContext);
-				} catch(JobExecutionException ex) {
-					log.error(String.format("Failed to execute job <%s>", jobExecutionContext.getJobDetail().getName()), ex);
-				}
+		MailConfiguration config = configurationManager.getMailConfiguration();
 
-				return null;
+		/* the job fires on every node of a cluster, but only one may poll the mailbox */
+		if (mailboxLease == null)
+		{
+			mailboxLease = new MailboxLease(new BandanaIndex("lease"), clusterLockService, transactionTemplate);
+		}
+		if (config != null)
+		{
+			String owner = mailboxLease.acquire(this, config.getUsername() + "@" + config.getServer(), config.getLeaseTime());
+			if (owner != null)
+			{
+				this.log.info("The mailbox is polled by " + owner + ", skipping this run.");
+				stats.runSkipped();
+				return;
 			}
-		});
+		}
+
+		abortReason = null;
+		run = stats.startRun();
+
+		/* start the watchdog which aborts this run if it takes too long */
+		RunWatchdog watchdog = new RunWatchdog(this, (config != null) ? config.getMaxRunTime() : 0);
+
+		attachmentSaver = new AttachmentSaver(attachmentManager);
+
+		messageFilter = (config != null) ? createMessageFilter(config) : new MessageFilter(false, false, null);
+		if (config != null)
+		{
+			updateSenderAuthorizer(config);
+		}
+
+		/* generate the thumbnails shown by the gallery macro right after saving the images */
+		RenditionGenerator renditionGenerator = null;
+		if (config != null && config.getGallerymacro() && config.getRenditions() && thumbnailManager != null)
+		{
+			renditionGenerator = new RenditionGenerator(thumbnailManager, attachmentManager, transactionTemplate, config.getRenditionThreads(), config.getRenditionMemory());
+			attachmentSaver.setRenditionGenerator(renditionGenerator);
+		}
+
+		if (retryQueue == null)
+		{
+			retryQueue = new RetryQueue();
+		}
+		if (journal == null)
+		{
+			journal = new IngestionJournal();
+		}
+		if (digestStore == null)
+		{
+			digestStore = new DigestStore();
+		}
+		if (threadIndex == null)
+		{
+			threadIndex = new BandanaIndex("thread");
+		}
+
+		try {
+			/* there is no transaction around the whole run, every blog post and every
+			 * attachment is saved in a transaction of its own */
+			retryMessages();
+			publishDigests();
+			doExecuteJob(jobExecutionContext);
+		} catch(JobExecutionException ex) {
+			log.error(String.format("Failed to execute job <%s>", jobExecutionContext.getJobDetail().getName()), ex);
+			run.setProblem(ex.getMessage());
+		} finally {
+			if (renditionGenerator != null)
+			{
+				renditionGenerator.shutdown(RENDITION_TIMEOUT);
+			}
+			watchdog.cancel();
+			/* the journal, the retry queue and the digests are in the shared home, they
+			 * must not be written any more once another node may take the lease */
+			journal.compact();
+			journalKey = null;
+			stats.setRetryQueue(retryQueue.size(), retryQueue.getDeadLetterCount());
+			mailboxLease.release();
+			if (abortReason != null)
+			{
+				run.setProblem(abortReason);
+			}
+			stats.runFinished(run);
+			IngestionTrace.end();
+			currentStore = null;
+		}
+	}
+
+	/**
+	 * Called by the scheduler to cancel a running job (e.g. from the
+	 * scheduler administration). The messages handled so far are kept,
+	 * the remaining ones are left in the mailbox for the next run.
+	 *
+	 * @see org.quartz.InterruptableJob#interrupt()
+	 */
+	public void interrupt() {
+		log.info("Mail2news job interrupted by the scheduler.");
+		abort("Interrupted by the scheduler.");
+	}
+
+	/**
+	 * Abort the current run. The run stops before handling the next message,
+	 * so the messages handled so far are moved and expunged properly. The
+	 * thread of the run is not interrupted, as an interrupt during a write
+	 * to the filestore (ClosedByInterruptException) could leave an attachment
+	 * half-written. A read from the server is ended by the read timeout.
+	 * If the run is still blocked after twice the read timeout (e.g. waiting
+	 * for a hung server), the mail store is closed to unblock it. Messages
+	 * which were already moved are flagged as DELETED on the server in this
+	 * case and will be skipped by the next run.
+	 *
+	 * @param reason The reason why the run is aborted.
+	 */
+	void abort(String reason) {
+		if (abortReason != null)
+		{
+			/* already aborted */
+			return;
+		}
+		abortReason = reason;
+
+		final Store s = currentStore;
+		if (s != null)
+		{
+			final long grace = configurationManager.getMailConfiguration().getTimeout() * 2000L;
+			/* closing may block itself if the server hangs, so do it in a separate thread */
+			Thread closer = new Thread("mail2news-abort") {
+				public void run() {
+					try {
+						Thread.sleep(grace);
+						if (currentStore == s)
+						{
+							log.warn("Mail2news job did not stop within " + (grace / 1000) + " seconds, closing the mail store.");
+							s.close();
+						}
+					} catch (Exception e) {
+						log.debug("Could not close mail store while aborting: " + e.getMessage());
+					}
+				}
+			};
+			closer.setDaemon(true);
+			closer.start();
+		}
+	}
+
+	/**
+	 * Get the reason why the current run was aborted.
+	 *
+	 * @return Returns the reason, null if the run was not aborted.
+	 */
+	String getAbortReason() {
+		return abortReason;
+	}
+
+	/**
+	 * Check whether the current run was aborted. Called before handling each
+	 * message, so that an aborted run stops at a message boundary and the
+	 * messages handled so far are moved and expunged properly.
+	 *
+	 * @return Returns true if the run was aborted.
+	 */
+	private boolean isAborted() {
+		if (abortReason != null)
+		{
+			this.log.warn("Aborting mail2news job: " + abortReason + " Remaining messages are left for the next run.");
+			return true;
+		}
+		return false;
 	}
 
-	private void doExecuteInTransaction(JobExecutionContext jobExecutionContext)
+	private void doExecuteJob(JobExecutionContext jobExecutionContext)
 			throws JobExecutionException {
 
 		/* The mailstore object used to connect to the server */
@@ -232,6 +608,11 @@ public class Mail2NewsJob extends AbstractJob {
 			/* set connection timeout (10 seconds) */
 			prop.setProperty(propertyPrefix.concat("connectiontimeout"), "10000");
 
+			/* set read and write timeout, so a stalled connection cannot hang the job */
+			String timeout = "" + (config.getTimeout() * 1000);
+			prop.setProperty(propertyPrefix.concat("timeout"), timeout);
+			prop.setProperty(propertyPrefix.concat("writetimeout"), timeout);
+
 			/* get the session for connecting to the mail server */
 			Session session = Session.getInstance(prop, null);
 
@@ -244,6 +625,7 @@ public class Mail2NewsJob extends AbstractJob {
 			{
 				store = session.getStore(protocol);
 			}
+			currentStore = store;
 
 			/* get the host and credentials for the mail server from the configuration */
 			String host = config.getServer();
@@ -257,6 +639,7 @@ public class Mail2NewsJob extends AbstractJob {
 			}
 
 			/* connect to the mailstore */
+			long connectStart = stats.start();
 			try {
 				store.connect(host, username, password);
 			}
@@ -295,6 +678,7 @@ public class Mail2NewsJob extends AbstractJob {
 			{
 				throw new Exception("Could not open INBOX folder: " + e.getMessage(), e);
 			}
+			stats.record(IngestionStage.CONNECT, connectStart);
 
 			/* here we have to split, because IMAP will be handled differently from POP3 */
 			if (config.getProtocol().toLowerCase().equals("imap"))
@@ -416,10 +800,36 @@ public class Mail2NewsJob extends AbstractJob {
 				/* get all messages in the INBOX */
 				Message message[] = folderInbox.getMessages();
 
+				/* get the UIDs of all messages at once, they are the keys in the journal,
+				 * the envelopes, the recipients are needed for scheduling, and the
+				 * headers read by the filter, so no message is downloaded before it passed */
+				FetchProfile fetchProfile = new FetchProfile();
+				fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+				fetchProfile.add(FetchProfile.Item.ENVELOPE);
+				for (String header : messageFilter.getHeaderNames())
+				{
+					fetchProfile.add(header);
+				}
+				folderInbox.fetch(message, fetchProfile);
+
 				/* go through all messages and get the unseen ones (all should be unseen,
 				 * as the seen ones get moved to a different folder
 				 */
-				for (int i = 0; i < message.length; i++) {
+				for (int i : schedule(message, config)) {
+
+					if (isAborted())
+					{
+						break;
+					}
+
+					IngestionTrace.begin(message[i].getMessageNumber(), message[i].getSize());
+					journalKey = getJournalKey(message[i]);
+
+					if (message[i].isSet(Flags.Flag.DELETED)) {
+						/* this message was already moved by an aborted run, but not expunged */
+						journal.disposed(journalKey);
+						continue;
+					}
 
 					if (message[i].isSet(Flags.Flag.SEEN)) {
 						/* this message has been seen, should not happen */
@@ -427,71 +837,57 @@ public class Mail2NewsJob extends AbstractJob {
 						sendErrorMessage(message[i], "This message has already been flagged as seen before being handled and was thus ignored.");
 						/* move this message to the invalid folder */
 						moveMessage(message[i], folderInbox, folderInvalid);
+						journal.disposed(journalKey);
 						/* skip this message */
 						continue;
 					}
 
-					Space space = null;
-					try {
-						space = getSpaceFromAddress(message[i]);
-					}
-					catch (Exception e)
+					if (isPosted(journalKey))
 					{
-						this.log.error("Could not get space from message: " + e.getMessage());
-						/* send email to the sender */
-						sendErrorMessage(message[i], "Could not get space from message: " + e.getMessage());
-						/* move this message to the invalid folder */
-						moveMessage(message[i], folderInbox, folderInvalid);
-						/* skip this message */
+						/* posted by an interrupted run, only the disposition is missing */
+						moveMessage(message[i], folderInbox, folderProcessed);
+						journal.disposed(journalKey);
 						continue;
 					}
 
-					/* initialise content and attachments */
-					blogEntryContent = null;
-					attachments = new LinkedList();
-					attachmentsInputStreams = new LinkedList();
-
-					containsImage = false;
-
-					/* get the content of this message */
+					journal.fetched(journalKey);
+					boolean published;
 					try {
-						Object content = message[i].getContent();
-						if (content instanceof Multipart) {
-							handleMultipart((Multipart)content);
-						} else {
-							handlePart(message[i]);
-						}
+						published = processMessage(message[i], null);
 					}
 					catch (Exception e)
 					{
-						this.log.error("Error while getting content of message: " + e.getMessage(), e);
-						/* send email to the sender */
-						sendErrorMessage(message[i], "Error while getting content of message: " + e.getMessage());
-						/* move this message to the invalid folder */
-						moveMessage(message[i], folderInbox, folderInvalid);
-						/* skip this message */
+						if (queueForRetry(message[i], e))
+						{
+							/* the retry queue has a copy, keep the original in the processed folder */
+							moveMessage(message[i], folderInbox, folderProcessed);
+							journal.disposed(journalKey);
+						}
+						else
+						{
+							/* leave it in the INBOX for the next run */
+							message[i].setFlag(Flags.Flag.SEEN, false);
+						}
 						continue;
 					}
 
-					try {
-						createBlogPost(space, message[i]);
+					if (published)
+					{
+						/* move the message to the processed folder */
+						moveMessage(message[i], folderInbox, folderProcessed);
 					}
-					catch (MessagingException me)
+					else
 					{
-						this.log.error("Error while creating blog post: " + me.getMessage(), me);
-						/* send email to sender */
-						sendErrorMessage(message[i], "Error while creating blog post: " + me.getMessage());
 						/* move this message to the invalid folder */
 						moveMessage(message[i], folderInbox, folderInvalid);
-						/* skip this message */
-						continue;
 					}
-
-					/* move the message to the processed folder */
-					moveMessage(message[i], folderInbox, folderProcessed);
+					journal.disposed(journalKey);
 
 				}
 
+				/* remember what is left for the next run */
+				recordBacklog(message);
+
 				/* close the folders, expunging deleted messages in the process */
 				folderInbox.close(true);
 				folderProcessed.close(true);
@@ -505,77 +901,61 @@ public class Mail2NewsJob extends AbstractJob {
 				/* get all messages in this POP3 account */
 				Message message[] = folderInbox.getMessages();
 
-				/* go through all messages */
-				for (int i = 0; i < message.length; i++) {
-
-					Space space = null;
-					try {
-						space = getSpaceFromAddress(message[i]);
-					}
-					catch (Exception e)
-					{
-						this.log.error("Could not get space from message: " + e.getMessage());
-						/* send email to the sender */
-						sendErrorMessage(message[i], "Could not get space from message: " + e.getMessage());
-						/* delete this message */
-						message[i].setFlag(Flags.Flag.DELETED, true);
-						/* get the next message, this message will be deleted when
-						 * closing the folder */
-						continue;
-					}
+				/* the messages are only deleted when closing the folder, so they
+				 * are disposed in the journal afterwards */
+				List<String> deleted = new ArrayList<String>();
 
-					/* initialise content and attachments */
-					blogEntryContent = null;
-					attachments = new LinkedList();
-					attachmentsInputStreams = new LinkedList();
+				/* get the headers of all messages, the recipients are needed for scheduling */
+				FetchProfile fetchProfile = new FetchProfile();
+				fetchProfile.add(FetchProfile.Item.ENVELOPE);
+				folderInbox.fetch(message, fetchProfile);
 
-					containsImage = false;
+				/* go through all messages */
+				for (int i : schedule(message, config)) {
 
-					/* get the content of this message */
-					try {
-						Object content = message[i].getContent();
-						if (content instanceof Multipart) {
-							handleMultipart((Multipart)content);
-						} else {
-							handlePart(message[i]);
-						}
-					}
-					catch (Exception e)
+					if (isAborted())
 					{
-						this.log.error("Error while getting content of message: " + e.getMessage(), e);
-						/* send email to the sender */
-						sendErrorMessage(message[i], "Error while getting content of message: " + e.getMessage());
-						/* delete this message */
-						message[i].setFlag(Flags.Flag.DELETED, true);
-						/* get the next message, this message will be deleted when
-						 * closing the folder */
-						continue;
+						break;
 					}
 
-					try {
-						createBlogPost(space, message[i]);
-					}
-					catch (MessagingException me)
+					IngestionTrace.begin(message[i].getMessageNumber(), message[i].getSize());
+					journalKey = getJournalKey(message[i]);
+
+					if (!isPosted(journalKey))
 					{
-						this.log.error("Error while creating blog post: " + me.getMessage(), me);
-						/* send email to the sender */
-						sendErrorMessage(message[i], "Error while creating blog post: " + me.getMessage());
-						/* delete this message */
-						message[i].setFlag(Flags.Flag.DELETED, true);
-						/* get the next message, this message will be deleted when
-						 * closing the folder */
-						continue;
+						journal.fetched(journalKey);
+						try {
+							processMessage(message[i], null);
+						}
+						catch (Exception e)
+						{
+							if (!queueForRetry(message[i], e))
+							{
+								/* leave it on the server for the next run */
+								continue;
+							}
+						}
 					}
 
 					/* finished processing this message, delete it */
+					long dispositionStart = stats.start();
 					message[i].setFlag(Flags.Flag.DELETED, true);
+					stats.record(IngestionStage.DISPOSITION, dispositionStart);
+					deleted.add(journalKey);
 					/* get the next message, this message will be deleted when
 					 * closing the folder */
 
 				}
 
+				/* remember what is left for the next run */
+				recordBacklog(message);
+
 				/* close the pop3 folder, deleting all messages flagged as DELETED */
 				folderInbox.close(true);
+				for (String key : deleted)
+				{
+					journal.disposed(key);
+				}
 				/* close the mail store */
 				store.close();
 
@@ -604,34 +984,1483 @@ public class Mail2NewsJob extends AbstractJob {
 	}
 
 	/**
-	 * Send an mail containing the error message back to the
-	 * user which sent the given message.
+	 * Get the order in which the messages are handled in this run, taking
+	 * turns between the spaces. Messages already deleted are handled first.
 	 *
-	 * @param m The message which produced an error while handling it.
-	 * @param error The error string.
+	 * @param messages All messages of the INBOX.
+	 * @param config The configuration with the weights and limits of the spaces.
+	 * @return Returns the indexes of the messages to handle in this run.
+	 * @throws MessagingException
 	 */
-	private void sendErrorMessage(Message m, String error) throws Exception // FIXME this method should use the higher level email sending facilities in confluence instead of this low level approach
+	private List<Integer> schedule(Message[] messages, MailConfiguration config) throws MessagingException
 	{
-		/* get the SMTP mail server */
-		SMTPMailServer smtpMailServer = MailFactory.getServerManager().getDefaultSMTPMailServer();
-		if(smtpMailServer == null) {
-			log.warn("Failed to send error message as no SMTP server is configured");
-			return;
+		SpaceScheduler<Integer> scheduler = new SpaceScheduler<Integer>(config.getSpaceWeights(), config.getMaxMessagesPerSpace());
+		for (int i = 0; i < messages.length; i++)
+		{
+			String spaceKey = null;
+			if (!messages[i].isSet(Flags.Flag.DELETED))
+			{
+				spaceKey = getScheduledSpaceKey(messages[i]);
+			}
+			scheduler.add(spaceKey, new Integer(i));
 		}
+		List<Integer> order = scheduler.drain();
+		if (scheduler.getDeferred() > 0)
+		{
+			stats.messagesDeferred(scheduler.getDeferred());
+		}
+		return order;
+	}
 
-		if(smtpMailServer.getHostname() == null) {
+	/**
+	 * Guess the space of a message from its recipients without looking it
+	 * up, like getSpacesFromAddress: the first "+spacekey", otherwise the
+	 * local part of the first address.
+	 *
+	 * @param message The message.
+	 * @return Returns the space key, null if the message has no recipients.
+	 */
+	private String getScheduledSpaceKey(Message message)
+	{
+		try {
+			String fallback = null;
+			Message.RecipientType[] types = { Message.RecipientType.TO, Message.RecipientType.CC };
+			for (int t = 0; t < types.length; t++)
+			{
+				Address[] recipients = message.getRecipients(types[t]);
+				for (int i = 0; recipients != null && i < recipients.length; i++)
+				{
+					String emailAddress = (recipients[i] instanceof InternetAddress) ? ((InternetAddress)recipients[i]).getAddress() : recipients[i].toString();
+					if (emailAddress == null)
+					{
+						continue;
+					}
+					String spaceKey = getSpaceKey(emailAddress);
+					if (spaceKey != null)
+					{
+						return spaceKey;
+					}
+					if (fallback == null && emailAddress.indexOf('@') != -1)
+					{
+						fallback = emailAddress.substring(0, emailAddress.indexOf('@'));
+					}
+				}
+			}
+			return fallback;
+		} catch (MessagingException e) {
+			/* the message is rejected later on */
+			return null;
+		}
+	}
+
+	/**
+	 * Record the number of messages left in the INBOX after this run and the
+	 * date of the oldest one, for the status page.
+	 *
+	 * @param messages All messages of the INBOX.
+	 */
+	private void recordBacklog(Message[] messages)
+	{
+		try {
+			int backlog = 0;
+			Date oldest = null;
+			for (int i = 0; i < messages.length; i++)
+			{
+				if (messages[i].isSet(Flags.Flag.DELETED))
+				{
+					/* handled by this run */
+					continue;
+				}
+				backlog++;
+				Date d = messages[i].getReceivedDate();
+				if (d == null)
+				{
+					d = messages[i].getSentDate();
+				}
+				if (d != null && (oldest == null || d.before(oldest)))
+				{
+					oldest = d;
+				}
+			}
+			run.setBacklog(backlog, oldest);
+		} catch (Exception e) {
+			/* only used for the status page */
+			this.log.debug("Could not get the messages left in the INBOX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Handle a single message: get the space from the recipient address, get the
+	 * content of the message and publish it as a blog post. If the message cannot
+	 * be published, an error message is sent back to the sender. If posting to
+	 * all spaces is enabled, the message is parsed once and posted to every
+	 * space it is addressed to.
+	 *
+	 * @param message The message to handle.
+	 * @param parsed The content of the message if it was already parsed, null to parse it here.
+	 * @return Returns true if the message was published, false if it is invalid.
+	 */
+	private boolean processMessage(final Message message, MessageParser parsed) throws Exception
+	{
+		int size = message.getSize();
+		blogPostSaved = 0;
+
+		/* auto-generated and bulk mail is discarded by its headers, without downloading or answering it */
+		String filtered = messageFilter.match(message);
+		if (filtered != null)
+		{
+			this.log.info("Discarding message because of " + filtered + ".");
+			stats.messageFiltered();
+			return false;
+		}
+
+		final boolean allSpaces = configurationManager.getMailConfiguration().getPostToAllSpaces();
+		boolean replyAsComment = configurationManager.getMailConfiguration().getReplyAsComment();
+
+		List<Space> spaces = null;
+		long stageStart = stats.start();
+		try {
+			spaces = executeInTransaction(new Callable<List<Space>>() {
+				public List<Space> call() throws Exception {
+					return getSpacesFromAddress(message, allSpaces);
+				}
+			});
+			IngestionTrace.setSpaceKey(getSpaceKeys(spaces));
+			stats.record(IngestionStage.SPACE_RESOLVE, stageStart);
+		}
+		catch (Exception e)
+		{
+			stats.record(IngestionStage.SPACE_RESOLVE, stageStart, false);
+			if (e instanceof RuntimeException)
+			{
+				/* a problem of confluence, not of the message */
+				throw e;
+			}
+			stats.messageProcessed(size, false);
+			this.log.error("Could not get space from message: " + e.getMessage());
+			/* send email to the sender */
+			sendErrorMessage(message, "Could not get space from message: " + e.getMessage());
+			return false;
+		}
+
+		/* the sender has to be allowed to add blog posts to the spaces, this is
+		 * decided by the headers, before the content is downloaded */
+		if (!configurationManager.getMailConfiguration().getPublishWithoutPermission())
+		{
+			List<Space> denied;
+			stageStart = stats.start();
+			try {
+				denied = getUnauthorizedSpaces(message, spaces);
+				stats.record(IngestionStage.AUTHORIZE, stageStart);
+			}
+			catch (Exception e)
+			{
+				stats.record(IngestionStage.AUTHORIZE, stageStart, false);
+				if (e instanceof RuntimeException)
+				{
+					/* a problem of confluence, not of the message */
+					throw e;
+				}
+				stats.messageProcessed(size, false);
+				this.log.error("Could not check the permissions of the sender: " + e.getMessage());
+				sendErrorMessage(message, "Could not check the permissions of the sender: " + e.getMessage());
+				return false;
+			}
+			if (!denied.isEmpty())
+			{
+				spaces.removeAll(denied);
+				this.log.warn("The sender may not add blog posts to space(s) " + getSpaceKeys(denied) + ".");
+				if (spaces.isEmpty())
+				{
+					stats.messageUnauthorized();
+					stats.messageProcessed(size, false);
+					/* send email to the sender */
+					sendErrorMessage(message, "You are not allowed to add news to space(s) " + getSpaceKeys(denied) + ".");
+					return false;
+				}
+			}
+		}
+
+		/* the messages of digest spaces and senders are published later on,
+		 * imported messages are old and published right away */
+		if (!importing)
+		{
+			spaces = stageForDigest(message, spaces);
+		}
+		if (spaces.isEmpty())
+		{
+			stats.messageProcessed(size, true);
+			return true;
+		}
+
+		/* get the content of this message */
+		long fetched = System.currentTimeMillis();
+		IngestionStage stage = IngestionStage.FETCH;
+		stageStart = stats.start();
+		MessageParser parser = parsed;
+		try {
+			if (parser == null)
+			{
+				parser = createParser();
+				Message source = getJournalCopy(message);
+				Object content = source.getContent();
+				stats.record(stage, stageStart);
+
+				stage = IngestionStage.PARSE;
+				stageStart = stats.start();
+				parser.parse(source, content);
+				stats.record(stage, stageStart);
+			}
+		}
+		catch (MessageLimitException mle)
+		{
+			if (parser != null)
+			{
+				parser.dispose();
+			}
+			stats.record(stage, stageStart, false);
+			stats.messageProcessed(size, false);
+			this.log.warn("Rejecting message: " + mle.getMessage());
+			/* send email to the sender */
+			sendErrorMessage(message, "The message is too large or too complex to be published. " + mle.getMessage());
+			return false;
+		}
+		catch (Exception e)
+		{
+			if (parser != null)
+			{
+				parser.dispose();
+			}
+			stats.record(stage, stageStart, false);
+			stats.messageProcessed(size, false);
+			this.log.error("Error while getting content of message: " + e.getMessage(), e);
+			/* send email to the sender */
+			sendErrorMessage(message, "Error while getting content of message: " + e.getMessage());
+			return false;
+		}
+
+		/* the blog posts share the parsed content, each gets its own attachments */
+		String messageKey = journalKey;
+		boolean posted = false;
+		long contentId = 0;
+		try {
+			for (int i = 0; i < spaces.size(); i++)
+			{
+				Space space = spaces.get(i);
+				if (spaces.size() > 1)
+				{
+					/* each space has its own journal entry, so an interrupted run only posts to the remaining spaces */
+					journalKey = (messageKey != null) ? messageKey + "/" + space.getKey() : null;
+					if (isPosted(journalKey))
+					{
+						posted = true;
+						continue;
+					}
+				}
+				if (i > 0)
+				{
+					parser.rewind();
+				}
+
+				/* the content and attachments of the blog post */
+				blogEntryContent = parser.getContent();
+				attachments = parser.getAttachments();
+				attachmentsInputStreams = parser.getAttachmentsInputStreams();
+				attachmentsHashes = parser.getAttachmentsHashes();
+				containsImage = parser.containsImage();
+				blogPostSaved = 0;
+
+				try {
+					/* a reply to a published message becomes a comment on its blog post */
+					BlogPost parent = replyAsComment ? findParentPost(message, space) : null;
+					if (parent != null && !mayComment(message, space))
+					{
+						/* the sender may still add blog posts to the space */
+						this.log.info("The sender may not comment in space " + space.getKey() + ", the reply is added as a blog post.");
+						parent = null;
+					}
+					long id = (parent != null) ? createComment(parent, space, message) : createBlogPost(space, message);
+					indexMessage(message, space, (parent != null) ? parent.getId() : id);
+					if (contentId == 0)
+					{
+						contentId = id;
+					}
+				}
+				catch (RuntimeException re)
+				{
+					if (blogPostSaved == 0 && !posted)
+					{
+						/* a problem of confluence, not of the message */
+						throw re;
+					}
+					/* do not retry the message, this would publish it twice */
+					this.log.error("Error " + ((blogPostSaved == 0) ? "before" : "after") + " saving blog post in space " + space.getKey() + ": " + re.getMessage(), re);
+					posted = true;
+					continue;
+				}
+				posted = true;
+				if (!importing)
+				{
+					recordLag(message, space, fetched);
+				}
+			}
+		}
+		catch (MessagingException me)
+		{
+			if (!posted)
+			{
+				stats.messageProcessed(size, false);
+				this.log.error("Error while creating blog post: " + me.getMessage(), me);
+				/* send email to the sender */
+				sendErrorMessage(message, "Error while creating blog post: " + me.getMessage());
+				return false;
+			}
+			this.log.error("Error while creating blog post, the message was posted to some of its spaces: " + me.getMessage(), me);
+		}
+		finally
+		{
+			journalKey = messageKey;
+			/* the attachments are saved, release their memory and temporary files */
+			parser.dispose();
+		}
+
+		if (spaces.size() > 1 && messageKey != null)
+		{
+			/* the message is disposed as a whole, the entries of the spaces are not needed any more */
+			journal.posted(messageKey, contentId);
+			for (Space space : spaces)
+			{
+				journal.disposed(messageKey + "/" + space.getKey());
+			}
+		}
+		stats.messageProcessed(size, true);
+		return true;
+	}
+
+	/**
+	 * Remember the blog post of a message, so replies to it can be added
+	 * as comments. Replies are mapped to the blog post of the thread.
+	 *
+	 * @param message The published message.
+	 * @param space The space of the blog post.
+	 * @param blogPostId The id of the blog post.
+	 * @throws MessagingException
+	 */
+	private void indexMessage(Message message, final Space space, final long blogPostId) throws MessagingException
+	{
+		final String[] messageId = message.getHeader("Message-ID");
+		if (messageId == null || messageId.length == 0)
+		{
+			return;
+		}
+		transactionTemplate.execute(new TransactionCallback<Void>() {
+			public Void doInTransaction() {
+				threadIndex.put(getThreadKey(space, messageId[0].trim()), "" + blogPostId);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Find the blog post of the thread a reply belongs to, using its
+	 * In-Reply-To and References headers.
+	 *
+	 * @param message The message.
+	 * @param space The space where the message is published.
+	 * @return Returns the blog post, or null if the message is not a reply
+	 *         to a message published in this space.
+	 * @throws MessagingException
+	 */
+	private BlogPost findParentPost(Message message, final Space space) throws MessagingException
+	{
+		final List<String> parents = getParentMessageIds(message);
+		if (parents.isEmpty())
+		{
+			return null;
+		}
+		return transactionTemplate.execute(new TransactionCallback<BlogPost>() {
+			public BlogPost doInTransaction() {
+				for (String parent : parents)
+				{
+					String key = getThreadKey(space, parent);
+					String contentId = threadIndex.get(key);
+					stats.cacheAccess("ThreadIndex", contentId != null);
+					if (contentId == null)
+					{
+						continue;
+					}
+					ContentEntityObject content = pageManager.getById(Long.parseLong(contentId));
+					if (content instanceof BlogPost && !content.isDeleted())
+					{
+						return (BlogPost) content;
+					}
+					/* the blog post has been deleted in the meantime */
+					threadIndex.remove(key);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Get the Message-IDs of the messages a message replies to: the
+	 * In-Reply-To header first, then the References header from the most
+	 * recent message back to the first one of the thread.
+	 *
+	 * @param message The message.
+	 * @return Returns the Message-IDs, at most MAX_REFERENCES.
+	 * @throws MessagingException
+	 */
+	private static List<String> getParentMessageIds(Message message) throws MessagingException
+	{
+		List<String> ids = new ArrayList<String>();
+		addMessageIds(message.getHeader("In-Reply-To"), ids);
+		List<String> references = new ArrayList<String>();
+		addMessageIds(message.getHeader("References"), references);
+		for (int i = references.size() - 1; i >= 0 && ids.size() < MAX_REFERENCES; i--)
+		{
+			if (!ids.contains(references.get(i)))
+			{
+				ids.add(references.get(i));
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Add the Message-IDs in angle brackets found in headers to a list.
+	 */
+	private static void addMessageIds(String[] headers, List<String> ids)
+	{
+		for (int i = 0; headers != null && i < headers.length; i++)
+		{
+			String header = headers[i];
+			int start = header.indexOf('<');
+			while (start != -1)
+			{
+				int end = header.indexOf('>', start);
+				if (end == -1)
+				{
+					break;
+				}
+				ids.add(header.substring(start, end + 1));
+				start = header.indexOf('<', end);
+			}
+		}
+	}
+
+	/**
+	 * Get the key of a message of a space in the thread index, which may
+	 * be longer than a bandana key.
+	 */
+	private static String getThreadKey(Space space, String messageId)
+	{
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			return MessageParser.toHex(digest.digest((space.getKey() + " " + messageId).getBytes("UTF-8")));
+		} catch (Exception e) {
+			/* MD5 and UTF-8 are always available */
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Add the content of a reply as a comment to the blog post of its
+	 * thread. Comments cannot have attachments, so the attachments are
+	 * saved with the blog post and linked from the comment.
+	 *
+	 * @param blogPost The blog post of the thread.
+	 * @param space The space of the blog post.
+	 * @param m The reply.
+	 * @return Returns the id of the comment.
+	 * @throws MessagingException
+	 */
+	private long createComment(final BlogPost blogPost, Space space, Message m) throws MessagingException
+	{
+		MailConfiguration config = configurationManager.getMailConfiguration();
+		final String spaceKey = space.getKey();
+		String references = "";
+		if (config.getDeduplicate())
+		{
+			references = transactionTemplate.execute(new TransactionCallback<String>() {
+				public String doInTransaction() {
+					return replaceDuplicateAttachments(spaceKey);
+				}
+			});
+		}
+		final String text = (blogEntryContent != null) ? blogEntryContent : "";
+		final String linkedReferences = references;
+		final String creatorEmail = getEmailAddressFromMessage(m);
+		final long blogPostId = blogPost.getId();
+		final boolean deduplicate = config.getDeduplicate();
+		final Date sent = importing ? getSentDate(m) : null;
+
+		/* the comment and its attachments are committed together */
+		final List<Attachment> saved = new LinkedList<Attachment>();
+		Comment comment = transactionTemplate.execute(new TransactionCallback<Comment>() {
+			public Comment doInTransaction() {
+				long start = stats.start();
+				User creator = getUserByEmail(creatorEmail);
+				stats.record(IngestionStage.USER_RESOLVE, start);
+				/* the comment is created by the current user */
+				AuthenticatedUserThreadLocal.setUser(creator);
+
+				/* the blog post was found in another transaction, load it in this one */
+				BlogPost parent = (BlogPost) pageManager.getById(blogPostId);
+
+				/* the attachments are added to the blog post, they must not
+				 * replace its attachments or those of other replies */
+				Set<String> fileNames = new HashSet<String>();
+				for (Attachment existing : attachmentManager.getLatestVersionsOfAttachments(parent))
+				{
+					fileNames.add(existing.getFileName().toLowerCase());
+				}
+				StringBuilder body = new StringBuilder(text);
+				for (Attachment a : attachments)
+				{
+					/* the file name is part of the key of the hashes */
+					String hash = attachmentsHashes.remove(a);
+					a.setFileName(getUniqueFileName(a.getFileName(), fileNames));
+					attachmentsHashes.put(a, hash);
+					body.append("<p><ac:link><ri:attachment ri:filename=\"").append(GeneralUtil.escapeXml(a.getFileName())).append("\"/></ac:link></p>");
+				}
+				body.append(linkedReferences);
+				String content = body.toString();
+
+				start = stats.start();
+				Comment comment = commentManager.addCommentToObject(parent, null, content);
+				if (sent != null)
+				{
+					/* an imported reply is dated when it was sent */
+					comment.setCreationDate(sent);
+				}
+				stats.record(IngestionStage.BLOG_SAVE, start);
+
+				/* the attachments are added to the blog post and linked from the comment */
+				saved.addAll(attachmentSaver.save(parent, creator, attachments, attachmentsInputStreams));
+				if (deduplicate)
+				{
+					indexAttachments(spaceKey, saved);
+				}
+				return comment;
+			}
+		});
+		blogPostSaved = System.currentTimeMillis();
+		/* committed, the message must not be posted again */
+		journal.posted(journalKey, comment.getId());
+		this.log.info("Added reply as comment " + comment.getId() + " to blog post " + blogPostId + ".");
+
+		attachmentSaver.generateRenditions(saved);
+		return comment.getId();
+	}
+
+	/**
+	 * Remember saved attachments, so identical attachments are not saved again.
+	 * Has to be called in the transaction which saved them.
+	 *
+	 * @param spaceKey The key of the space the attachments were saved in.
+	 * @param saved The saved attachments.
+	 */
+	private void indexAttachments(String spaceKey, List<Attachment> saved)
+	{
+		for (Attachment a : saved)
+		{
+			attachmentIndex.put(spaceKey + " " + attachmentsHashes.get(a), "" + a.getId());
+		}
+	}
+
+	/**
+	 * Stage a message for the digest of the spaces which have one, or
+	 * of all its spaces if the sender has a digest.
+	 *
+	 * @param message The message.
+	 * @param spaces The spaces the message is addressed to.
+	 * @return Returns the spaces where the message is published right away.
+	 * @throws MessagingException
+	 */
+	private List<Space> stageForDigest(Message message, List<Space> spaces) throws MessagingException
+	{
+		Set<String> digests = getDigests();
+		if (digests.isEmpty())
+		{
+			return spaces;
+		}
+		boolean sender = message.getFrom() != null && digests.contains(getEmailAddressFromMessage(message).toLowerCase());
+
+		List<Space> remaining = new ArrayList<Space>();
+		for (Space space : spaces)
+		{
+			if (!sender && !digests.contains(space.getKey().toLowerCase()))
+			{
+				remaining.add(space);
+			}
+			else if (digestStore.add(space.getKey(), journalKey, message))
+			{
+				this.log.info("Staged message for the digest of space " + space.getKey() + ".");
+				stats.messageDigested();
+			}
+			else
+			{
+				/* better published alone than not at all */
+				remaining.add(space);
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Get the spaces and senders whose messages are published as a digest.
+	 *
+	 * @return Returns the space keys and sender addresses in lower case.
+	 */
+	private Set<String> getDigests()
+	{
+		Set<String> digests = new HashSet<String>();
+		StringTokenizer tok = new StringTokenizer(configurationManager.getMailConfiguration().getDigests(), ",; \t\n");
+		while (tok.hasMoreTokens())
+		{
+			digests.add(tok.nextToken().toLowerCase());
+		}
+		return digests;
+	}
+
+	/**
+	 * Publish the digests which are due, and those left over by an
+	 * interrupted run. A digest which cannot be published is tried
+	 * again in the next run.
+	 */
+	private void publishDigests()
+	{
+		MailConfiguration config = configurationManager.getMailConfiguration();
+		List<DigestStore.Batch> due = digestStore.getDue(System.currentTimeMillis(), config.getDigestInterval() * 60000L);
+		if (due.isEmpty())
+		{
+			return;
+		}
+
+		Session session = Session.getInstance(new Properties(), null);
+		for (DigestStore.Batch batch : due)
+		{
+			if (isAborted())
+			{
+				break;
+			}
+
+			journalKey = "digest:" + batch.getId();
+			if (isPosted(journalKey))
+			{
+				/* posted by an interrupted run */
+				digestStore.remove(batch);
+				journal.disposed(journalKey);
+				continue;
+			}
+
+			blogPostSaved = 0;
+			try {
+				journal.fetched(journalKey);
+				publishDigest(batch, session);
+				digestStore.remove(batch);
+				journal.disposed(journalKey);
+			}
+			catch (Exception e)
+			{
+				if (blogPostSaved != 0)
+				{
+					/* do not post the digest twice */
+					this.log.error("Error after saving the digest of space " + batch.getSpaceKey() + ": " + e.getMessage(), e);
+					digestStore.remove(batch);
+					journal.disposed(journalKey);
+				}
+				else
+				{
+					this.log.error("Could not publish the digest of space " + batch.getSpaceKey() + ", trying again in the next run: " + e.getMessage(), e);
+				}
+			}
+		}
+		journalKey = null;
+	}
+
+	/**
+	 * Publish the staged messages of a space as one blog post. The content
+	 * of every message is added under its subject, the attachments of all
+	 * messages are attached to the blog post.
+	 *
+	 * @param batch The staged messages.
+	 * @param session The session for loading the messages.
+	 * @throws Exception
+	 */
+	private void publishDigest(DigestStore.Batch batch, Session session) throws Exception
+	{
+		final String spaceKey = batch.getSpaceKey();
+		Space space = executeInTransaction(new Callable<Space>() {
+			public Space call() throws Exception {
+				return spaceManager.getSpace(spaceKey);
+			}
+		});
+		List<File> files = batch.getMessages();
+		if (space == null || files.isEmpty())
+		{
+			this.log.error("Dropping the digest of " + files.size() + " messages, space " + spaceKey + " does not exist any more.");
+			return;
+		}
+
+		StringBuilder content = new StringBuilder();
+		LinkedList<Attachment> digestAttachments = new LinkedList<Attachment>();
+		LinkedList<InputStream> digestInputStreams = new LinkedList<InputStream>();
+		Map<Attachment, String> digestHashes = new IdentityHashMap<Attachment, String>();
+		Set<String> fileNames = new HashSet<String>();
+		boolean digestContainsImage = false;
+		Address from = null;
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+		/* the content of the messages is held until the digest is saved */
+		List<MessageParser> parsers = new ArrayList<MessageParser>();
+		try {
+			for (File file : files)
+			{
+				MimeMessage m = batch.load(file, session);
+				Address[] sender = m.getFrom();
+				if (from == null && sender != null && sender.length > 0)
+				{
+					from = sender[0];
+				}
+				Date sent = getSentDate(m);
+				content.append("<h2>").append(GeneralUtil.escapeXml("" + m.getSubject())).append("</h2>");
+				content.append("<p><em>").append(GeneralUtil.escapeXml((sender != null && sender.length > 0) ? sender[0].toString() : ""));
+				if (sent != null)
+				{
+					content.append(", ").append(dateFormat.format(sent));
+				}
+				content.append("</em></p>");
+
+				try {
+					MessageParser parser = createParser();
+					parsers.add(parser);
+					parser.parse(m, m.getContent());
+					if (parser.getContent() != null)
+					{
+						content.append(parser.getContent());
+					}
+
+					/* the attachments of all messages share the blog post, so their names must be unique */
+					Iterator<InputStream> inputStreams = parser.getAttachmentsInputStreams().iterator();
+					for (Attachment a : parser.getAttachments())
+					{
+						a.setFileName(getUniqueFileName(a.getFileName(), fileNames));
+						digestAttachments.add(a);
+						digestInputStreams.add(inputStreams.next());
+						digestHashes.put(a, parser.getAttachmentsHashes().get(a));
+					}
+					digestContainsImage |= parser.containsImage();
+				}
+				catch (Exception e)
+				{
+					/* one broken message does not hold back the digest */
+					this.log.warn("Could not read message " + file.getName() + " of the digest of space " + spaceKey + ": " + e.getMessage());
+					content.append("<p>The content of this message could not be read: ").append(GeneralUtil.escapeXml("" + e.getMessage())).append("</p>");
+				}
+			}
+
+			/* createBlogPost takes the title and the creator from the message */
+			MimeMessage digest = new MimeMessage(session);
+			digest.setSubject("Digest of " + files.size() + " messages, " + dateFormat.format(new Date()));
+			if (from == null)
+			{
+				/* none of the messages has a sender, the digest is sent by the mailbox */
+				try {
+					from = new InternetAddress(configurationManager.getMailConfiguration().getUsername());
+				} catch (AddressException e) {
+					this.log.debug("The username of the mailbox is not an email address: " + e.getMessage());
+				}
+			}
+			if (from != null)
+			{
+				digest.setFrom(from);
+			}
+
+			blogEntryContent = content.toString();
+			attachments = digestAttachments;
+			attachmentsInputStreams = digestInputStreams;
+			attachmentsHashes = digestHashes;
+			containsImage = digestContainsImage;
+			createBlogPost(space, digest);
+		}
+		finally
+		{
+			for (MessageParser parser : parsers)
+			{
+				parser.dispose();
+			}
+		}
+		stats.digestPublished();
+		this.log.info("Published the digest of " + files.size() + " messages in space " + spaceKey + ".");
+	}
+
+	/**
+	 * Make the name of an attachment unique by adding a number.
+	 *
+	 * @param fileName The name of the attachment.
+	 * @param fileNames The names taken so far, the result is added.
+	 * @return Returns the name, or "name (2).ext", "name (3).ext" etc. if it is taken.
+	 */
+	private static String getUniqueFileName(String fileName, Set<String> fileNames)
+	{
+		String unique = fileName;
+		int dot = fileName.lastIndexOf('.');
+		String base = (dot > 0) ? fileName.substring(0, dot) : fileName;
+		String extension = (dot > 0) ? fileName.substring(dot) : "";
+		for (int i = 2; fileNames.contains(unique.toLowerCase()); i++)
+		{
+			unique = base + " (" + i + ")" + extension;
+		}
+		fileNames.add(unique.toLowerCase());
+		return unique;
+	}
+
+	/**
+	 * Join the keys of spaces for logging.
+	 *
+	 * @param spaces The spaces.
+	 * @return Returns the keys separated by commas.
+	 */
+	private static String getSpaceKeys(List<Space> spaces)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Space space : spaces)
+		{
+			if (sb.length() > 0)
+			{
+				sb.append(',');
+			}
+			sb.append(space.getKey());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the key of a message in the journal: the UID for IMAP and POP3,
+	 * otherwise the Message-ID.
+	 *
+	 * @param message The message.
+	 * @return Returns the key, or null if the message cannot be identified.
+	 */
+	private String getJournalKey(Message message)
+	{
+		try {
+			Folder folder = message.getFolder();
+			if (folder instanceof UIDFolder)
+			{
+				UIDFolder uidFolder = (UIDFolder) folder;
+				return "imap:" + uidFolder.getUIDValidity() + ":" + uidFolder.getUID(message);
+			}
+			if (folder instanceof POP3Folder)
+			{
+				String uid = ((POP3Folder) folder).getUID(message);
+				if (uid != null)
+				{
+					return "pop3:" + uid;
+				}
+			}
+			String[] messageId = message.getHeader("Message-ID");
+			if (messageId != null && messageId.length > 0)
+			{
+				return "id:" + messageId[0];
+			}
+		} catch (MessagingException e) {
+			this.log.warn("Could not identify message for the journal: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Get the copy of a message in the mailbox kept by the journal, which
+	 * is written ahead the first time the message is parsed. A message of
+	 * an interrupted run is replayed from this copy instead of downloading
+	 * it again.
+	 *
+	 * @param message The message in the mailbox.
+	 * @return Returns the copy, or the message itself if it is not in a
+	 *         mailbox or the copy could not be written.
+	 */
+	private Message getJournalCopy(Message message)
+	{
+		if (journalKey == null || message.getFolder() == null)
+		{
+			return message;
+		}
+		Session session = Session.getInstance(new Properties(), null);
+		try {
+			MimeMessage copy = journal.getCopy(journalKey, session);
+			if (copy != null)
+			{
+				this.log.info("Replaying message " + journalKey + " of an interrupted run from the journal.");
+				return copy;
+			}
+			return journal.saveCopy(journalKey, message, session);
+		} catch (Exception e) {
+			/* the message is handled anyway, only the recovery after a crash is affected */
+			this.log.warn("Could not write message " + journalKey + " to the journal: " + e.getMessage());
+			return message;
+		}
+	}
+
+	/**
+	 * Check whether the blog post of a message was already committed by a
+	 * run which was interrupted before the message was disposed. If the run
+	 * was interrupted while posting, look for the blog post in its space.
+	 *
+	 * @param key The key of the message in the journal.
+	 * @return Returns true if the message must not be posted again.
+	 */
+	private boolean isPosted(String key)
+	{
+		final IngestionJournal.Entry entry = journal.get(key);
+		if (entry == null)
+		{
+			return false;
+		}
+		if (entry.getState() == IngestionJournal.State.PARSED)
+		{
+			BlogPost blogPost = transactionTemplate.execute(new TransactionCallback<BlogPost>() {
+				public BlogPost doInTransaction() {
+					return findBlogPost(entry);
+				}
+			});
+			if (blogPost != null)
+			{
+				journal.posted(entry.getKey(), blogPost.getId());
+			}
+		}
+		if (entry.getState() != IngestionJournal.State.POSTED)
+		{
+			return false;
+		}
+		this.log.info("Message " + key + " was already posted as " + entry.getContentId() + " by an interrupted run.");
+		return true;
+	}
+
+	/**
+	 * Find the blog post of a message which was about to be posted when the
+	 * job was interrupted.
+	 *
+	 * @param entry The journal entry of the message.
+	 * @return Returns the blog post, or null if it was not committed.
+	 */
+	private BlogPost findBlogPost(IngestionJournal.Entry entry)
+	{
+		Calendar day = Calendar.getInstance();
+		day.setTimeInMillis(entry.getTime());
+		/* the blog post may have been saved after midnight */
+		for (int i = 0; i < 2; i++)
+		{
+			BlogPost blogPost = pageManager.getBlogPost(entry.getSpaceKey(), entry.getTitle(), day);
+			/* some databases store the creation date in seconds */
+			if (blogPost != null && blogPost.getCreationDate() != null
+					&& blogPost.getCreationDate().getTime() >= entry.getTime() / 1000 * 1000)
+			{
+				return blogPost;
+			}
+			day.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Add a message which failed because of a temporary problem (e.g. a
+	 * database deadlock) to the retry queue.
+	 *
+	 * @param message The message.
+	 * @param e The reason why the message failed.
+	 * @return Returns true if the message was queued, false if it has to stay in the mailbox.
+	 */
+	private boolean queueForRetry(Message message, Exception e)
+	{
+		this.log.warn("Could not publish message, retrying it later: " + e.getMessage(), e);
+		long delay = configurationManager.getMailConfiguration().getRetryDelay() * 60000L;
+		if (retryQueue.add(message, e, delay))
+		{
+			stats.messageRetried();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Retry the messages of the retry queue which are due. A message is
+	 * moved to the dead letters after the configured number of attempts
+	 * and the sender is notified.
+	 */
+	private void retryMessages()
+	{
+		MailConfiguration config = configurationManager.getMailConfiguration();
+		List<RetryQueue.Entry> due = retryQueue.getDue(System.currentTimeMillis());
+		if (due.isEmpty())
+		{
+			return;
+		}
+		this.log.info("Retrying " + due.size() + " messages.");
+
+		Session session = Session.getInstance(new Properties(), null);
+		for (RetryQueue.Entry entry : due)
+		{
+			if (isAborted())
+			{
+				break;
+			}
+
+			journalKey = "retry:" + entry.getId();
+			if (isPosted(journalKey))
+			{
+				/* posted by an interrupted run */
+				retryQueue.remove(entry);
+				journal.disposed(journalKey);
+				continue;
+			}
+
+			MimeMessage message = null;
+			try {
+				message = retryQueue.load(entry, session);
+				IngestionTrace.begin(0, message.getSize());
+				journal.fetched(journalKey);
+				/* published, or invalid and the sender is notified */
+				processMessage(message, null);
+				retryQueue.remove(entry);
+				journal.disposed(journalKey);
+			}
+			catch (Exception e)
+			{
+				int attempts = entry.getAttempts() + 1;
+				if (message == null || attempts >= config.getRetryAttempts())
+				{
+					this.log.error("Giving up message " + entry.getId() + " after " + attempts + " attempts: " + e.getMessage(), e);
+					retryQueue.deadLetter(entry, e);
+					journal.disposed(journalKey);
+					stats.messageDeadLettered();
+					if (message != null)
+					{
+						sendErrorMessage(message, "The message could not be published after " + attempts + " attempts: " + e.getMessage());
+					}
+				}
+				else
+				{
+					this.log.warn("Retrying message " + entry.getId() + " failed (attempt " + attempts + "): " + e.getMessage());
+					retryQueue.retryLater(entry, e, RetryQueue.getBackoff(attempts, config.getRetryDelay() * 60000L));
+					stats.messageRetried();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publish a single message outside of a scheduled run, e.g. to test or
+	 * profile the handling of messages without a mail server. The message is
+	 * not moved or deleted. Must not be called while the job is running.
+	 *
+	 * @param message The message to publish.
+	 * @return Returns true if the message was published, false if it is invalid.
+	 * @throws Exception
+	 */
+	public boolean publish(Message message) throws Exception
+	{
+		startPublishing();
+		return publish(message, null);
+	}
+
+	/**
+	 * Prepare publishing messages outside of a scheduled run with
+	 * publish(Message, MessageParser), e.g. for importing an archive.
+	 */
+	public void startPublishing()
+	{
+		MailConfiguration config = configurationManager.getMailConfiguration();
+		attachmentSaver = new AttachmentSaver(attachmentManager);
+		messageFilter = createMessageFilter(config);
+		updateSenderAuthorizer(config);
+		if (journal == null)
+		{
+			journal = new IngestionJournal();
+		}
+		if (digestStore == null)
+		{
+			digestStore = new DigestStore();
+		}
+		if (threadIndex == null)
+		{
+			threadIndex = new BandanaIndex("thread");
+		}
+		/* the messages are not in a mailbox, nothing to recover */
+		journalKey = null;
+	}
+
+	/**
+	 * Publish a message outside of a scheduled run, after startPublishing().
+	 * The message can be parsed in advance, e.g. by another thread.
+	 *
+	 * @param message The message to publish.
+	 * @param parsed The parsed content of the message, null to parse it here.
+	 * @return Returns true if the message was published, false if it is invalid.
+	 * @throws Exception
+	 */
+	public boolean publish(Message message, MessageParser parsed) throws Exception
+	{
+		try {
+			IngestionTrace.begin(message.getMessageNumber(), message.getSize());
+			return processMessage(message, parsed);
+		} finally {
+			if (parsed != null)
+			{
+				/* also if the message was rejected before its content was needed */
+				parsed.dispose();
+			}
+			IngestionTrace.end();
+		}
+	}
+
+	/**
+	 * Create a parser for a message, using the configuration of the job.
+	 * The parser has to be disposed when the message is handled.
+	 *
+	 * @return Returns a new parser.
+	 */
+	public MessageParser createParser()
+	{
+		MailConfiguration config = configurationManager.getMailConfiguration();
+		MessageParser parser = new MessageParser(config.getSignatureImageSize(), config.getPreferHtml());
+		parser.setLimits(config.getMaxPartDepth(), config.getMaxParts(), config.getMaxMessageSize() * 1024L * 1024L);
+		/* all parsers share the budget, also those of an import running at the same time */
+		MemoryBudget memoryBudget = MemoryBudget.getInstance();
+		memoryBudget.setCapacity(config.getMemoryBudget() * 1024L * 1024L);
+		parser.setMemoryBudget(memoryBudget);
+		return parser;
+	}
+
+	/**
+	 * Get the spaces the sender of a message may not add blog posts to. The
+	 * user of the sender is only looked up (in a transaction of its own) if
+	 * a decision is not cached.
+	 *
+	 * @param message The message.
+	 * @param spaces The spaces the message is addressed to.
+	 * @return Returns the spaces the sender may not post to, an empty list if
+	 *         the sender may post to all of them or there are no permissions
+	 *         to check against.
+	 * @throws Exception
+	 */
+	private List<Space> getUnauthorizedSpaces(Message message, final List<Space> spaces) throws Exception
+	{
+		final List<Space> denied = new ArrayList<Space>();
+		if (senderAuthorizer == null)
+		{
+			return denied;
+		}
+		final String email = getEmailAddressFromMessage(message);
+		final List<Space> undecided = new ArrayList<Space>();
+		for (Space space : spaces)
+		{
+			Boolean permitted = senderAuthorizer.getDecision(email, space);
+			if (permitted == null)
+			{
+				undecided.add(space);
+			}
+			else if (!permitted.booleanValue())
+			{
+				denied.add(space);
+			}
+		}
+		if (!undecided.isEmpty())
+		{
+			executeInTransaction(new Callable<Void>() {
+				public Void call() throws Exception {
+					long start = stats.start();
+					User user = getUserByEmail(email);
+					stats.record(IngestionStage.USER_RESOLVE, start);
+					for (Space space : undecided)
+					{
+						if (!senderAuthorizer.authorize(email, space, user))
+						{
+							denied.add(space);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		return denied;
+	}
+
+	/**
+	 * Check whether the sender of a reply may add comments to a space. The
+	 * user of the sender is only looked up if the decision is not cached.
+	 *
+	 * @param message The reply.
+	 * @param space The space of the blog post of the thread.
+	 * @return Returns true if the sender may comment, or there are no
+	 *         permissions to check against. Returns false if the permission
+	 *         could not be checked.
+	 */
+	private boolean mayComment(Message message, final Space space)
+	{
+		if (senderAuthorizer == null || configurationManager.getMailConfiguration().getPublishWithoutPermission())
+		{
+			return true;
+		}
+		long stageStart = stats.start();
+		try {
+			final String email = getEmailAddressFromMessage(message);
+			Boolean permitted = senderAuthorizer.getDecision(email, space, SpacePermission.COMMENT_PERMISSION);
+			if (permitted == null)
+			{
+				permitted = executeInTransaction(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						long start = stats.start();
+						User user = getUserByEmail(email);
+						stats.record(IngestionStage.USER_RESOLVE, start);
+						return Boolean.valueOf(senderAuthorizer.authorize(email, space, user, SpacePermission.COMMENT_PERMISSION));
+					}
+				});
+			}
+			stats.record(IngestionStage.AUTHORIZE, stageStart);
+			return permitted.booleanValue();
+		}
+		catch (Exception e)
+		{
+			stats.record(IngestionStage.AUTHORIZE, stageStart, false);
+			this.log.warn("Could not check whether the sender may comment in space " + space.getKey() + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Get the authorizer of the senders shared by the jobs, and update the
+	 * time its decisions are kept.
+	 *
+	 * @param config The configuration of the job.
+	 */
+	private void updateSenderAuthorizer(MailConfiguration config)
+	{
+		long timeToLive = config.getPermissionCacheTime() * 60 * 1000L;
+		if (spacePermissionManager != null)
+		{
+			senderAuthorizer = SenderAuthorizer.getInstance(spacePermissionManager, eventPublisher, timeToLive);
+		}
+		else
+		{
+			this.log.warn("No space permission manager, the permissions of the senders are not checked.");
+		}
+	}
+
+	/**
+	 * Create the filter for the messages which are discarded.
+	 *
+	 * @param config The configuration of the filter.
+	 * @return Returns the filter.
+	 */
+	private static MessageFilter createMessageFilter(MailConfiguration config)
+	{
+		return new MessageFilter(config.getPublishAutoGenerated(), config.getFilterMailingLists(), config.getFilterRules());
+	}
+
+	/**
+	 * Set whether an error message is sent back to the sender of a message
+	 * which cannot be published, e.g. to turn it off for old messages.
+	 *
+	 * @param sendErrorMessages Whether to send error messages, true by default.
+	 */
+	public void setSendErrorMessages(boolean sendErrorMessages)
+	{
+		this.sendErrorMessages = sendErrorMessages;
+	}
+
+	/**
+	 * Set whether the messages are imported from an archive. Imported
+	 * messages are posted with the date they were sent, never staged for a
+	 * digest, and do not count in the lag of the spaces.
+	 *
+	 * @param importing Whether the messages are imported, false by default.
+	 */
+	public void setImporting(boolean importing)
+	{
+		this.importing = importing;
+	}
+
+	/**
+	 * Record the time from sending the given message until its blog post was
+	 * saved. Logs a warning if this exceeds the configured budget.
+	 *
+	 * @param message The published message.
+	 * @param space The space where the message was published.
+	 * @param fetched When the message was fetched, in milliseconds.
+	 */
+	private void recordLag(Message message, Space space, long fetched)
+	{
+		Date sent = null;
+		try {
+			sent = getSentDate(message);
+		} catch (Exception e) {
+			this.log.debug("Could not get the date of the message: " + e.getMessage());
+		}
+		if (sent == null)
+		{
+			return;
+		}
+
+		stats.recordLag(space.getKey(), sent.getTime(), fetched, blogPostSaved);
+
+		int lagBudget = configurationManager.getMailConfiguration().getLagBudget();
+		long lag = blogPostSaved - sent.getTime();
+		if (lagBudget > 0 && lag > lagBudget * 60000L)
+		{
+			stats.lagBudgetExceeded();
+			this.log.warn("Message sent at " + sent + " was published in space " + space.getKey() + " after " + (lag / 60000) + " minutes, exceeding the lag budget of " + lagBudget + " minutes.");
+		}
+	}
+
+	/**
+	 * Get the date when the given message was sent: the Date header, or if it
+	 * is missing the date when it was received by the mail server.
+	 *
+	 * @param message The message.
+	 * @return Returns the date or null if it is unknown.
+	 * @throws MessagingException
+	 */
+	private Date getSentDate(Message message) throws MessagingException
+	{
+		Date sent = message.getSentDate();
+		if (sent == null)
+		{
+			/* the internal date of IMAP messages */
+			sent = message.getReceivedDate();
+		}
+		if (sent == null)
+		{
+			/* the date of the topmost Received header, which was added by the receiving server */
+			String[] received = message.getHeader("Received");
+			if (received != null && received.length > 0 && received[0].lastIndexOf(';') != -1)
+			{
+				try {
+					sent = new MailDateFormat().parse(received[0].substring(received[0].lastIndexOf(';') + 1).trim());
+				} catch (ParseException pe) {
+					/* unknown date format */
+				}
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Execute the given callable in a transaction. Runtime exceptions roll back the
+	 * transaction, checked exceptions are passed on to the caller after the
+	 * transaction is finished.
+	 *
+	 * @param callable The callable to execute.
+	 * @return Returns the result of the callable.
+	 * @throws Exception Throws the checked exception thrown by the callable.
+	 */
+	private <T> T executeInTransaction(final Callable<T> callable) throws Exception
+	{
+		final List<Exception> failure = new LinkedList<Exception>();
+		T result = transactionTemplate.execute(new TransactionCallback<T>() {
+			public T doInTransaction() {
+				try {
+					return callable.call();
+				} catch (RuntimeException re) {
+					throw re;
+				} catch (Exception e) {
+					failure.add(e);
+					return null;
+				}
+			}
+		});
+		if (!failure.isEmpty())
+		{
+			throw failure.get(0);
+		}
+		return result;
+	}
+
+	/**
+	 * Send an mail containing the error message back to the
+	 * user which sent the given message.
+	 *
+	 * @param m The message which produced an error while handling it.
+	 * @param error The error string.
+	 */
+	private void sendErrorMessage(Message m, String error)
+	{
+		if (!sendErrorMessages)
+		{
+			this.log.info("Not sending error message: " + error);
+			return;
+		}
+		try {
+			/* answering an auto-reply may start a loop of messages */
+			String autoGenerated = MessageFilter.getAutoGenerated(m);
+			if (autoGenerated != null)
+			{
+				this.log.info("Not sending error message to auto-generated message (" + autoGenerated + "): " + error);
+				return;
+			}
+		} catch (MessagingException me) {
+			this.log.debug("Could not read the headers of the message: " + me.getMessage());
+		}
+		long start = stats.start();
+		boolean success = false;
+		try {
+			deliverErrorMessage(m, error);
+			success = true;
+		} catch (Exception e) {
+			/* the message is handled anyway */
+			this.log.error("Could not send error message: " + e.getMessage(), e);
+		} finally {
+			stats.record(IngestionStage.ERROR_MAIL, start, success);
+		}
+	}
+
+	/**
+	 * Get the SMTP server used to send error messages.
+	 *
+	 * @return Returns the default SMTP server of confluence, null if none is configured.
+	 */
+	protected SMTPMailServer getSMTPMailServer()
+	{
+		return MailFactory.getServerManager().getDefaultSMTPMailServer();
+	}
+
+	/**
+	 * Deliver the error message to the sender of the given message using
+	 * the default SMTP server of confluence.
+	 *
+	 * @param m The message which produced an error while handling it.
+	 * @param error The error string.
+	 */
+	private void deliverErrorMessage(Message m, String error) throws Exception // FIXME this method should use the higher level email sending facilities in confluence instead of this low level approach
+	{
+		/* get the SMTP mail server */
+		SMTPMailServer smtpMailServer = getSMTPMailServer();
+		if(smtpMailServer == null) {
+			log.warn("Failed to send error message as no SMTP server is configured");
+			return;
+		}
+
+		if(smtpMailServer.getHostname() == null) {
 			log.warn("Failed to send error message as JNDI bound SMTP servers are not supported (JNDI location:<" + smtpMailServer.getJndiLocation() + ">)");
 			return;
 		}
 
-		/* get system properties */
-		Properties props = System.getProperties();
+		/* create the properties for the session */
+		Properties props = new Properties(System.getProperties());
 
 		/* Setup mail server */
 		props.put("mail.smtp.host", smtpMailServer.getHostname());
 
+		/* set connection, read and write timeouts, so a stalled SMTP server cannot hang the job */
+		String timeout = "" + (configurationManager.getMailConfiguration().getTimeout() * 1000);
+		props.put("mail.smtp.connectiontimeout", "10000");
+		props.put("mail.smtp.timeout", timeout);
+		props.put("mail.smtp.writetimeout", timeout);
+
 		/* get a session */
-		Session session = Session.getDefaultInstance(props, null);
+		Session session = Session.getInstance(props, null);
 		/* create the message */
 		MimeMessage message = new MimeMessage(session);
 		message.setFrom(new InternetAddress(smtpMailServer.getDefaultFrom()));
@@ -667,6 +2496,7 @@ public class Mail2NewsJob extends AbstractJob {
 	 */
 	private void moveMessage(Message m, Folder from, Folder to)
 	{
+		long start = stats.start();
 		try {
 			/* copy the message to the destination folder */
 			from.copyMessages(new Message[] {m}, to);
@@ -674,9 +2504,11 @@ public class Mail2NewsJob extends AbstractJob {
 			/* this sets the DELETED flag, the message will be deleted
 			 * when expunging the folder */
 			m.setFlag(Flags.Flag.DELETED, true);
+			stats.record(IngestionStage.DISPOSITION, start);
 		}
 		catch (Exception e)
 		{
+			stats.record(IngestionStage.DISPOSITION, start, false);
 			this.log.error("Could not copy message: " + e.getMessage(), e);
 			try {
 				/* cannot move the message. mark it read so we will not look at it again */
@@ -690,183 +2522,6 @@ public class Mail2NewsJob extends AbstractJob {
 		}
 
 	}
-	/**
-	 * Handle a multipart of a email message. May recursively call handleMultipart or
-	 * handlePart.
-	 *
-	 * @param multipart The multipart to handle.
-	 * @throws MessagingException
-	 * @throws IOException
-	 */
-	private void handleMultipart(Multipart multipart) throws MessagingException, IOException {
-
-		for (int i = 0, n = multipart.getCount(); i < n; i++) {
-			Part p = multipart.getBodyPart(i);
-			if (p instanceof Multipart) {
-				handleMultipart((Multipart)p);
-			}
-			else
-			{
-				handlePart(multipart.getBodyPart(i));
-			}
-		}
-	}
-
-	/**
-	 * Handle a part of a email message. This is either displayable text or some MIME
-	 * attachment.
-	 *
-	 * @param part The part to handle.
-	 * @throws MessagingException
-	 * @throws IOException
-	 */
-	private void handlePart(Part part) throws MessagingException, IOException {
-
-		/* get the content type of this part */
-		String contentType = part.getContentType();
-
-		if (part.getContent() instanceof Multipart)
-		{
-			handleMultipart((Multipart)part.getContent());
-			return;
-		}
-
-		log.debug("Content-Type: " + contentType);
-
-		/* check if the content is printable */
-		if (contentType.toLowerCase().startsWith("text/plain") && blogEntryContent == null)
-		{
-			/* get the charset */
-			Charset charset = getCharsetFromHeader(contentType);
-			/* set the blog entry content to this content */
-			blogEntryContent = "";
-			InputStream is = part.getInputStream();
-			BufferedReader br = null;
-			if (charset != null)
-			{
-				br = new BufferedReader(new InputStreamReader(is, charset));
-			}
-			else
-			{
-				br = new BufferedReader(new InputStreamReader(is));
-			}
-			String currentLine = null;
-
-			blogEntryContent = "<p>";
-			while ((currentLine = br.readLine()) != null) {
-				blogEntryContent += currentLine + "<br/>";
-			}
-			blogEntryContent += "</p>";
-		}
-		else
-		{
-			/* the content is not text, so we assume it is some sort of MIME attachment */
-
-			try {
-				/* get the filename */
-				String fileName = part.getFileName();
-
-				/* no filename, ignore this part */
-				if (fileName == null)
-				{
-					this.log.warn("Attachment with no filename. Ignoring.");
-					return;
-				}
-
-				/* retrieve an input stream to the attachment */
-				InputStream is = part.getInputStream();
-
-				/* clean-up the content type (only the part before the first ';' is relevant) */
-				if (contentType.indexOf(';') != -1) {
-					contentType = contentType.substring(0, contentType.indexOf(';'));
-				}
-
-				if (contentType.toLowerCase().indexOf("image") != -1)
-				{
-					/* this post contains an image as attachment, add the gallery macro to the blog post */
-					containsImage = true;
-				}
-
-				ByteArrayInputStream bais = null;
-				byte[] attachment = null;
-				/* put the attachment into a byte array */
-				try
-				{
-					ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					byte buf[] = new byte[1024];
-					int numBytes;
-					while(true)
-					{
-						numBytes = is.read(buf);
-						if (numBytes > 0)
-						{
-							baos.write(buf, 0, numBytes);
-						}
-						else
-						{
-							/* end of stream reached */
-							break;
-						}
-					}
-					/* create a new input stream */
-					attachment = baos.toByteArray();
-					bais = new ByteArrayInputStream(attachment);
-					//this.log.info("Attachment size: " + attachment.length);
-				}
-				catch (Exception e)
-				{
-					this.log.error("Could not load attachment:" + e.getMessage(), e);
-					/* skip this attachment */
-					throw e;
-				}
-				/* create a new attachment */
-				Attachment a = new Attachment(fileName, contentType, attachment.length, "Attachment added by mail2news");
-				Date d = new Date();
-				a.setCreationDate(d);
-				a.setLastModificationDate(d);
-
-				/* add the attachment and the input stream to the attachment to the list
-				 * of attachments of the current blog entry */
-				attachments.addLast(a);
-				attachmentsInputStreams.addLast(bais);
-
-			} catch (Exception e) {
-				this.log.error("Error while saving attachment: " + e.getMessage(), e);
-			}
-		}
-	}
-
-	/**
-	 * Get the charset listed in a "Content-Type" header.
-	 * @param contentType The "Content-Type" header.
-	 * @return Returns the used charset or null if no information is found.
-	 */
-	private Charset getCharsetFromHeader(String contentType) {
-
-		StringTokenizer tok = new StringTokenizer(contentType, ";");
-
-		while (tok.hasMoreTokens())
-		{
-			String token = tok.nextToken().trim();
-			if (token.toLowerCase().startsWith("charset"))
-			{
-				if (token.indexOf('=') != -1)
-				{
-					String charsetString = token.substring(token.indexOf('=')+1);
-					try {
-						Charset characterSet = Charset.forName(charsetString);
-						return characterSet;
-					} catch (Exception e) {
-						log.warn("Unsupported charset in email content (" + charsetString + "). Some characters may be wrong.");
-						return null;
-					}
-				}
-			}
-		}
-
-		return null;
-	}
-
 	/**
 	 * Get the space key and subsequently the space from the recipient
 	 * email address.
@@ -874,15 +2529,22 @@ public class Mail2NewsJob extends AbstractJob {
 	 * address does not contain a "+spacekey", then the application tests if it can
 	 * find a spacekey which is equivalent to the local part of the email address.
 	 *
+	 * If all spaces are requested, every space given as "+spacekey" is returned,
+	 * or every space equivalent to a local part if there is none.
+	 *
 	 * @param message The mail message from which to extract the space key.
-	 * @return Returns the space
+	 * @param all Whether to return all spaces instead of the first one.
+	 * @return Returns the spaces, at least one.
 	 * @throws Exception Throws an exception if the space key cannot be extracted or the space cannot be found.
 	 */
-	private Space getSpaceFromAddress(Message message) throws Exception
+	private List<Space> getSpacesFromAddress(Message message, boolean all) throws Exception
 	{
 		/* list for deferred space keys (see below) */
 		List<Space> deferredSpaceKeys = new LinkedList<Space>();
 
+		/* the spaces found in the form addr+spacekey@domain.net */
+		List<Space> spaces = new ArrayList<Space>();
+
 		/* get the To: email addresses */
 		Address[] recipientTo = message.getRecipients(Message.RecipientType.TO);
 
@@ -928,16 +2590,9 @@ public class Mail2NewsJob extends AbstractJob {
 			}
 
 			/* extract the wiki space name */
-			Pattern pattern = Pattern.compile("(.+?)([a-zA-Z0-9]+\\+[a-zA-Z0-9]+)@(.+?)");
-			Matcher matcher = pattern.matcher(emailAddress);
-			String spaceKey = "";
+			String spaceKey = getSpaceKey(emailAddress);
 			boolean defer = false;
-			if (matcher.matches())
-			{
-				String tmp = matcher.group(2);
-				spaceKey = tmp.substring(tmp.indexOf('+')+1);
-			}
-			else
+			if (spaceKey == null)
 			{
 				/* the email address is not in the form "aaaa+wikispace@bbb"
 				/* fallback: test if there exists a space with a spacekey equal to the
@@ -968,21 +2623,38 @@ public class Mail2NewsJob extends AbstractJob {
 				/* add to the list of fallback spaces. if we don't find another
 				 * space in the form addr+spacekey@..., then we take the first one
 				 * of the fallback spaces */
-				deferredSpaceKeys.add(space);
+				if (!deferredSpaceKeys.contains(space))
+				{
+					deferredSpaceKeys.add(space);
+				}
 			}
-			else
+			else if (!all)
+			{
+				spaces.add(space);
+				return spaces;
+			}
+			else if (!spaces.contains(space))
 			{
-				return space;
+				spaces.add(space);
 			}
 		}
 
+		if (spaces.size() > 0)
+		{
+			return spaces;
+		}
+
 		/* we did not find a space in the form addr+spacekey@domain.net.
 		 * check for a fallback space */
 		if (deferredSpaceKeys.size() > 0)
 		{
-			/* take the first fallback space */
-			Space s = deferredSpaceKeys.get(0);
-			return s;
+			/* take the first fallback space, or all of them */
+			if (all)
+			{
+				return deferredSpaceKeys;
+			}
+			spaces.add(deferredSpaceKeys.get(0));
+			return spaces;
 		}
 
 		/* did not find any space, not even a fallback key */
@@ -1001,6 +2673,49 @@ public class Mail2NewsJob extends AbstractJob {
 		throw new Exception("Could not extract space key from any of the To: addresses: " + toString);
 	}
 
+	/**
+	 * Extract the space key from an email address in the form "email+spacekey@domain.net".
+	 *
+	 * @param emailAddress The email address.
+	 * @return Returns the space key or null if the address does not contain a "+spacekey".
+	 */
+	public static String getSpaceKey(String emailAddress)
+	{
+		Pattern pattern = Pattern.compile("(.+?)([a-zA-Z0-9]+\\+[a-zA-Z0-9]+)@(.+?)");
+		Matcher matcher = pattern.matcher(emailAddress);
+		if (matcher.matches())
+		{
+			String tmp = matcher.group(2);
+			return tmp.substring(tmp.indexOf('+')+1);
+		}
+		return null;
+	}
+
+	/**
+	 * Replace the characters which are not allowed in the title of a blog post
+	 * by a space. Only needed for Confluence &lt; 4.1.
+	 *
+	 * @param title The subject of the message.
+	 * @param version The version of Confluence.
+	 * @return Returns the title of the blog post.
+	 */
+	public static String sanitizeTitle(String title, String version)
+	{
+		/* check for illegal characters in the title and replace them with a space */
+		/* could be replaced with a regex */
+		if (!Pattern.matches("^4\\.[1-9]+.*$", version)) {
+			char[] illegalCharacters = {':', '@', '/', '%', '\\', '&', '!', '|', '#', '$', '*', ';', '~', '[', ']', '(', ')', '{', '}', '<', '>', '.'};
+			for (int i = 0; i < illegalCharacters.length; i++)
+			{
+				if (title.indexOf(illegalCharacters[i]) != -1)
+				{
+					title = title.replace(illegalCharacters[i], ' ');
+				}
+			}
+		}
+		return title;
+	}
+
 	/**
 	 * Create a blog post from the content and the attachments retrieved from a
 	 * mail message.
@@ -1009,18 +2724,28 @@ public class Mail2NewsJob extends AbstractJob {
 	 *
 	 * @param space The space where to publish the blog post.
 	 * @param m The message which to publish as a blog post.
+	 * @return Returns the id of the blog post.
 	 * @throws MessagingException Throws a MessagingException if something goes wrong when getting attributes from the message.
 	 */
-	private void createBlogPost(Space space, Message m) throws MessagingException
+	private long createBlogPost(Space space, Message m) throws MessagingException
 	{
 		/* create the blogPost and add values */
-		BlogPost blogPost = new BlogPost();
-		/* set the creation date of the blog post to the current date */
-		blogPost.setCreationDate(new Date());
+		final BlogPost blogPost = new BlogPost();
 		/* set the space where to save the blog post */
 		blogPost.setSpace(space);
-		/* if the gallery macro is set and the post contains an image add the macro */
+		/* replace attachments which were already saved before by references */
 		MailConfiguration config = configurationManager.getMailConfiguration();
+		final String spaceKey = space.getKey();
+		String references = "";
+		if (config.getDeduplicate())
+		{
+			references = transactionTemplate.execute(new TransactionCallback<String>() {
+				public String doInTransaction() {
+					return replaceDuplicateAttachments(spaceKey);
+				}
+			});
+		}
+		/* if the gallery macro is set and the post contains an image add the macro */
 		if (config.getGallerymacro())
 		{
 			/* gallery macro is set */
@@ -1035,111 +2760,209 @@ public class Mail2NewsJob extends AbstractJob {
 		if (blogEntryContent != null)
 		{
 			log.debug("Blog entry content converted:\n" + blogEntryContent);
-			blogPost.setBodyAsString(blogEntryContent);
+			blogPost.setBodyAsString(blogEntryContent.concat(references));
 		}
 		else
 		{
-			blogPost.setBodyAsString("");
+			blogPost.setBodyAsString(references);
 		}
 		/* set the title of the blog post */
-		String title = m.getSubject();
-		/* check for illegal characters in the title and replace them with a space */
-		/* could be replaced with a regex */
-		/* Only needed for Confluence < 4.1 */
-		String version = GeneralUtil.getVersionNumber();
-		if (!Pattern.matches("^4\\.[1-9]+.*$", version)) {
-			char[] illegalCharacters = {':', '@', '/', '%', '\\', '&', '!', '|', '#', '$', '*', ';', '~', '[', ']', '(', ')', '{', '}', '<', '>', '.'};
-			for (int i = 0; i < illegalCharacters.length; i++)
-			{
-				if (title.indexOf(illegalCharacters[i]) != -1)
+		blogPost.setTitle(sanitizeTitle(m.getSubject(), GeneralUtil.getVersionNumber()));
+		journal.parsed(journalKey, space.getKey(), blogPost.getTitle());
+		/* set the creation date of the blog post to the current date, after the
+		 * journal recorded the time an interrupted run looks for it from. An
+		 * imported message is dated when it was sent, it is not journaled */
+		Date created = importing ? getSentDate(m) : null;
+		blogPost.setCreationDate((created != null) ? created : new Date());
+
+		/* set creating user */
+		final String creatorEmail = getEmailAddressFromMessage(m);
+
+		/* save the blog post and its attachments in a transaction of their own,
+		 * so the blog post is never committed without its attachments */
+		final boolean deduplicate = config.getDeduplicate();
+		final List<Attachment> saved = new LinkedList<Attachment>();
+		transactionTemplate.execute(new TransactionCallback<Void>() {
+			public Void doInTransaction() {
+				long start = stats.start();
+				User creator = getUserByEmail(creatorEmail);
+				stats.record(IngestionStage.USER_RESOLVE, start);
+				blogPost.setCreatorName((creator != null) ? creator.getName() : null);
+
+				if (creator != null)
 				{
-					title = title.replace(illegalCharacters[i], ' ');
+					AuthenticatedUserThreadLocal.setUser(creator);
+				}
+				else
+				{
+					//this.log.info("Resetting authenticated user.");
+					AuthenticatedUserThreadLocal.setUser(null);
 				}
-			}
-		}
-		blogPost.setTitle(title);
 
-		/* set creating user */
-		String creatorEmail = getEmailAddressFromMessage(m);
+				/* save the blog post */
+				start = stats.start();
+				pageManager.saveContentEntity(blogPost, null);
+				stats.record(IngestionStage.BLOG_SAVE, start);
 
-		String creatorName = null;
-		User creator = null;
-		if (creatorEmail != "")
-		{
-			SearchResult sr = userAccessor.getUsersByEmail(creatorEmail);
+				/* we have to save the blog post before we can add the
+				 * attachments, because attachments need to be attached to
+				 * a content. */
+				saved.addAll(attachmentSaver.save(blogPost, creator, attachments, attachmentsInputStreams));
 
-			Pager p = sr.pager();
-			List l = p.getCurrentPage();
+				/* remember the saved attachments, so identical attachments are not saved again */
+				if (deduplicate)
+				{
+					indexAttachments(spaceKey, saved);
+				}
+				return null;
+			}
+		});
+		blogPostSaved = System.currentTimeMillis();
+		/* committed, the message must not be posted again */
+		journal.posted(journalKey, blogPost.getId());
 
-			if (l.size() > 0)
-			{
-				/* found a matching user for the email address of the sender */
-				creator = (User)l.get(0);
-				creatorName = creator.getName();
+		attachmentSaver.generateRenditions(saved);
+		return blogPost.getId();
+	}
 
-				if(l.size() > 1)
+	/**
+	 * Look up the attachments of the current message in the attachment index.
+	 * Attachments which were already saved before are removed from the list of
+	 * attachments to save, a reference to the saved attachment is added instead.
+	 * Only attachments saved in the same space are referenced, so readers of the
+	 * post can always see the referenced attachment.
+	 *
+	 * @param spaceKey The key of the space the message is posted to.
+	 * @return Returns the references to the attachments saved before, in storage format.
+	 */
+	private String replaceDuplicateAttachments(String spaceKey)
+	{
+		String references = "";
+		containsImage = false;
+
+		Iterator<Attachment> attachmentIterator = attachments.iterator();
+		Iterator<InputStream> inputStreamIterator = attachmentsInputStreams.iterator();
+		while (attachmentIterator.hasNext())
+		{
+			Attachment a = attachmentIterator.next();
+			inputStreamIterator.next();
+			boolean image = a.getContentType().toLowerCase().indexOf("image") != -1;
+
+			/* look for an attachment with the same content */
+			String hash = spaceKey + " " + attachmentsHashes.get(a);
+			String existingId = attachmentIndex.get(hash);
+			stats.cacheAccess("AttachmentIndex", existingId != null);
+			if (existingId != null)
+			{
+				Attachment existing = attachmentManager.getAttachment(Long.parseLong(existingId));
+				String reference = (existing != null) ? createAttachmentReference(existing, spaceKey, image) : null;
+				if (reference != null)
 				{
-					log.warn(String.format("Email sender address <%s> is set for %d user accounts, using <%s> as blog post submitter", creatorEmail, l.size(), creatorName));
+					this.log.debug("Attachment " + a.getFileName() + " was already saved, adding a reference to attachment " + existingId + ".");
+					references = references.concat(reference);
+					attachmentIterator.remove();
+					inputStreamIterator.remove();
+					continue;
 				}
+				/* the attachment has been deleted, moved or restricted in the meantime */
+				attachmentIndex.remove(hash);
 			}
-			else
+
+			if (image)
 			{
-				log.warn(String.format("Email sender address <%s> is not set for any user, using anonymous as blog post submitter", creatorEmail));
+				/* this post still contains an image as attachment */
+				containsImage = true;
 			}
 		}
 
+		return references;
+	}
 
-		blogPost.setCreatorName(creatorName);
+	/**
+	 * Create a reference to an attachment of another page or blog post.
+	 *
+	 * @param a The attachment to reference.
+	 * @param spaceKey The key of the space the reference is added to.
+	 * @param image Whether to display the attachment as an image.
+	 * @return Returns the reference in storage format or null if the attachment
+	 *         does not belong to a visible page or blog post of the space (any more).
+	 */
+	private String createAttachmentReference(Attachment a, String spaceKey, boolean image)
+	{
+		ContentEntityObject content = a.getContent();
+		if (!(content instanceof AbstractPage) || content.isDeleted())
+		{
+			return null;
+		}
+		AbstractPage page = (AbstractPage) content;
+		/* readers of the space must be able to see the referenced attachment */
+		if (page.getSpace() == null || !spaceKey.equals(page.getSpace().getKey())
+				|| page.hasPermissions(ContentPermission.VIEW_PERMISSION))
+		{
+			return null;
+		}
 
-		if (creator != null)
+		String container;
+		if (page instanceof BlogPost)
 		{
-			AuthenticatedUserThreadLocal.setUser(creator);
+			container = "<ri:blog-post ri:space-key=\"" + GeneralUtil.escapeXml(page.getSpace().getKey())
+					+ "\" ri:content-title=\"" + GeneralUtil.escapeXml(page.getTitle())
+					+ "\" ri:posting-day=\"" + new SimpleDateFormat("yyyy/MM/dd").format(page.getCreationDate()) + "\"/>";
 		}
 		else
 		{
-			//this.log.info("Resetting authenticated user.");
-			AuthenticatedUserThreadLocal.setUser(null);
+			container = "<ri:page ri:space-key=\"" + GeneralUtil.escapeXml(page.getSpace().getKey())
+					+ "\" ri:content-title=\"" + GeneralUtil.escapeXml(page.getTitle()) + "\"/>";
 		}
+		String reference = "<ri:attachment ri:filename=\"" + GeneralUtil.escapeXml(a.getFileName()) + "\">" + container + "</ri:attachment>";
 
-		/* save the blog post */
-		pageManager.saveContentEntity(blogPost, null);
+		if (image)
+		{
+			return "<p><ac:image>" + reference + "</ac:image></p>";
+		}
+		return "<p><ac:link>" + reference + "</ac:link></p>";
+	}
 
-		/* set attachments of this blog post */
-		/* we have to save the blog post before we can add the
-		 * attachments, because attachments need to be attached to
-		 * a content. */
-		Attachment[] a = new Attachment[attachments.size()];
-		a = (Attachment[])attachments.toArray(a);
-		for (int j = 0; j < a.length; j++)
+	/**
+	 * Find the user with the given email address.
+	 *
+	 * @param creatorEmail The email address of the user, may be empty.
+	 * @return Returns the user or null if no user is found.
+	 */
+	private User getUserByEmail(String creatorEmail)
+	{
+		User creator = null;
+		if (creatorEmail != "")
 		{
-			InputStream is = (InputStream)attachmentsInputStreams.get(j);
+			SearchResult sr = userAccessor.getUsersByEmail(creatorEmail);
 
-			/* save the attachment */
-			try
+			Pager p = sr.pager();
+			List l = p.getCurrentPage();
+
+			if (l.size() > 0)
 			{
-				/* set the creator of the attachment */
-				a[j].setCreatorName(creatorName);
-				/* set the content of this attachment to the newly saved blog post */
-				a[j].setContent(blogPost);
-				attachmentManager.saveAttachment(a[j], null, is);
+				/* found a matching user for the email address of the sender */
+				creator = (User)l.get(0);
+
+				if(l.size() > 1)
+				{
+					log.warn(String.format("Email sender address <%s> is set for %d user accounts, using <%s> as blog post submitter", creatorEmail, l.size(), creator.getName()));
+				}
 			}
-			catch (Exception e)
+			else
 			{
-				this.log.error("Could not save attachment: " + e.getMessage(), e);
-				/* skip this attachment */
-				continue;
+				log.warn(String.format("Email sender address <%s> is not set for any user, using anonymous as blog post submitter", creatorEmail));
 			}
-
-			/* add the attachment to the blog post */
-			blogPost.addAttachment(a[j]);
 		}
+
+		return creator;
 	}
 
 	private String getEmailAddressFromMessage(Message m) throws MessagingException
 	{
 		Address[] sender = m.getFrom();
 		String creatorEmail = "";
-		if (sender.length > 0) {
+		if (sender != null && sender.length > 0) {
 			if (sender[0] instanceof InternetAddress) {
 				creatorEmail = ((InternetAddress) sender[0]).getAddress();
 			} else {
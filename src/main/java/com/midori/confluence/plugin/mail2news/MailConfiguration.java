@@ -67,6 +67,150 @@ public class MailConfiguration implements Serializable {
 	/* Whether automatically add the gallery macro if an attachment is an image */
 	private boolean gallerymacro;
 
+	/* The read/write timeout for the mail store and the SMTP transport in seconds,
+	 * 0 means the default timeout */
+	private int timeout;
+
+	/* The maximum time a single run of the job may take in minutes,
+	 * 0 means no limit */
+	private int maxRunTime;
+
+	/* Whether to save identical attachments only once per space and reference them instead */
+	private boolean deduplicate;
+
+	/* Inline images up to this size in bytes (e.g. logos in signatures) are dropped,
+	 * 0 means they are kept */
+	private int signatureImageSize;
+
+	/* Whether to generate the thumbnails for the gallery macro right after saving the images */
+	private boolean renditions;
+
+	/* The number of threads generating thumbnails */
+	private int renditionThreads;
+
+	/* The memory available for decoding images when generating thumbnails, in megabytes */
+	private int renditionMemory;
+
+	/* The time in minutes within which a message should be published,
+	 * a warning is logged for messages published later. 0 means no budget */
+	private int lagBudget;
+
+	/* The number of attempts for messages which failed because of a temporary problem,
+	 * 0 means the default */
+	private int retryAttempts;
+
+	/* The delay before retrying a message in minutes, doubled for every further attempt,
+	 * 0 means the default */
+	private int retryDelay;
+
+	/* The time in minutes for which a node of a cluster owns the mailbox after its last renewal,
+	 * 0 means the default */
+	private int leaseTime;
+
+	/* Whether the HTML of a message is published instead of its plain text, if it has both */
+	private boolean preferHtml;
+
+	/* The depth up to which multiparts may be nested in a message,
+	 * 0 means the default */
+	private int maxPartDepth;
+
+	/* The number of parts a message may have, 0 means the default */
+	private int maxParts;
+
+	/* The size of the decoded text and attachments of a message in megabytes,
+	 * 0 means the default */
+	private int maxMessageSize;
+
+	/* The weights of the spaces when messages are scheduled, e.g. "DS=3, TEAM=2",
+	 * spaces not listed have the weight 1 */
+	private String spaceWeights;
+
+	/* The number of messages handled per space and run, the others are left
+	 * for the next run. 0 means no limit */
+	private int maxMessagesPerSpace;
+
+	/* Whether a message is posted to every space it is addressed to, instead of the first one */
+	private boolean postToAllSpaces;
+
+	/* The spaces and senders whose messages are published as a digest,
+	 * e.g. "BUILDS, monitoring@example.com" */
+	private String digests;
+
+	/* The time between two digests of a space in minutes, 0 means the default */
+	private int digestInterval;
+
+	/* Whether a reply to a published message is added as a comment to its blog post */
+	private boolean replyAsComment;
+
+	/* Whether auto-generated mail (out-of-office replies, delivery failures) is published */
+	private boolean publishAutoGenerated;
+
+	/* Whether mail from mailing lists is discarded */
+	private boolean filterMailingLists;
+
+	/* Further rules for discarding mail, one "Header: regular expression" per line */
+	private String filterRules;
+
+	/* Whether messages are published even if the sender may not add blog posts to the space */
+	private boolean publishWithoutPermission;
+
+	/* The time in minutes a permission check of a sender is cached */
+	private int permissionCacheTime;
+
+	/* The memory in megabytes for the content of the messages being processed */
+	private int memoryBudget;
+
+	/**
+	 * The default read/write timeout in seconds, used if no timeout is set
+	 * (e.g. for configurations saved by an older version).
+	 */
+	public static final int DEFAULT_TIMEOUT = 60;
+
+	/**
+	 * The default number of attempts to publish a message.
+	 */
+	public static final int DEFAULT_RETRY_ATTEMPTS = 6;
+
+	/**
+	 * The default delay before retrying a message in minutes.
+	 */
+	public static final int DEFAULT_RETRY_DELAY = 5;
+
+	/**
+	 * The default time for which a node owns the mailbox in minutes.
+	 */
+	public static final int DEFAULT_LEASE_TIME = 2;
+
+	/**
+	 * The default depth up to which multiparts may be nested.
+	 */
+	public static final int DEFAULT_MAX_PART_DEPTH = 16;
+
+	/**
+	 * The default number of parts of a message.
+	 */
+	public static final int DEFAULT_MAX_PARTS = 500;
+
+	/**
+	 * The default size of the decoded content of a message in megabytes.
+	 */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 100;
+
+	/**
+	 * The default memory in megabytes for the content of the messages being processed.
+	 */
+	public static final int DEFAULT_MEMORY_BUDGET = 64;
+
+	/**
+	 * The default time between two digests in minutes.
+	 */
+	public static final int DEFAULT_DIGEST_INTERVAL = 60;
+
+	/**
+	 * The default time in minutes a permission check of a sender is cached.
+	 */
+	public static final int DEFAULT_PERMISSION_CACHE_TIME = 10;
+
 	/**
 	 * The constructor, fills out default (dummy) values.
 	 */
@@ -79,6 +223,33 @@ public class MailConfiguration implements Serializable {
 		password = "password";
 		secure = false;
 		gallerymacro = false;
+		timeout = DEFAULT_TIMEOUT;
+		maxRunTime = 15;
+		deduplicate = false;
+		signatureImageSize = 0;
+		renditions = false;
+		renditionThreads = 2;
+		renditionMemory = 256;
+		lagBudget = 0;
+		retryAttempts = DEFAULT_RETRY_ATTEMPTS;
+		retryDelay = DEFAULT_RETRY_DELAY;
+		leaseTime = DEFAULT_LEASE_TIME;
+		preferHtml = false;
+		maxPartDepth = DEFAULT_MAX_PART_DEPTH;
+		maxParts = DEFAULT_MAX_PARTS;
+		maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+		spaceWeights = "";
+		maxMessagesPerSpace = 0;
+		postToAllSpaces = false;
+		digests = "";
+		digestInterval = DEFAULT_DIGEST_INTERVAL;
+		replyAsComment = false;
+		publishAutoGenerated = false;
+		filterMailingLists = false;
+		filterRules = "";
+		publishWithoutPermission = false;
+		permissionCacheTime = DEFAULT_PERMISSION_CACHE_TIME;
+		memoryBudget = DEFAULT_MEMORY_BUDGET;
 	}
 
 	/**
@@ -213,6 +384,523 @@ public class MailConfiguration implements Serializable {
 		this.gallerymacro = gallerymacro;
 	}
 
+	/**
+	 * Get the read/write timeout for the mail store and the SMTP transport.
+	 *
+	 * @return The timeout in seconds, never 0.
+	 */
+	public int getTimeout() {
+		return (timeout > 0) ? timeout : DEFAULT_TIMEOUT;
+	}
+
+	/**
+	 * Set the read/write timeout for the mail store and the SMTP transport.
+	 *
+	 * @param timeout The timeout in seconds, 0 for the default timeout.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Get the maximum time a single run of the job may take. When it is
+	 * exceeded, the run is aborted and the remaining messages are left for
+	 * the next run.
+	 *
+	 * @return The maximum run time in minutes, 0 if there is no limit.
+	 */
+	public int getMaxRunTime() {
+		return maxRunTime;
+	}
+
+	/**
+	 * Set the maximum time a single run of the job may take.
+	 *
+	 * @param maxRunTime The maximum run time in minutes, 0 for no limit.
+	 */
+	public void setMaxRunTime(int maxRunTime) {
+		this.maxRunTime = maxRunTime;
+	}
+
+	/**
+	 * Get whether identical attachments are saved only once. A later post
+	 * then contains a reference to the attachment saved first.
+	 *
+	 * @return True if attachments are deduplicated.
+	 */
+	public boolean getDeduplicate() {
+		return deduplicate;
+	}
+
+	/**
+	 * Set whether identical attachments are saved only once.
+	 *
+	 * @param deduplicate Whether to deduplicate attachments.
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * Get the size up to which inline images (e.g. logos in signatures)
+	 * are dropped.
+	 *
+	 * @return The size in bytes, 0 if inline images are kept.
+	 */
+	public int getSignatureImageSize() {
+		return signatureImageSize;
+	}
+
+	/**
+	 * Set the size up to which inline images are dropped.
+	 *
+	 * @param signatureImageSize The size in bytes, 0 to keep all inline images.
+	 */
+	public void setSignatureImageSize(int signatureImageSize) {
+		this.signatureImageSize = signatureImageSize;
+	}
+
+	/**
+	 * Get whether the thumbnails shown by the gallery macro are generated
+	 * right after saving the images, instead of when the post is viewed.
+	 *
+	 * @return True if thumbnails are generated in advance.
+	 */
+	public boolean getRenditions() {
+		return renditions;
+	}
+
+	/**
+	 * Set whether the thumbnails are generated right after saving the images.
+	 *
+	 * @param renditions Whether to generate the thumbnails in advance.
+	 */
+	public void setRenditions(boolean renditions) {
+		this.renditions = renditions;
+	}
+
+	/**
+	 * Get the number of threads generating thumbnails.
+	 *
+	 * @return The number of threads, at least 1.
+	 */
+	public int getRenditionThreads() {
+		return Math.max(renditionThreads, 1);
+	}
+
+	/**
+	 * Set the number of threads generating thumbnails.
+	 *
+	 * @param renditionThreads The number of threads.
+	 */
+	public void setRenditionThreads(int renditionThreads) {
+		this.renditionThreads = renditionThreads;
+	}
+
+	/**
+	 * Get the memory available for decoding images when generating thumbnails.
+	 * Images which need more memory get their thumbnail when they are viewed.
+	 *
+	 * @return The memory in megabytes.
+	 */
+	public int getRenditionMemory() {
+		return (renditionMemory > 0) ? renditionMemory : 256;
+	}
+
+	/**
+	 * Set the memory available for decoding images when generating thumbnails.
+	 *
+	 * @param renditionMemory The memory in megabytes.
+	 */
+	public void setRenditionMemory(int renditionMemory) {
+		this.renditionMemory = renditionMemory;
+	}
+
+	/**
+	 * Get the time within which a message should be published, counted from
+	 * the date of the message. A warning is logged for messages published later.
+	 *
+	 * @return The budget in minutes, 0 if there is no budget.
+	 */
+	public int getLagBudget() {
+		return lagBudget;
+	}
+
+	/**
+	 * Set the time within which a message should be published.
+	 *
+	 * @param lagBudget The budget in minutes, 0 for no budget.
+	 */
+	public void setLagBudget(int lagBudget) {
+		this.lagBudget = lagBudget;
+	}
+
+	/**
+	 * Get the number of attempts to publish a message which failed because of
+	 * a temporary problem (e.g. a database deadlock), before it is given up.
+	 *
+	 * @return The number of attempts.
+	 */
+	public int getRetryAttempts() {
+		return (retryAttempts > 0) ? retryAttempts : DEFAULT_RETRY_ATTEMPTS;
+	}
+
+	/**
+	 * Set the number of attempts to publish a message which failed because of
+	 * a temporary problem.
+	 *
+	 * @param retryAttempts The number of attempts, 0 for the default.
+	 */
+	public void setRetryAttempts(int retryAttempts) {
+		this.retryAttempts = retryAttempts;
+	}
+
+	/**
+	 * Get the delay before retrying a message which failed because of a
+	 * temporary problem. It is doubled for every further attempt.
+	 *
+	 * @return The delay in minutes.
+	 */
+	public int getRetryDelay() {
+		return (retryDelay > 0) ? retryDelay : DEFAULT_RETRY_DELAY;
+	}
+
+	/**
+	 * Set the delay before retrying a message.
+	 *
+	 * @param retryDelay The delay in minutes, 0 for the default.
+	 */
+	public void setRetryDelay(int retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Get the time for which a node of a cluster owns the mailbox. If the
+	 * node dies, another node takes over the mailbox after this time.
+	 *
+	 * @return The lease time in minutes.
+	 */
+	public int getLeaseTime() {
+		return (leaseTime > 0) ? leaseTime : DEFAULT_LEASE_TIME;
+	}
+
+	/**
+	 * Set the time for which a node of a cluster owns the mailbox.
+	 *
+	 * @param leaseTime The lease time in minutes, 0 for the default.
+	 */
+	public void setLeaseTime(int leaseTime) {
+		this.leaseTime = leaseTime;
+	}
+
+	/**
+	 * Get whether the HTML of a message is published instead of its plain
+	 * text, if the message has both. Messages with only one of them are
+	 * always published.
+	 *
+	 * @return True if the HTML is preferred.
+	 */
+	public boolean getPreferHtml() {
+		return preferHtml;
+	}
+
+	/**
+	 * Set whether the HTML of a message is published instead of its plain text.
+	 *
+	 * @param preferHtml Whether to prefer the HTML.
+	 */
+	public void setPreferHtml(boolean preferHtml) {
+		this.preferHtml = preferHtml;
+	}
+
+	/**
+	 * Get the depth up to which multiparts may be nested in a message.
+	 * Deeper messages are rejected.
+	 *
+	 * @return The maximum depth.
+	 */
+	public int getMaxPartDepth() {
+		return (maxPartDepth > 0) ? maxPartDepth : DEFAULT_MAX_PART_DEPTH;
+	}
+
+	/**
+	 * Set the depth up to which multiparts may be nested in a message.
+	 *
+	 * @param maxPartDepth The maximum depth, 0 for the default.
+	 */
+	public void setMaxPartDepth(int maxPartDepth) {
+		this.maxPartDepth = maxPartDepth;
+	}
+
+	/**
+	 * Get the number of parts a message may have, including the multiparts.
+	 * Messages with more parts are rejected.
+	 *
+	 * @return The maximum number of parts.
+	 */
+	public int getMaxParts() {
+		return (maxParts > 0) ? maxParts : DEFAULT_MAX_PARTS;
+	}
+
+	/**
+	 * Set the number of parts a message may have.
+	 *
+	 * @param maxParts The maximum number of parts, 0 for the default.
+	 */
+	public void setMaxParts(int maxParts) {
+		this.maxParts = maxParts;
+	}
+
+	/**
+	 * Get the size up to which the text and attachments of a message are
+	 * decoded. Larger messages are rejected.
+	 *
+	 * @return The maximum size in megabytes.
+	 */
+	public int getMaxMessageSize() {
+		return (maxMessageSize > 0) ? maxMessageSize : DEFAULT_MAX_MESSAGE_SIZE;
+	}
+
+	/**
+	 * Set the size up to which the text and attachments of a message are decoded.
+	 *
+	 * @param maxMessageSize The maximum size in megabytes, 0 for the default.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Get the weights of the spaces. Per round, as many messages of a space
+	 * are handled as its weight, the spaces not listed have the weight 1.
+	 *
+	 * @return The weights as a list of "KEY=weight", separated by commas.
+	 */
+	public String getSpaceWeights() {
+		return (spaceWeights != null) ? spaceWeights : "";
+	}
+
+	/**
+	 * Set the weights of the spaces.
+	 *
+	 * @param spaceWeights The weights as a list of "KEY=weight", separated by commas.
+	 */
+	public void setSpaceWeights(String spaceWeights) {
+		this.spaceWeights = spaceWeights;
+	}
+
+	/**
+	 * Get the number of messages handled per space and run. The other
+	 * messages of the space are left in the mailbox for the next run.
+	 *
+	 * @return The maximum number of messages, 0 if there is no limit.
+	 */
+	public int getMaxMessagesPerSpace() {
+		return maxMessagesPerSpace;
+	}
+
+	/**
+	 * Set the number of messages handled per space and run.
+	 *
+	 * @param maxMessagesPerSpace The maximum number of messages, 0 for no limit.
+	 */
+	public void setMaxMessagesPerSpace(int maxMessagesPerSpace) {
+		this.maxMessagesPerSpace = maxMessagesPerSpace;
+	}
+
+	/**
+	 * Get whether a message is posted to every space it is addressed to.
+	 * Otherwise only the first space is used.
+	 *
+	 * @return True if the message is posted to all spaces.
+	 */
+	public boolean getPostToAllSpaces() {
+		return postToAllSpaces;
+	}
+
+	/**
+	 * Set whether a message is posted to every space it is addressed to.
+	 *
+	 * @param postToAllSpaces Whether to post to all spaces.
+	 */
+	public void setPostToAllSpaces(boolean postToAllSpaces) {
+		this.postToAllSpaces = postToAllSpaces;
+	}
+
+	/**
+	 * Get the spaces and senders whose messages are not published one by one,
+	 * but collected and published as one blog post per digest interval.
+	 *
+	 * @return The space keys and sender addresses, separated by commas.
+	 */
+	public String getDigests() {
+		return (digests != null) ? digests : "";
+	}
+
+	/**
+	 * Set the spaces and senders whose messages are published as a digest.
+	 *
+	 * @param digests The space keys and sender addresses, separated by commas.
+	 */
+	public void setDigests(String digests) {
+		this.digests = digests;
+	}
+
+	/**
+	 * Get the time between two digests of a space. A digest is published
+	 * when its oldest message has waited this long.
+	 *
+	 * @return The interval in minutes.
+	 */
+	public int getDigestInterval() {
+		return (digestInterval > 0) ? digestInterval : DEFAULT_DIGEST_INTERVAL;
+	}
+
+	/**
+	 * Set the time between two digests of a space.
+	 *
+	 * @param digestInterval The interval in minutes, 0 for the default.
+	 */
+	public void setDigestInterval(int digestInterval) {
+		this.digestInterval = digestInterval;
+	}
+
+	/**
+	 * Get whether a reply to a published message is added as a comment to
+	 * its blog post, instead of a blog post of its own. Replies to unknown
+	 * messages are always published as blog posts.
+	 *
+	 * @return True if replies are added as comments.
+	 */
+	public boolean getReplyAsComment() {
+		return replyAsComment;
+	}
+
+	/**
+	 * Set whether a reply to a published message is added as a comment.
+	 *
+	 * @param replyAsComment Whether to add replies as comments.
+	 */
+	public void setReplyAsComment(boolean replyAsComment) {
+		this.replyAsComment = replyAsComment;
+	}
+
+	/**
+	 * Get whether auto-generated mail like out-of-office replies and delivery
+	 * failures is published. Otherwise it is discarded without a reply.
+	 *
+	 * @return True if auto-generated mail is published.
+	 */
+	public boolean getPublishAutoGenerated() {
+		return publishAutoGenerated;
+	}
+
+	/**
+	 * Set whether auto-generated mail is published.
+	 *
+	 * @param publishAutoGenerated Whether to publish auto-generated mail.
+	 */
+	public void setPublishAutoGenerated(boolean publishAutoGenerated) {
+		this.publishAutoGenerated = publishAutoGenerated;
+	}
+
+	/**
+	 * Get whether mail from mailing lists (with a List-Id header) is discarded.
+	 *
+	 * @return True if mail from mailing lists is discarded.
+	 */
+	public boolean getFilterMailingLists() {
+		return filterMailingLists;
+	}
+
+	/**
+	 * Set whether mail from mailing lists is discarded.
+	 *
+	 * @param filterMailingLists Whether to discard mail from mailing lists.
+	 */
+	public void setFilterMailingLists(boolean filterMailingLists) {
+		this.filterMailingLists = filterMailingLists;
+	}
+
+	/**
+	 * Get the further rules for discarding mail. A message is discarded if
+	 * a header matches the regular expression of a rule.
+	 *
+	 * @return The rules, one "Header: regular expression" per line.
+	 */
+	public String getFilterRules() {
+		return (filterRules != null) ? filterRules : "";
+	}
+
+	/**
+	 * Set the further rules for discarding mail.
+	 *
+	 * @param filterRules The rules, one "Header: regular expression" per line.
+	 */
+	public void setFilterRules(String filterRules) {
+		this.filterRules = filterRules;
+	}
+
+	/**
+	 * Get whether messages are published even if the sender may not add
+	 * blog posts to the space. Otherwise such messages are rejected.
+	 *
+	 * @return True if the permissions of the sender are not checked.
+	 */
+	public boolean getPublishWithoutPermission() {
+		return publishWithoutPermission;
+	}
+
+	/**
+	 * Set whether messages are published even if the sender may not add
+	 * blog posts to the space.
+	 *
+	 * @param publishWithoutPermission Whether to skip the permission check.
+	 */
+	public void setPublishWithoutPermission(boolean publishWithoutPermission) {
+		this.publishWithoutPermission = publishWithoutPermission;
+	}
+
+	/**
+	 * Get the time a permission check of a sender is cached. Changes of the
+	 * space permissions take effect at once, other changes (e.g. of the
+	 * groups of a user) after this time.
+	 *
+	 * @return The time in minutes.
+	 */
+	public int getPermissionCacheTime() {
+		return (permissionCacheTime > 0) ? permissionCacheTime : DEFAULT_PERMISSION_CACHE_TIME;
+	}
+
+	/**
+	 * Set the time a permission check of a sender is cached.
+	 *
+	 * @param permissionCacheTime The time in minutes, 0 for the default.
+	 */
+	public void setPermissionCacheTime(int permissionCacheTime) {
+		this.permissionCacheTime = permissionCacheTime;
+	}
+
+	/**
+	 * Get the memory for the decoded text and attachments of the messages
+	 * being processed, shared by all threads. Attachments which do not fit
+	 * are spooled to disk.
+	 *
+	 * @return The memory budget in megabytes.
+	 */
+	public int getMemoryBudget() {
+		return (memoryBudget > 0) ? memoryBudget : DEFAULT_MEMORY_BUDGET;
+	}
+
+	/**
+	 * Set the memory for the content of the messages being processed.
+	 *
+	 * @param memoryBudget The memory budget in megabytes, 0 for the default.
+	 */
+	public void setMemoryBudget(int memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
 	/**
 	 * Convenience method.
 	 *
@@ -220,7 +908,29 @@ public class MailConfiguration implements Serializable {
 	 */
 	public String toString()
 	{
-		return "Server: " + server + " , Protocol: " + protocol + ", Secure: " + secure + ", Port: " + port + " , Username: " + username + ", Password: ****" + ", Gallery macro: " + gallerymacro;
+		return "Server: " + server + " , Protocol: " + protocol + ", Secure: " + secure + ", Port: " + port + " , Username: " + username + ", Password: ****" + ", Gallery macro: " + gallerymacro + ", Timeout: " + getTimeout() + "s, Max run time: " + maxRunTime + "min"
+			+ ", Deduplicate: " + deduplicate + ", Signature image size: " + signatureImageSize
+			+ ", Renditions: " + renditions + ", Rendition threads: " + getRenditionThreads() + ", Rendition memory: " + getRenditionMemory() + "MB"
+			+ ", Lag budget: " + lagBudget + "min"
+			+ ", Retry attempts: " + getRetryAttempts()
+			+ ", Retry delay: " + getRetryDelay() + "min"
+			+ ", Lease time: " + getLeaseTime() + "min"
+			+ ", Prefer HTML: " + preferHtml
+			+ ", Max part depth: " + maxPartDepth
+			+ ", Max parts: " + maxParts
+			+ ", Max message size: " + maxMessageSize
+			+ ", Space weights: " + spaceWeights
+			+ ", Max messages per space: " + maxMessagesPerSpace
+			+ ", Post to all spaces: " + postToAllSpaces
+			+ ", Digests: " + digests
+			+ ", Digest interval: " + getDigestInterval() + "min"
+			+ ", Reply as comment: " + replyAsComment
+			+ ", Publish auto-generated: " + publishAutoGenerated
+			+ ", Filter mailing lists: " + filterMailingLists
+			+ ", Filter rules: " + filterRules
+			+ ", Publish without permission: " + publishWithoutPermission
+			+ ", Permission cache time: " + getPermissionCacheTime() + "min"
+			+ ", Memory budget: " + getMemoryBudget() + "MB";
 	}
 
 
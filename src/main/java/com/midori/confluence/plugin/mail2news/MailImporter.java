@@ -0,0 +1,726 @@
+/**
+ * Imports an archive of messages (an mbox file, a Maildir or a directory of
+ * .eml files) from the server, e.g. to fill a new news space with old
+ * announcements.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+
+/**
+ * The messages are parsed by several threads and published in the order of
+ * the archive through Mail2NewsJob.publish(), so they are handled exactly
+ * like the messages of the mailbox, except that no error messages are sent
+ * to the senders. An mbox file is memory-mapped and split on the "From "
+ * lines.
+ *
+ * The number of messages handled is stored in bandana after every message,
+ * so an interrupted import continues where it stopped when the same archive
+ * is imported again. Messages appended to the archive later are imported
+ * by importing it again.
+ */
+public class MailImporter implements Runnable {
+
+	/**
+	 * The size of the part of an mbox file mapped at a time. A single
+	 * message cannot be larger.
+	 */
+	private static final int WINDOW = 1 << 30;
+
+	/**
+	 * The importer started last, null if none was started.
+	 */
+	private static MailImporter current;
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	private final Mail2NewsJob job;
+	private final BandanaIndex progressIndex;
+	private final TransactionTemplate transactionTemplate;
+	private final File source;
+	private final int threads;
+
+	/* the progress, read by the status page */
+	private volatile boolean running;
+	private volatile boolean cancelled;
+	private volatile int resumedAt;
+	private volatile int handled;
+	private volatile int published;
+	private volatile int invalid;
+	private volatile int failed;
+	private volatile int percent;
+	private volatile String error;
+
+	/**
+	 * Create an importer.
+	 *
+	 * @param job The job used for publishing the messages, with all managers set.
+	 * @param progressIndex The index where the progress of the imported archives is stored.
+	 * @param transactionTemplate The transaction template used for storing the progress.
+	 * @param source The mbox file, Maildir or directory of .eml files to import.
+	 * @param threads The number of threads parsing messages.
+	 */
+	public MailImporter(Mail2NewsJob job, BandanaIndex progressIndex, TransactionTemplate transactionTemplate,
+			File source, int threads)
+	{
+		this.job = job;
+		this.progressIndex = progressIndex;
+		this.transactionTemplate = transactionTemplate;
+		this.source = source;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Start an import in a thread of its own, unless another one is running.
+	 *
+	 * @param importer The import to start.
+	 * @return Returns false if another import is running.
+	 */
+	public static synchronized boolean start(MailImporter importer)
+	{
+		if (current != null && current.isRunning())
+		{
+			return false;
+		}
+		current = importer;
+		importer.running = true;
+		Thread t = new Thread(importer, "mail2news-import");
+		/* never keep confluence from shutting down */
+		t.setDaemon(true);
+		t.start();
+		return true;
+	}
+
+	/**
+	 * Get the import started last, to show its progress.
+	 *
+	 * @return Returns the importer, null if no import was started.
+	 */
+	public static synchronized MailImporter getCurrent()
+	{
+		return current;
+	}
+
+	/**
+	 * Forget the progress of an archive, so it is imported from the beginning.
+	 *
+	 * @param progressIndex The index where the progress is stored.
+	 * @param source The archive.
+	 */
+	public static void resetProgress(BandanaIndex progressIndex, File source)
+	{
+		progressIndex.remove(getProgressKey(source));
+	}
+
+	/**
+	 * Stop the import after the current message. It continues there when
+	 * the archive is imported again.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	/**
+	 * Import the archive.
+	 */
+	public void run()
+	{
+		final String key = getProgressKey(source);
+		final AtomicInteger threadNumber = new AtomicInteger(1);
+		ExecutorService parsers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "mail2news-import-" + threadNumber.getAndIncrement());
+				/* never keep confluence from shutting down */
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		MessageSource messages = null;
+		LinkedList<Future<Parsed>> parsing = new LinkedList<Future<Parsed>>();
+		job.setSendErrorMessages(false);
+		job.setImporting(true);
+		job.startPublishing();
+		try {
+			messages = open(source);
+
+			/* skip the messages handled by an earlier import */
+			String done = transactionTemplate.execute(new TransactionCallback<String>() {
+				public String doInTransaction() {
+					return progressIndex.get(key);
+				}
+			});
+			resumedAt = (done != null) ? Integer.parseInt(done) : 0;
+			for (int i = 0; i < resumedAt; i++)
+			{
+				if (messages.next() == null)
+				{
+					break;
+				}
+			}
+			if (resumedAt > 0)
+			{
+				this.log.info("Resuming import of " + source + " after " + resumedAt + " messages.");
+			}
+
+			/* parse a few messages ahead, but not the whole archive */
+			Session session = Session.getInstance(new Properties(), null);
+			RawMessage raw;
+			while (!cancelled && (raw = messages.next()) != null)
+			{
+				parsing.addLast(parsers.submit(new ParseTask(session, raw)));
+				if (parsing.size() >= threads * 2)
+				{
+					publish(parsing.removeFirst(), key);
+				}
+				percent = messages.getPercent();
+			}
+			while (!cancelled && !parsing.isEmpty())
+			{
+				publish(parsing.removeFirst(), key);
+			}
+			if (!cancelled)
+			{
+				percent = 100;
+			}
+			this.log.info("Imported " + source + ": " + published + " published, " + invalid + " invalid, " + failed + " not readable.");
+		} catch (Exception e) {
+			/* e.g. the database is not available, continue with the next import */
+			this.log.error("Import of " + source + " failed: " + e.getMessage(), e);
+			error = e.getMessage();
+		} finally {
+			discard(parsing, parsers.shutdownNow());
+			if (messages != null)
+			{
+				messages.close();
+			}
+			running = false;
+		}
+	}
+
+	/**
+	 * Release the memory of the messages which were parsed ahead but not
+	 * published, e.g. after the import was cancelled.
+	 *
+	 * @param parsing The messages parsed ahead.
+	 * @param notStarted The tasks which were never started, they hold nothing.
+	 */
+	private void discard(List<Future<Parsed>> parsing, List<Runnable> notStarted)
+	{
+		for (Future<Parsed> next : parsing)
+		{
+			if (notStarted.contains(next))
+			{
+				continue;
+			}
+			try {
+				/* a message being parsed is finished first */
+				next.get().parser.dispose();
+			} catch (Exception e) {
+				/* it failed to parse, nothing to release */
+			}
+		}
+		parsing.clear();
+	}
+
+	/**
+	 * Publish the next message and store the progress.
+	 */
+	private void publish(Future<Parsed> next, final String key) throws Exception
+	{
+		try {
+			Parsed parsed = next.get();
+			if (job.publish(parsed.message, parsed.parser))
+			{
+				published++;
+			}
+			else
+			{
+				invalid++;
+			}
+		} catch (ExecutionException e) {
+			/* the message could not be parsed, skip it */
+			this.log.warn("Could not read message " + (resumedAt + handled + 1) + " of " + source + ": " + e.getCause().getMessage());
+			failed++;
+		} catch (RuntimeException e) {
+			/* the message could not be published, one message does not end the import */
+			this.log.error("Could not publish message " + (resumedAt + handled + 1) + " of " + source + ": " + e.getMessage(), e);
+			failed++;
+		}
+		handled++;
+
+		final String done = "" + (resumedAt + handled);
+		transactionTemplate.execute(new TransactionCallback<Void>() {
+			public Void doInTransaction() {
+				progressIndex.put(key, done);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Open an archive.
+	 */
+	private static MessageSource open(File source) throws IOException
+	{
+		if (!source.exists())
+		{
+			throw new FileNotFoundException(source + " does not exist.");
+		}
+		if (source.isFile())
+		{
+			return new MboxSource(source);
+		}
+
+		List<File> files = new ArrayList<File>();
+		File cur = new File(source, "cur");
+		File nw = new File(source, "new");
+		if (cur.isDirectory() || nw.isDirectory())
+		{
+			/* a Maildir, the names of the files start with the time they were delivered */
+			addFiles(files, nw, null);
+			addFiles(files, cur, null);
+		}
+		else
+		{
+			addFiles(files, source, ".eml");
+		}
+		return new FileSource(files);
+	}
+
+	/**
+	 * Add the files of a directory, sorted by name.
+	 */
+	private static void addFiles(List<File> files, File directory, final String suffix)
+	{
+		File[] list = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return !name.startsWith(".") && (suffix == null || name.toLowerCase().endsWith(suffix));
+			}
+		});
+		if (list != null)
+		{
+			Arrays.sort(list);
+			files.addAll(Arrays.asList(list));
+		}
+	}
+
+	/**
+	 * Get the bandana key of the progress of an archive.
+	 */
+	private static String getProgressKey(File source)
+	{
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			return MessageParser.toHex(digest.digest(source.getAbsolutePath().getBytes("UTF-8")));
+		} catch (Exception e) {
+			/* MD5 and UTF-8 are always available */
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return Returns the imported archive.
+	 */
+	public File getSource()
+	{
+		return source;
+	}
+
+	/**
+	 * @return Returns true while the import is running.
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * @return Returns the number of messages skipped, because an earlier import handled them.
+	 */
+	public int getResumedAt()
+	{
+		return resumedAt;
+	}
+
+	/**
+	 * @return Returns the number of messages handled by this import.
+	 */
+	public int getHandled()
+	{
+		return handled;
+	}
+
+	/**
+	 * @return Returns the number of messages published.
+	 */
+	public int getPublished()
+	{
+		return published;
+	}
+
+	/**
+	 * @return Returns the number of messages which could not be published (e.g. no space).
+	 */
+	public int getInvalid()
+	{
+		return invalid;
+	}
+
+	/**
+	 * @return Returns the number of messages which could not be read.
+	 */
+	public int getFailed()
+	{
+		return failed;
+	}
+
+	/**
+	 * @return Returns the part of the archive read so far, in percent.
+	 */
+	public int getPercent()
+	{
+		return percent;
+	}
+
+	/**
+	 * @return Returns the error which stopped the import, null if there was none.
+	 */
+	public String getError()
+	{
+		return error;
+	}
+
+	/**
+	 * A parsed message.
+	 */
+	private static class Parsed {
+		MimeMessage message;
+		MessageParser parser;
+	}
+
+	/**
+	 * Parses a message in a thread of its own.
+	 */
+	private class ParseTask implements Callable<Parsed> {
+
+		private final Session session;
+		private final RawMessage raw;
+
+		ParseTask(Session session, RawMessage raw)
+		{
+			this.session = session;
+			this.raw = raw;
+		}
+
+		public Parsed call() throws Exception
+		{
+			InputStream is = raw.open();
+			Parsed parsed = new Parsed();
+			try {
+				parsed.message = new MimeMessage(session, is);
+			} finally {
+				is.close();
+			}
+			parsed.parser = job.createParser();
+			try {
+				parsed.parser.parse(parsed.message, parsed.message.getContent());
+			} catch (Exception e) {
+				parsed.parser.dispose();
+				throw e;
+			}
+			return parsed;
+		}
+	}
+
+	/**
+	 * A message of an archive, read by the thread parsing it.
+	 */
+	interface RawMessage {
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * The messages of an archive.
+	 */
+	interface MessageSource {
+
+		/**
+		 * @return Returns the next message, null at the end of the archive.
+		 */
+		RawMessage next() throws IOException;
+
+		/**
+		 * @return Returns the part of the archive read so far, in percent.
+		 */
+		int getPercent();
+
+		void close();
+	}
+
+	/**
+	 * The messages of a Maildir or a directory of .eml files.
+	 */
+	private static class FileSource implements MessageSource {
+
+		private final List<File> files;
+		private int next;
+
+		FileSource(List<File> files)
+		{
+			this.files = files;
+		}
+
+		public RawMessage next()
+		{
+			if (next >= files.size())
+			{
+				return null;
+			}
+			final File file = files.get(next++);
+			return new RawMessage() {
+				public InputStream open() throws IOException {
+					return new FileInputStream(file);
+				}
+			};
+		}
+
+		public int getPercent()
+		{
+			return files.isEmpty() ? 100 : (int) (next * 100L / files.size());
+		}
+
+		public void close()
+		{
+		}
+	}
+
+	/**
+	 * The messages of an mbox file. The file is mapped in windows of 1 GB,
+	 * the messages are slices of the mapped buffer and copied by the thread
+	 * parsing them.
+	 */
+	static class MboxSource implements MessageSource {
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long size;
+
+		/* the mapped window and where it starts in the file */
+		private ByteBuffer window;
+		private long windowStart;
+
+		/* the position of the next "From " line in the window */
+		private int position;
+
+		MboxSource(File source) throws IOException
+		{
+			file = new RandomAccessFile(source, "r");
+			channel = file.getChannel();
+			size = channel.size();
+			map(0);
+			if (size > 0 && findFromLine(window, -1) != 0)
+			{
+				close();
+				throw new IOException(source + " is not an mbox file, it does not start with a \"From \" line.");
+			}
+		}
+
+		public RawMessage next() throws IOException
+		{
+			while (true)
+			{
+				if (windowStart + position >= size)
+				{
+					return null;
+				}
+
+				/* skip the "From " line */
+				int start = indexOf(window, position, '\n');
+				if (start >= 0)
+				{
+					start++;
+					int end = findFromLine(window, start);
+					if (end >= 0 || windowStart + window.limit() >= size)
+					{
+						if (end < 0)
+						{
+							end = window.limit();
+						}
+						ByteBuffer message = window.duplicate();
+						message.position(start);
+						message.limit(end);
+						position = end;
+						final ByteBuffer slice = message.slice();
+						return new RawMessage() {
+							public InputStream open() {
+								return unquote(slice);
+							}
+						};
+					}
+				}
+
+				/* the message continues after the window */
+				if (position == 0)
+				{
+					throw new IOException("Message at offset " + windowStart + " is larger than " + WINDOW + " bytes.");
+				}
+				map(windowStart + position);
+			}
+		}
+
+		public int getPercent()
+		{
+			return (size == 0) ? 100 : (int) ((windowStart + position) * 100 / size);
+		}
+
+		public void close()
+		{
+			try {
+				file.close();
+			} catch (IOException e) {}
+		}
+
+		/**
+		 * Map the window starting at the given offset.
+		 */
+		private void map(long offset) throws IOException
+		{
+			windowStart = offset;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW, size - offset));
+			position = 0;
+		}
+
+		/**
+		 * Find the start of the next "From " line.
+		 */
+		private static int findFromLine(ByteBuffer buffer, int from)
+		{
+			int limit = buffer.limit() - 5;
+			for (int i = from; i < limit; i++)
+			{
+				/* -1 is the start of the buffer */
+				if ((i < 0 || buffer.get(i) == '\n') && buffer.get(i + 1) == 'F' && buffer.get(i + 2) == 'r'
+						&& buffer.get(i + 3) == 'o' && buffer.get(i + 4) == 'm' && buffer.get(i + 5) == ' ')
+				{
+					return i + 1;
+				}
+			}
+			return -1;
+		}
+
+		private static int indexOf(ByteBuffer buffer, int from, char c)
+		{
+			for (int i = from; i < buffer.limit(); i++)
+			{
+				if (buffer.get(i) == c)
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Copy a message, removing the ">" quoting "From " at the start of
+		 * a line (e.g. ">From " becomes "From ").
+		 */
+		private static InputStream unquote(ByteBuffer slice)
+		{
+			byte[] data = new byte[slice.remaining()];
+			slice.duplicate().get(data);
+			int length = 0;
+			boolean lineStart = true;
+			for (int i = 0; i < data.length; i++)
+			{
+				byte b = data[i];
+				if (b == '>' && lineStart)
+				{
+					int j = i;
+					while (j < data.length && data[j] == '>')
+					{
+						j++;
+					}
+					if (j + 5 <= data.length && data[j] == 'F' && data[j + 1] == 'r' && data[j + 2] == 'o'
+							&& data[j + 3] == 'm' && data[j + 4] == ' ')
+					{
+						/* drop one quote */
+						lineStart = false;
+						continue;
+					}
+				}
+				/* copied in place, the copy never overtakes the bytes still to be read */
+				data[length++] = b;
+				lineStart = (b == '\n');
+			}
+			return new ByteArrayInputStream(data, 0, length);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/**
+ * A lease on a mailbox, so only one node of a cluster polls it at a time.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+
+/**
+ * The lease is stored in bandana, which is shared by all nodes, as the
+ * owning node and the time when the lease expires. It is read and written
+ * in a transaction committed while holding the cluster lock of the
+ * mailbox, so two nodes cannot acquire it at the same time.
+ *
+ * The owner renews the lease while it is running. If the node dies, the
+ * lease expires after the lease time and the next node whose job fires
+ * takes over. The lease is released at the end of every run, so the runs
+ * are spread over the nodes whose jobs fire first.
+ */
+public class MailboxLease {
+
+	/**
+	 * The identifier of this node, the name of the JVM (pid@host).
+	 */
+	private static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+	/**
+	 * The prefix of the names of the cluster locks.
+	 */
+	private static final String LOCK_PREFIX = "com.midori.confluence.plugin.mail2news.lease.";
+
+	/**
+	 * The lock used if there is no cluster, e.g. when running outside of confluence.
+	 */
+	private static final Lock localLock = new ReentrantLock();
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	/**
+	 * The leases of all mailboxes, by the hash of the account.
+	 */
+	private final BandanaIndex index;
+
+	/**
+	 * The cluster lock service of confluence, null to lock within this JVM only.
+	 */
+	private final ClusterLockService clusterLockService;
+
+	/**
+	 * The transaction template used for accessing bandana.
+	 */
+	private final TransactionTemplate transactionTemplate;
+
+	/**
+	 * The hash of the account of the current lease, null if no lease is held.
+	 */
+	private String key;
+
+	/**
+	 * The timer renewing the current lease, null if no lease is held.
+	 */
+	private Timer timer;
+
+	/**
+	 * Create a lease.
+	 *
+	 * @param index The index where the leases are stored.
+	 * @param clusterLockService The cluster lock service, null if there is no cluster.
+	 * @param transactionTemplate The transaction template used for accessing bandana.
+	 */
+	public MailboxLease(BandanaIndex index, ClusterLockService clusterLockService, TransactionTemplate transactionTemplate)
+	{
+		this.index = index;
+		this.clusterLockService = clusterLockService;
+		this.transactionTemplate = transactionTemplate;
+	}
+
+	/**
+	 * Acquire the lease of a mailbox and renew it until it is released. If
+	 * the lease cannot be renewed (e.g. because this node stalled longer
+	 * than the lease time and another node took over), the run is aborted.
+	 *
+	 * @param job The job which polls the mailbox.
+	 * @param account The account of the mailbox, e.g. user@server.
+	 * @param leaseTime The lease time in minutes.
+	 * @return Returns null if the lease was acquired, otherwise the node owning it.
+	 */
+	public synchronized String acquire(final Mail2NewsJob job, String account, final int leaseTime)
+	{
+		final String key = getKey(account);
+		final long duration = leaseTime * 60L * 1000L;
+		String owner = update(key, duration, false);
+		if (owner != null)
+		{
+			return owner;
+		}
+		this.key = key;
+
+		/* renew three times per lease time, so a single late renewal does not lose the lease */
+		timer = new Timer("mail2news-lease", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				String owner = update(key, duration, true);
+				if (owner != null)
+				{
+					log.warn("Lost the lease of the mailbox to " + owner + ", aborting.");
+					job.abort("Lost the lease of the mailbox to " + owner + ".");
+					cancel();
+				}
+			}
+		}, duration / 3, duration / 3);
+		return null;
+	}
+
+	/**
+	 * Release the lease, to be called when the run is finished.
+	 */
+	public synchronized void release()
+	{
+		if (key == null)
+		{
+			return;
+		}
+		timer.cancel();
+		timer = null;
+
+		final String key = this.key;
+		Lock lock = getLock(key);
+		lock.lock();
+		try {
+			transactionTemplate.execute(new TransactionCallback<Void>() {
+				public Void doInTransaction() {
+					if (NODE.equals(getOwner(index.get(key))))
+					{
+						index.remove(key);
+					}
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			/* the lease expires anyway */
+			this.log.error("Could not release the lease of the mailbox: " + e.getMessage(), e);
+		} finally {
+			lock.unlock();
+		}
+		this.key = null;
+	}
+
+	/**
+	 * Take or renew a lease.
+	 *
+	 * @param key The hash of the account.
+	 * @param duration The lease time in milliseconds.
+	 * @param renew Whether to renew a lease held by this node, instead of taking a free one.
+	 * @return Returns null if this node owns the lease, otherwise the node owning it.
+	 */
+	private String update(final String key, final long duration, final boolean renew)
+	{
+		Lock lock = getLock(key);
+		lock.lock();
+		try {
+			/* committed before the lock is released */
+			return transactionTemplate.execute(new TransactionCallback<String>() {
+				public String doInTransaction() {
+					String value = index.get(key);
+					String owner = getOwner(value);
+					long now = System.currentTimeMillis();
+					boolean own = NODE.equals(owner);
+					if (owner != null && !own && getExpires(value) > now)
+					{
+						return owner;
+					}
+					if (renew && !own)
+					{
+						/* expired and taken over, or released by someone else */
+						return (owner != null) ? owner : "nobody";
+					}
+					if (owner != null && !own)
+					{
+						log.warn("Taking over the expired lease of the mailbox from " + owner + ".");
+					}
+					index.put(key, (now + duration) + " " + NODE);
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			this.log.error("Could not update the lease of the mailbox: " + e.getMessage(), e);
+			return "unknown";
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the lock protecting a lease.
+	 */
+	private Lock getLock(String key)
+	{
+		if (clusterLockService == null)
+		{
+			return localLock;
+		}
+		return clusterLockService.getLockForName(LOCK_PREFIX + key);
+	}
+
+	/**
+	 * Get the bandana key of the lease of an account, which may be longer
+	 * than a bandana key.
+	 */
+	static String getKey(String account)
+	{
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			return MessageParser.toHex(digest.digest(account.getBytes("UTF-8")));
+		} catch (Exception e) {
+			/* MD5 and UTF-8 are always available */
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get the owner of a lease, stored as "expires node".
+	 */
+	private static String getOwner(String value)
+	{
+		if (value == null || value.indexOf(' ') < 0)
+		{
+			return null;
+		}
+		return value.substring(value.indexOf(' ') + 1);
+	}
+
+	/**
+	 * Get when a lease expires, in milliseconds.
+	 */
+	private static long getExpires(String value)
+	{
+		try {
+			return Long.parseLong(value.substring(0, value.indexOf(' ')));
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * The heap available for the content of the messages being processed,
+ * shared by all threads of the plugin.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+/**
+ * The decoded text and the attachments of a message are held in memory
+ * until the message is published. The parsers allocate their content from
+ * this budget, attachments which do not fit any more are spooled to disk,
+ * so the content of the messages never takes more than the budget of the
+ * heap of confluence, no matter how many threads parse messages and how
+ * large the messages are. Text cannot be spooled, so the parsers reserve
+ * its memory before decoding it and wait while the budget is used up,
+ * until other messages are published and release theirs.
+ */
+public class MemoryBudget {
+
+	private static MemoryBudget instance;
+
+	/**
+	 * The number of bytes which may be allocated.
+	 */
+	private long capacity;
+
+	/**
+	 * The number of bytes currently allocated.
+	 */
+	private long used;
+
+	/**
+	 * The largest number of bytes allocated at once since the last reset.
+	 */
+	private long highWaterMark;
+
+	/**
+	 * Get the budget shared by all threads of the plugin.
+	 *
+	 * @return Returns the budget, with the default capacity until it is set.
+	 */
+	public static synchronized MemoryBudget getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new MemoryBudget(MailConfiguration.DEFAULT_MEMORY_BUDGET * 1024L * 1024L);
+		}
+		return instance;
+	}
+
+	/**
+	 * Create a budget, e.g. for a benchmark.
+	 *
+	 * @param capacity The number of bytes which may be allocated.
+	 */
+	public MemoryBudget(long capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Set the number of bytes which may be allocated, e.g. after the
+	 * configuration changed. Allocations beyond a smaller capacity are
+	 * kept until they are released.
+	 *
+	 * @param capacity The number of bytes.
+	 */
+	public synchronized void setCapacity(long capacity)
+	{
+		this.capacity = capacity;
+		notifyAll();
+	}
+
+	/**
+	 * Allocate bytes if they fit into the budget.
+	 *
+	 * @param bytes The number of bytes.
+	 * @return Returns true if the bytes were allocated, false if the budget
+	 *         is used up and they have to be spooled.
+	 */
+	public synchronized boolean tryAllocate(long bytes)
+	{
+		if (used + bytes > capacity)
+		{
+			return false;
+		}
+		allocate(bytes);
+		return true;
+	}
+
+	/**
+	 * Allocate bytes, waiting for other threads to release theirs while the
+	 * budget is used up. The bytes are allocated beyond the budget when
+	 * only the caller holds memory, it would wait for itself otherwise.
+	 *
+	 * @param bytes The number of bytes.
+	 * @param held The number of bytes the caller already allocated.
+	 * @param timeout The time in milliseconds to wait at most.
+	 * @return Returns true if the bytes were allocated, false if the budget
+	 *         was still used up after the timeout.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	public synchronized boolean acquire(long bytes, long held, long timeout) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		while (used > held && used + bytes > capacity)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+			{
+				return false;
+			}
+			wait(remaining);
+		}
+		allocate(bytes);
+		return true;
+	}
+
+	/**
+	 * Allocate bytes even if they exceed the budget, for content which
+	 * cannot be spooled.
+	 *
+	 * @param bytes The number of bytes.
+	 */
+	public synchronized void allocate(long bytes)
+	{
+		used += bytes;
+		if (used > highWaterMark)
+		{
+			highWaterMark = used;
+		}
+	}
+
+	/**
+	 * Release allocated bytes.
+	 *
+	 * @param bytes The number of bytes.
+	 */
+	public synchronized void release(long bytes)
+	{
+		used = Math.max(0, used - bytes);
+		/* wake up the parsers waiting for memory */
+		notifyAll();
+	}
+
+	/**
+	 * Get the number of bytes which may be allocated.
+	 *
+	 * @return Returns the capacity in bytes.
+	 */
+	public synchronized long getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Get the number of bytes currently allocated.
+	 *
+	 * @return Returns the number of bytes.
+	 */
+	public synchronized long getUsed()
+	{
+		return used;
+	}
+
+	/**
+	 * Get the largest number of bytes allocated at once since the last reset.
+	 *
+	 * @return Returns the number of bytes.
+	 */
+	public synchronized long getHighWaterMark()
+	{
+		return highWaterMark;
+	}
+
+	/**
+	 * Start a new high-water mark at the bytes currently allocated.
+	 */
+	public synchronized void resetHighWaterMark()
+	{
+		highWaterMark = used;
+	}
+}
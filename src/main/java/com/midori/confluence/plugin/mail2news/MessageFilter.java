@@ -0,0 +1,250 @@
+/**
+ * Recognizes auto-generated and bulk mail by its headers, before the content
+ * of the message is downloaded.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The rules follow RFC 3834 and common practice: out-of-office replies,
+ * delivery status notifications and other mail sent by programs carry
+ * Auto-Submitted, Precedence, X-Auto-Response-Suppress or an empty
+ * Return-Path. Mailing lists carry List-Id and "Precedence: list", they
+ * are only filtered if configured, since a list may be subscribed to a
+ * space on purpose. Further rules are given as "Header: regular expression".
+ */
+public class MessageFilter {
+
+	private static final Logger log = Logger.getLogger(MessageFilter.class);
+
+	/**
+	 * The headers of the built-in rules.
+	 */
+	private static final String[] HEADERS = {
+		"Auto-Submitted", "Precedence", "X-Auto-Response-Suppress", "Return-Path", "Content-Type", "List-Id"
+	};
+
+	private static final Pattern BULK_PRECEDENCE = Pattern.compile("\\s*(bulk|junk|auto_reply)\\s*", Pattern.CASE_INSENSITIVE);
+	private static final Pattern LIST_PRECEDENCE = Pattern.compile("\\s*list\\s*", Pattern.CASE_INSENSITIVE);
+	private static final Pattern EMPTY_RETURN_PATH = Pattern.compile("\\s*<\\s*>\\s*");
+
+	/**
+	 * Whether auto-generated mail passes.
+	 */
+	private final boolean autoGenerated;
+
+	/**
+	 * Whether mail from mailing lists is filtered.
+	 */
+	private final boolean mailingLists;
+
+	/**
+	 * The names of the headers of the configured rules.
+	 */
+	private final List<String> ruleHeaders = new ArrayList<String>();
+
+	/**
+	 * The patterns of the configured rules.
+	 */
+	private final List<Pattern> rulePatterns = new ArrayList<Pattern>();
+
+	/**
+	 * Create a filter.
+	 *
+	 * @param autoGenerated Whether auto-generated mail passes the filter.
+	 * @param mailingLists Whether mail from mailing lists is filtered.
+	 * @param rules Further rules, one "Header: regular expression" per line.
+	 *              Invalid rules are logged and ignored.
+	 */
+	public MessageFilter(boolean autoGenerated, boolean mailingLists, String rules)
+	{
+		this.autoGenerated = autoGenerated;
+		this.mailingLists = mailingLists;
+
+		StringTokenizer tok = new StringTokenizer((rules != null) ? rules : "", "\r\n");
+		while (tok.hasMoreTokens())
+		{
+			String rule = tok.nextToken().trim();
+			int colon = rule.indexOf(':');
+			if (rule.length() == 0)
+			{
+				continue;
+			}
+			if (colon < 1)
+			{
+				log.warn("Ignoring filter rule without header: " + rule);
+				continue;
+			}
+			try {
+				rulePatterns.add(Pattern.compile(rule.substring(colon + 1).trim(), Pattern.CASE_INSENSITIVE));
+				ruleHeaders.add(rule.substring(0, colon).trim());
+			} catch (PatternSyntaxException e) {
+				log.warn("Ignoring invalid filter rule " + rule + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Get the headers read by the filter, to fetch them in advance.
+	 *
+	 * @return Returns the names of the headers.
+	 */
+	public Set<String> getHeaderNames()
+	{
+		Set<String> names = new LinkedHashSet<String>();
+		for (int i = 0; i < HEADERS.length; i++)
+		{
+			names.add(HEADERS[i]);
+		}
+		names.addAll(ruleHeaders);
+		return names;
+	}
+
+	/**
+	 * Check whether a message is filtered.
+	 *
+	 * @param message The message.
+	 * @return Returns the reason why the message is filtered, null if it passes.
+	 * @throws MessagingException
+	 */
+	public String match(Message message) throws MessagingException
+	{
+		if (!autoGenerated)
+		{
+			String reason = getAutoGenerated(message);
+			if (reason != null)
+			{
+				return reason;
+			}
+		}
+
+		if (mailingLists)
+		{
+			String[] listId = message.getHeader("List-Id");
+			if (listId != null && listId.length > 0)
+			{
+				return "mailing list " + listId[0].trim();
+			}
+			if (matches(message.getHeader("Precedence"), LIST_PRECEDENCE))
+			{
+				return "Precedence: list";
+			}
+		}
+
+		for (int i = 0; i < ruleHeaders.size(); i++)
+		{
+			if (find(message.getHeader(ruleHeaders.get(i)), rulePatterns.get(i)))
+			{
+				return "rule " + ruleHeaders.get(i) + ": " + rulePatterns.get(i).pattern();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether a message was sent by a program rather than a person,
+	 * e.g. an out-of-office reply or a delivery failure. Such messages must
+	 * never be answered automatically.
+	 *
+	 * @param message The message.
+	 * @return Returns why the message is considered auto-generated, null if it is not.
+	 * @throws MessagingException
+	 */
+	public static String getAutoGenerated(Message message) throws MessagingException
+	{
+		String[] autoSubmitted = message.getHeader("Auto-Submitted");
+		if (autoSubmitted != null && autoSubmitted.length > 0 && !autoSubmitted[0].trim().toLowerCase().startsWith("no"))
+		{
+			return "Auto-Submitted: " + autoSubmitted[0].trim();
+		}
+		if (matches(message.getHeader("Precedence"), BULK_PRECEDENCE))
+		{
+			return "Precedence: " + message.getHeader("Precedence")[0].trim();
+		}
+		String[] suppress = message.getHeader("X-Auto-Response-Suppress");
+		if (suppress != null && suppress.length > 0 && suppress[0].trim().equalsIgnoreCase("All"))
+		{
+			return "X-Auto-Response-Suppress: All";
+		}
+		if (matches(message.getHeader("Return-Path"), EMPTY_RETURN_PATH))
+		{
+			return "empty Return-Path";
+		}
+		String[] contentType = message.getHeader("Content-Type");
+		if (contentType != null && contentType.length > 0 && MimeParameters.isType(contentType[0], "multipart/report"))
+		{
+			return "delivery report";
+		}
+		return null;
+	}
+
+	private static boolean matches(String[] values, Pattern pattern)
+	{
+		for (int i = 0; values != null && i < values.length; i++)
+		{
+			if (pattern.matcher(values[i]).matches())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean find(String[] values, Pattern pattern)
+	{
+		for (int i = 0; values != null && i < values.length; i++)
+		{
+			if (pattern.matcher(values[i]).find())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
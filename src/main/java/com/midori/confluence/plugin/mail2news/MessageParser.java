@@ -0,0 +1,877 @@
+/**
+ * Parses the MIME structure of a message into the text of the blog post
+ * and its attachments.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.confluence.pages.Attachment;
+
+public class MessageParser {
+	private static final Logger log = Logger.getLogger(MessageParser.class);
+
+	/**
+	 * The time in milliseconds to wait for memory for the text while the
+	 * memory budget is used up.
+	 */
+	private static final long TEXT_MEMORY_TIMEOUT = 30 * 1000L;
+
+	/**
+	 * Inline images up to this size in bytes are dropped, 0 to keep all images.
+	 */
+	private final int signatureImageSize;
+
+	/**
+	 * Whether the HTML of the message is published instead of its plain text.
+	 */
+	private final boolean preferHtml;
+
+	/**
+	 * The plain text of the message in storage format.
+	 */
+	private String blogEntryContent;
+
+	/**
+	 * The HTML of the message converted to storage format.
+	 */
+	private String htmlContent;
+
+	/**
+	 * A list of attachments of the message.
+	 */
+	private final LinkedList<Attachment> attachments = new LinkedList<Attachment>();
+
+	/**
+	 * A list of input streams for the attachments.
+	 */
+	private final LinkedList<InputStream> attachmentsInputStreams = new LinkedList<InputStream>();
+
+	/**
+	 * The SHA-256 hashes of the content of the attachments.
+	 */
+	private final Map<Attachment, String> attachmentsHashes = new IdentityHashMap<Attachment, String>();
+
+	/**
+	 * A flag indicating whether the message contains an image
+	 */
+	private boolean containsImage;
+
+	/**
+	 * The content of the attachments, shared by all blog posts of the message.
+	 */
+	private final List<SpooledAttachment> spooledAttachments = new ArrayList<SpooledAttachment>();
+
+	/**
+	 * The depth up to which multiparts may be nested.
+	 */
+	private int maxDepth = MailConfiguration.DEFAULT_MAX_PART_DEPTH;
+
+	/**
+	 * The number of parts the message may have.
+	 */
+	private int maxParts = MailConfiguration.DEFAULT_MAX_PARTS;
+
+	/**
+	 * The number of bytes which may be decoded from the message.
+	 */
+	private long maxBytes = MailConfiguration.DEFAULT_MAX_MESSAGE_SIZE * 1024L * 1024L;
+
+	/**
+	 * The memory for the content of the message, null for no limit.
+	 */
+	private MemoryBudget memoryBudget;
+
+	/**
+	 * The number of bytes allocated from the memory budget.
+	 */
+	private long allocated;
+
+	/**
+	 * Whether the memory for the text was not available within the
+	 * timeout once, the text is then allocated without waiting again.
+	 */
+	private boolean memoryTimedOut;
+
+	/**
+	 * The input streams handed out for the attachments, closed when the
+	 * parser is disposed.
+	 */
+	private final List<InputStream> openStreams = new ArrayList<InputStream>();
+
+	/**
+	 * The number of parts found so far.
+	 */
+	private int parts;
+
+	/**
+	 * The number of bytes decoded so far.
+	 */
+	private long bytes;
+
+	/**
+	 * Create a parser for a single message.
+	 *
+	 * @param signatureImageSize Inline images up to this size in bytes are dropped, 0 to keep all images.
+	 */
+	public MessageParser(int signatureImageSize)
+	{
+		this(signatureImageSize, false);
+	}
+
+	/**
+	 * Create a parser for a single message.
+	 *
+	 * @param signatureImageSize Inline images up to this size in bytes are dropped, 0 to keep all images.
+	 * @param preferHtml Whether the HTML of the message is published instead of its plain text.
+	 */
+	public MessageParser(int signatureImageSize, boolean preferHtml)
+	{
+		this.signatureImageSize = signatureImageSize;
+		this.preferHtml = preferHtml;
+	}
+
+	/**
+	 * Set the limits of the message. The parser stops with a
+	 * MessageLimitException as soon as one of them is exceeded.
+	 *
+	 * @param maxDepth The depth up to which multiparts may be nested.
+	 * @param maxParts The number of parts the message may have.
+	 * @param maxBytes The number of bytes which may be decoded from the message.
+	 */
+	public void setLimits(int maxDepth, int maxParts, long maxBytes)
+	{
+		this.maxDepth = maxDepth;
+		this.maxParts = maxParts;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Set the memory budget the content of the message is allocated from.
+	 * Attachments which do not fit are spooled to temporary files, so
+	 * dispose() has to be called when the message is handled.
+	 *
+	 * @param memoryBudget The budget, shared by all parsers.
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget)
+	{
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Get the text and the attachments of a message.
+	 *
+	 * @param message The message.
+	 * @param content The content of the message, as returned by message.getContent().
+	 * @throws MessageLimitException If the message is nested too deeply, has too many parts or is too large.
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public void parse(Part message, Object content) throws MessagingException, IOException
+	{
+		/* the parts still to handle, in order, instead of recursing into the multiparts */
+		LinkedList<PendingPart> pending = new LinkedList<PendingPart>();
+		if (content instanceof Multipart)
+		{
+			IngestionTrace.addPart();
+			addParts(pending, (Multipart)content, 1);
+		}
+		else if (content instanceof Part)
+		{
+			/* the message only consists of a forwarded message */
+			addPart(pending, (Part)content, 1);
+		}
+		else
+		{
+			handlePart(message);
+			return;
+		}
+
+		while (!pending.isEmpty())
+		{
+			PendingPart p = pending.removeFirst();
+			/* only multiparts are decoded here, the other parts are read once by handlePart */
+			if (p.part.isMimeType("multipart/*"))
+			{
+				Object c = p.part.getContent();
+				if (c instanceof Multipart)
+				{
+					IngestionTrace.addPart();
+					addParts(pending, (Multipart)c, p.depth + 1);
+					continue;
+				}
+			}
+			else if (p.part.isMimeType("message/rfc822"))
+			{
+				/* the parts of a forwarded message are handled like those of the message,
+				 * within the same limits */
+				Object c = p.part.getContent();
+				if (c instanceof Part)
+				{
+					addPart(pending, (Part)c, p.depth + 1);
+					continue;
+				}
+			}
+			handlePart(p.part);
+		}
+	}
+
+	/**
+	 * Get the text of the message in storage format.
+	 *
+	 * @return Returns the text of the first text/plain or text/html part,
+	 *         depending on the preference, null if there is none.
+	 */
+	public String getContent()
+	{
+		if (preferHtml)
+		{
+			return (htmlContent != null) ? htmlContent : blogEntryContent;
+		}
+		return (blogEntryContent != null) ? blogEntryContent : htmlContent;
+	}
+
+	/**
+	 * Get the attachments of the message.
+	 *
+	 * @return Returns the attachments, in the order of the parts.
+	 */
+	public LinkedList<Attachment> getAttachments()
+	{
+		return attachments;
+	}
+
+	/**
+	 * Get the content of the attachments of the message.
+	 *
+	 * @return Returns an input stream for each attachment.
+	 */
+	public LinkedList<InputStream> getAttachmentsInputStreams()
+	{
+		return attachmentsInputStreams;
+	}
+
+	/**
+	 * Get the hashes of the content of the attachments.
+	 *
+	 * @return Returns a map from the attachments to their SHA-256 hash.
+	 */
+	public Map<Attachment, String> getAttachmentsHashes()
+	{
+		return attachmentsHashes;
+	}
+
+	/**
+	 * Prepare the attachments for another blog post of the same message.
+	 * The attachments returned so far are saved with the previous blog post,
+	 * so new attachments are created, reading the content which was decoded
+	 * when parsing the message.
+	 */
+	public void rewind() throws IOException
+	{
+		closeStreams();
+		attachments.clear();
+		attachmentsInputStreams.clear();
+		attachmentsHashes.clear();
+		for (SpooledAttachment spooled : spooledAttachments)
+		{
+			addAttachment(spooled);
+		}
+	}
+
+	/**
+	 * Release the memory of the content and delete the temporary files of
+	 * the attachments. The attachments cannot be read afterwards.
+	 */
+	public void dispose()
+	{
+		closeStreams();
+		for (SpooledAttachment spooled : spooledAttachments)
+		{
+			if (spooled.file != null && !spooled.file.delete())
+			{
+				/* e.g. still being read by an attachment saver which was interrupted */
+				spooled.file.deleteOnExit();
+			}
+		}
+		spooledAttachments.clear();
+		if (memoryBudget != null && allocated > 0)
+		{
+			memoryBudget.release(allocated);
+		}
+		allocated = 0;
+	}
+
+	/**
+	 * Release the content of an attachment which is not published.
+	 *
+	 * @param spooled The content.
+	 */
+	private void discard(SpooledAttachment spooled)
+	{
+		if (spooled.file != null)
+		{
+			spooled.file.delete();
+		}
+		else if (memoryBudget != null)
+		{
+			memoryBudget.release(spooled.size);
+			allocated -= spooled.size;
+		}
+	}
+
+	/**
+	 * Check whether the message contains an image as attachment.
+	 *
+	 * @return Returns true if an attachment is an image.
+	 */
+	public boolean containsImage()
+	{
+		return containsImage;
+	}
+
+	/**
+	 * Add a part to the front of the pending parts, e.g. the content of a
+	 * forwarded message.
+	 *
+	 * @param pending The parts still to handle.
+	 * @param part The part.
+	 * @param depth The depth of the part.
+	 * @throws MessageLimitException If the part is nested too deeply or there are too many.
+	 */
+	private void addPart(LinkedList<PendingPart> pending, Part part, int depth) throws MessageLimitException {
+
+		if (depth > maxDepth)
+		{
+			throw new MessageLimitException("The parts of the message are nested more than " + maxDepth + " levels deep.");
+		}
+		if (++parts > maxParts)
+		{
+			throw new MessageLimitException("The message has more than " + maxParts + " parts.");
+		}
+		pending.addFirst(new PendingPart(part, depth));
+	}
+
+	/**
+	 * Add the parts of a multipart to the front of the pending parts, in
+	 * their order.
+	 *
+	 * @param pending The parts still to handle.
+	 * @param multipart The multipart.
+	 * @param depth The depth of the parts.
+	 * @throws MessageLimitException If the parts are nested too deeply or there are too many.
+	 * @throws MessagingException
+	 */
+	private void addParts(LinkedList<PendingPart> pending, Multipart multipart, int depth) throws MessagingException, MessageLimitException {
+
+		if (depth > maxDepth)
+		{
+			throw new MessageLimitException("The parts of the message are nested more than " + maxDepth + " levels deep.");
+		}
+		int n = multipart.getCount();
+		parts += n;
+		if (parts > maxParts)
+		{
+			throw new MessageLimitException("The message has more than " + maxParts + " parts.");
+		}
+		for (int i = n - 1; i >= 0; i--) {
+			pending.addFirst(new PendingPart(multipart.getBodyPart(i), depth));
+		}
+	}
+
+	/**
+	 * Handle a part of a email message. This is either displayable text or some MIME
+	 * attachment.
+	 *
+	 * @param part The part to handle.
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	private void handlePart(Part part) throws MessagingException, IOException {
+
+		/* get the content type of this part */
+		String contentType = part.getContentType();
+		IngestionTrace.addPart();
+
+		log.debug("Content-Type: " + contentType);
+
+		/* check if the content is printable */
+		if (MimeParameters.isType(contentType, "text/plain") && blogEntryContent == null)
+		{
+			/* get the charset */
+			Charset charset = getCharsetFromHeader(contentType);
+			/* set the blog entry content to this content */
+			InputStream is = new LimitedInputStream(part.getInputStream(), reserveText(part));
+			BufferedReader br = null;
+			if (charset != null)
+			{
+				br = new BufferedReader(new InputStreamReader(is, charset));
+			}
+			else
+			{
+				br = new BufferedReader(new InputStreamReader(is));
+			}
+			blogEntryContent = convertText(br);
+		}
+		else if (MimeParameters.isType(contentType, "text/html") && htmlContent == null
+				&& part.getFileName() == null && !Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()))
+		{
+			/* the HTML is only needed if it is preferred or there is no plain text */
+			if (!preferHtml && blogEntryContent != null)
+			{
+				return;
+			}
+			Charset charset = getCharsetFromHeader(contentType);
+			InputStream is = new LimitedInputStream(part.getInputStream(), reserveText(part));
+			Reader reader = (charset != null) ? new InputStreamReader(is, charset) : new InputStreamReader(is);
+			htmlContent = HtmlConverter.convert(reader);
+		}
+		else
+		{
+			/* the content is not text, so we assume it is some sort of MIME attachment */
+
+			try {
+				/* get the filename */
+				String fileName = part.getFileName();
+
+				/* no filename, ignore this part */
+				if (fileName == null)
+				{
+					log.warn("Attachment with no filename. Ignoring.");
+					return;
+				}
+
+				/* retrieve an input stream to the attachment */
+				InputStream is = new LimitedInputStream(part.getInputStream(), -1);
+
+				/* clean-up the content type (only the part before the first ';' is relevant) */
+				contentType = MimeParameters.getType(contentType);
+
+				if (contentType.toLowerCase().indexOf("image") != -1)
+				{
+					/* this post contains an image as attachment, add the gallery macro to the blog post */
+					containsImage = true;
+				}
+
+				/* compute the hash of the content on the way, to detect duplicates */
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				is = new DigestInputStream(is, digest);
+
+				/* read the attachment into memory, or into a file if the budget is used up */
+				SpooledAttachment spooled = read(is, fileName, contentType);
+
+				/* drop small inline images (e.g. logos in signatures) if configured */
+				if (signatureImageSize > 0 && spooled.size <= signatureImageSize
+						&& contentType.toLowerCase().indexOf("image") != -1
+						&& (Part.INLINE.equalsIgnoreCase(part.getDisposition()) || part.getHeader("Content-ID") != null))
+				{
+					log.debug("Dropping inline image " + fileName + " (" + spooled.size + " bytes).");
+					discard(spooled);
+					return;
+				}
+
+				/* keep the content for further blog posts of the message */
+				spooled.hash = toHex(digest.digest());
+				spooledAttachments.add(spooled);
+				addAttachment(spooled);
+
+			} catch (MessageLimitException e) {
+				throw e;
+			} catch (Exception e) {
+				log.error("Error while saving attachment: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Add an attachment for the current blog post.
+	 *
+	 * @param spooled The content of the attachment.
+	 */
+	private void addAttachment(SpooledAttachment spooled) throws IOException
+	{
+		/* create a new attachment */
+		Attachment a = new Attachment(spooled.fileName, spooled.contentType, spooled.size, "Attachment added by mail2news");
+		Date d = new Date();
+		a.setCreationDate(d);
+		a.setLastModificationDate(d);
+
+		/* add the attachment and the input stream to the attachment to the list
+		 * of attachments of the current blog entry */
+		InputStream is = (spooled.file != null) ? new FileInputStream(spooled.file) : new ByteArrayInputStream(spooled.data);
+		openStreams.add(is);
+		attachments.addLast(a);
+		attachmentsInputStreams.addLast(is);
+		attachmentsHashes.put(a, spooled.hash);
+	}
+
+	/**
+	 * Read the content of an attachment. It is kept in memory as long as it
+	 * fits into the memory budget, otherwise the content read so far and the
+	 * rest are written to a temporary file.
+	 *
+	 * @param is The decoded content.
+	 * @param fileName The name of the attachment.
+	 * @param contentType The type of the attachment.
+	 * @return Returns the content.
+	 * @throws IOException
+	 */
+	private SpooledAttachment read(InputStream is, String fileName, String contentType) throws IOException
+	{
+		SpooledAttachment spooled = new SpooledAttachment(fileName, contentType);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		OutputStream os = baos;
+		long reserved = 0;
+		boolean complete = false;
+		try {
+			byte buf[] = new byte[8192];
+			int numBytes;
+			while ((numBytes = is.read(buf)) > 0)
+			{
+				if (spooled.file == null)
+				{
+					if (memoryBudget == null || memoryBudget.tryAllocate(numBytes))
+					{
+						reserved += numBytes;
+					}
+					else
+					{
+						/* the budget is used up, continue on disk */
+						spooled.file = File.createTempFile("mail2news-", ".part");
+						os = new BufferedOutputStream(new FileOutputStream(spooled.file));
+						baos.writeTo(os);
+						baos = null;
+						memoryBudget.release(reserved);
+						reserved = 0;
+						IngestionStats.getInstance().attachmentSpooled();
+						log.debug("Memory budget used up, spooling attachment " + fileName + " to " + spooled.file + ".");
+					}
+				}
+				os.write(buf, 0, numBytes);
+				spooled.size += numBytes;
+			}
+			if (spooled.file == null)
+			{
+				spooled.data = baos.toByteArray();
+			}
+			complete = true;
+		}
+		finally
+		{
+			if (spooled.file != null)
+			{
+				os.close();
+			}
+			if (memoryBudget != null)
+			{
+				if (complete)
+				{
+					allocated += reserved;
+				}
+				else
+				{
+					memoryBudget.release(reserved);
+				}
+			}
+			if (!complete && spooled.file != null)
+			{
+				spooled.file.delete();
+			}
+		}
+		return spooled;
+	}
+
+	/**
+	 * Reserve the memory for a text part, which cannot be spooled, once
+	 * before it is decoded: the decoded text is not larger than the part,
+	 * nor than what is left of the size limit of the message.
+	 *
+	 * @param part The text part.
+	 * @return Returns the number of bytes reserved.
+	 * @throws MessagingException
+	 * @throws InterruptedIOException If the thread was interrupted while waiting.
+	 */
+	private long reserveText(Part part) throws MessagingException, InterruptedIOException
+	{
+		if (memoryBudget == null)
+		{
+			return 0;
+		}
+		long size = Math.max(0, maxBytes - bytes);
+		if (part.getSize() >= 0)
+		{
+			size = Math.min(size, part.getSize());
+		}
+		/* at most two bytes per character */
+		long reserved = 2L * Math.min(size, memoryBudget.getCapacity() / 2);
+		reserve(reserved);
+		return reserved;
+	}
+
+	/**
+	 * Reserve memory for content which cannot be spooled, i.e. the text.
+	 * Waits while the budget is used up; the memory is allocated anyway
+	 * after the timeout, so a message is never lost because of others,
+	 * whose size is limited as well. After a timeout, the memory for the
+	 * rest of the message is allocated without waiting.
+	 *
+	 * @param bytes The number of bytes.
+	 * @throws InterruptedIOException If the thread was interrupted while waiting.
+	 */
+	private void reserve(long bytes) throws InterruptedIOException
+	{
+		if (memoryBudget == null)
+		{
+			return;
+		}
+		if (memoryTimedOut)
+		{
+			memoryBudget.allocate(bytes);
+		}
+		else
+		{
+			try {
+				if (!memoryBudget.acquire(bytes, allocated, TEXT_MEMORY_TIMEOUT))
+				{
+					log.warn("Memory budget still used up after " + (TEXT_MEMORY_TIMEOUT / 1000) + "s, decoding the text anyway.");
+					memoryBudget.allocate(bytes);
+					memoryTimedOut = true;
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for memory for the text of the message.");
+			}
+		}
+		allocated += bytes;
+	}
+
+	/**
+	 * Close the input streams handed out for the attachments.
+	 */
+	private void closeStreams()
+	{
+		for (InputStream is : openStreams)
+		{
+			try {
+				is.close();
+			} catch (IOException e) {
+				log.debug("Could not close attachment: " + e.getMessage());
+			}
+		}
+		openStreams.clear();
+	}
+
+	/**
+	 * Convert the lines of a text/plain part to storage format.
+	 *
+	 * @param br The text of the part.
+	 * @return Returns the text as a paragraph, with a line break after each line.
+	 * @throws IOException
+	 */
+	public static String convertText(BufferedReader br) throws IOException {
+		String currentLine = null;
+
+		StringBuilder text = new StringBuilder("<p>");
+		while ((currentLine = br.readLine()) != null) {
+			/* the text must not break the storage format, e.g. "Q&A" */
+			for (int i = 0, n = currentLine.length(); i < n; i++)
+			{
+				char c = currentLine.charAt(i);
+				switch (c)
+				{
+				case '&':
+					text.append("&amp;");
+					break;
+				case '<':
+					text.append("&lt;");
+					break;
+				case '>':
+					text.append("&gt;");
+					break;
+				default:
+					text.append(c);
+				}
+			}
+			text.append("<br/>");
+		}
+		text.append("</p>");
+		return text.toString();
+	}
+
+	/**
+	 * Get the charset listed in a "Content-Type" header.
+	 * @param contentType The "Content-Type" header.
+	 * @return Returns the used charset or null if no information is found.
+	 */
+	public static Charset getCharsetFromHeader(String contentType) {
+
+		return MimeParameters.getCharset(contentType);
+	}
+
+	/**
+	 * Convert a hash to a string of hexadecimal digits.
+	 *
+	 * @param hash The hash to convert.
+	 * @return Returns the hash as a string.
+	 */
+	static String toHex(byte[] hash)
+	{
+		StringBuffer sb = new StringBuffer(hash.length * 2);
+		for (int i = 0; i < hash.length; i++)
+		{
+			sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The decoded content of an attachment, in memory or in a temporary file.
+	 */
+	private static class SpooledAttachment {
+		final String fileName;
+		final String contentType;
+		byte[] data;
+		File file;
+		long size;
+		String hash;
+
+		SpooledAttachment(String fileName, String contentType)
+		{
+			this.fileName = fileName;
+			this.contentType = contentType;
+		}
+	}
+
+	/**
+	 * A part waiting to be handled, with the depth of its multipart.
+	 */
+	private static class PendingPart {
+		final Part part;
+		final int depth;
+
+		PendingPart(Part part, int depth)
+		{
+			this.part = part;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * Counts the bytes decoded from the parts against the size limit. Text
+	 * beyond the memory reserved for its part is allocated without waiting.
+	 */
+	private class LimitedInputStream extends FilterInputStream {
+
+		/* the memory reserved for the text not decoded yet, -1 if the bytes are not decoded into text */
+		private long reserved;
+
+		LimitedInputStream(InputStream in, long reserved)
+		{
+			super(in);
+			this.reserved = reserved;
+		}
+
+		public int read() throws IOException
+		{
+			int c = super.read();
+			if (c != -1)
+			{
+				count(1);
+			}
+			return c;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+			if (n > 0)
+			{
+				count(n);
+			}
+			return n;
+		}
+
+		private void count(int n) throws IOException
+		{
+			bytes += n;
+			if (bytes > maxBytes)
+			{
+				throw new MessageLimitException("The text and attachments of the message are larger than " + (maxBytes / 1024 / 1024) + " MB.");
+			}
+			if (reserved >= 0)
+			{
+				/* at most two bytes per character */
+				long needed = 2L * n;
+				if (needed > reserved && memoryBudget != null)
+				{
+					/* the part was larger than expected, e.g. its size was unknown */
+					memoryBudget.allocate(needed - reserved);
+					allocated += needed - reserved;
+				}
+				reserved = Math.max(0, reserved - needed);
+			}
+		}
+	}
+}
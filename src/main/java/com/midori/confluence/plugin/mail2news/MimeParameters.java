@@ -0,0 +1,408 @@
+/**
+ * Parses the type and the parameters of MIME headers like Content-Type and
+ * resolves charsets.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The header is scanned in place, only the value of the requested parameter
+ * is copied out of it. Values may be tokens or quoted strings, and RFC 2231
+ * extended values (<code>name*=charset'lang'value</code>) and continuations
+ * (<code>name*0=...; name*1=...</code>) are decoded.
+ *
+ * Resolved charsets are kept in a small LRU cache, including the names which
+ * are not supported, so that <code>Charset.forName</code> is not called for
+ * every part of every message.
+ */
+public class MimeParameters {
+
+	/**
+	 * The number of charset names kept in the cache.
+	 */
+	private static final int CHARSET_CACHE_SIZE = 32;
+
+	/**
+	 * The highest section number of a continued parameter value.
+	 */
+	private static final int MAX_SECTIONS = 64;
+
+	/**
+	 * The log4j logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(MimeParameters.class);
+
+	/**
+	 * The charsets by name as found in headers, null for unsupported ones.
+	 */
+	private static final Map<String, Charset> charsets = new LinkedHashMap<String, Charset>(CHARSET_CACHE_SIZE * 2, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Charset> eldest)
+		{
+			return size() > CHARSET_CACHE_SIZE;
+		}
+	};
+
+	private MimeParameters()
+	{
+	}
+
+	/**
+	 * Check the type of a header without regard to case and parameters.
+	 *
+	 * @param header The header, for example "text/plain; charset=UTF-8".
+	 * @param type The type in lower case, for example "text/plain".
+	 * @return Returns true if the header has this type.
+	 */
+	public static boolean isType(String header, String type)
+	{
+		if (header == null)
+		{
+			return false;
+		}
+		int start = skipWhitespace(header, 0);
+		int end = start + type.length();
+		if (!header.regionMatches(true, start, type, 0, type.length()))
+		{
+			return false;
+		}
+		return end == header.length() || header.charAt(end) == ';' || isWhitespace(header.charAt(end));
+	}
+
+	/**
+	 * Get the type of a header without its parameters.
+	 *
+	 * @param header The header, for example "text/plain; charset=UTF-8".
+	 * @return Returns the type, for example "text/plain".
+	 */
+	public static String getType(String header)
+	{
+		int end = header.indexOf(';');
+		if (end == -1)
+		{
+			return header.trim();
+		}
+		return header.substring(0, end).trim();
+	}
+
+	/**
+	 * Get the value of a parameter of a header.
+	 *
+	 * @param header The header, for example "text/plain; charset=UTF-8".
+	 * @param name The name of the parameter, without regard to case.
+	 * @return Returns the decoded value or null if the parameter is missing.
+	 */
+	public static String getParameter(String header, String name)
+	{
+		if (header == null)
+		{
+			return null;
+		}
+
+		int length = header.length();
+		int nameLength = name.length();
+		String value = null;
+		/* the sections of an extended or continued value, with the '*' flag */
+		String[] sections = null;
+		boolean[] encoded = null;
+
+		int i = header.indexOf(';');
+		while (i != -1 && i < length)
+		{
+			/* the name of the parameter, up to the '=' */
+			int nameStart = skipWhitespace(header, i + 1);
+			int nameEnd = nameStart;
+			while (nameEnd < length && header.charAt(nameEnd) != '=' && header.charAt(nameEnd) != ';')
+			{
+				nameEnd++;
+			}
+			if (nameEnd == length || header.charAt(nameEnd) == ';')
+			{
+				/* a parameter without value */
+				i = nameEnd;
+				continue;
+			}
+			int valueStart = skipWhitespace(header, nameEnd + 1);
+			while (nameEnd > nameStart && isWhitespace(header.charAt(nameEnd - 1)))
+			{
+				nameEnd--;
+			}
+
+			/* the value, a token or a quoted string */
+			int valueEnd;
+			boolean quoted = valueStart < length && header.charAt(valueStart) == '"';
+			if (quoted)
+			{
+				valueEnd = valueStart + 1;
+				while (valueEnd < length && header.charAt(valueEnd) != '"')
+				{
+					valueEnd += (header.charAt(valueEnd) == '\\') ? 2 : 1;
+				}
+				valueEnd = Math.min(valueEnd, length);
+				i = header.indexOf(';', valueEnd);
+			}
+			else
+			{
+				i = header.indexOf(';', valueStart);
+				valueEnd = (i == -1) ? length : i;
+				while (valueEnd > valueStart && isWhitespace(header.charAt(valueEnd - 1)))
+				{
+					valueEnd--;
+				}
+			}
+
+			/* only the requested parameter is copied */
+			if (nameEnd - nameStart < nameLength || !header.regionMatches(true, nameStart, name, 0, nameLength))
+			{
+				continue;
+			}
+			int suffix = nameStart + nameLength;
+			String v = quoted ? unquote(header, valueStart + 1, valueEnd) : header.substring(valueStart, valueEnd);
+			if (suffix == nameEnd)
+			{
+				value = v;
+				continue;
+			}
+			if (header.charAt(suffix) != '*')
+			{
+				/* another parameter starting with the name */
+				continue;
+			}
+
+			/* name* or name*N or name*N* */
+			int section = 0;
+			boolean isEncoded = header.charAt(nameEnd - 1) == '*';
+			if (suffix + 1 < nameEnd)
+			{
+				try {
+					section = Integer.parseInt(header.substring(suffix + 1, isEncoded ? nameEnd - 1 : nameEnd));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+			else if (!isEncoded)
+			{
+				continue;
+			}
+			if (section < 0 || section >= MAX_SECTIONS)
+			{
+				continue;
+			}
+			if (sections == null)
+			{
+				sections = new String[MAX_SECTIONS];
+				encoded = new boolean[MAX_SECTIONS];
+			}
+			sections[section] = v;
+			encoded[section] = isEncoded;
+		}
+
+		if (sections != null && sections[0] != null)
+		{
+			return decodeSections(sections, encoded);
+		}
+		return value;
+	}
+
+	/**
+	 * Get the charset listed in a header.
+	 *
+	 * @param header The header, for example "text/plain; charset=UTF-8".
+	 * @return Returns the charset or null if it is missing or not supported.
+	 */
+	public static Charset getCharset(String header)
+	{
+		String name = getParameter(header, "charset");
+		if (name == null)
+		{
+			return null;
+		}
+		Charset charset = forName(name);
+		if (charset == null)
+		{
+			log.warn("Unsupported charset in email content (" + name + "). Some characters may be wrong.");
+		}
+		return charset;
+	}
+
+	/**
+	 * Resolve a charset by name using the cache.
+	 *
+	 * @param name The name of the charset.
+	 * @return Returns the charset or null if it is not supported.
+	 */
+	public static Charset forName(String name)
+	{
+		synchronized (charsets)
+		{
+			Charset charset = charsets.get(name);
+			if (charset != null || charsets.containsKey(name))
+			{
+				return charset;
+			}
+		}
+
+		Charset charset = null;
+		try {
+			charset = Charset.forName(name.trim());
+		} catch (Exception e) {
+			/* illegal or unsupported, cached as null */
+		}
+
+		synchronized (charsets)
+		{
+			charsets.put(name, charset);
+		}
+		return charset;
+	}
+
+	/**
+	 * Join the sections of an RFC 2231 value and decode it with the charset
+	 * given in the first section.
+	 */
+	private static String decodeSections(String[] sections, boolean[] encoded)
+	{
+		Charset charset = null;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < sections.length && sections[i] != null; i++)
+		{
+			String s = sections[i];
+			if (i == 0 && encoded[0])
+			{
+				/* charset'language'value */
+				int q1 = s.indexOf('\'');
+				int q2 = (q1 == -1) ? -1 : s.indexOf('\'', q1 + 1);
+				if (q2 != -1)
+				{
+					charset = (q1 > 0) ? forName(s.substring(0, q1)) : null;
+					s = s.substring(q2 + 1);
+				}
+			}
+			if (encoded[i])
+			{
+				sb.append(s);
+			}
+			else
+			{
+				/* literal sections are kept as they are when decoding */
+				for (int j = 0; j < s.length(); j++)
+				{
+					char c = s.charAt(j);
+					if (c == '%')
+					{
+						sb.append("%25");
+					}
+					else
+					{
+						sb.append(c);
+					}
+				}
+			}
+		}
+		return percentDecode(sb, (charset != null) ? charset : forName("ISO-8859-1"));
+	}
+
+	/**
+	 * Decode %XX escapes into bytes of the charset.
+	 */
+	private static String percentDecode(CharSequence s, Charset charset)
+	{
+		byte[] bytes = new byte[s.length()];
+		int n = 0;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c == '%' && i + 2 < s.length() && Character.digit(s.charAt(i + 1), 16) != -1
+					&& Character.digit(s.charAt(i + 2), 16) != -1)
+			{
+				bytes[n++] = (byte)((Character.digit(s.charAt(i + 1), 16) << 4) | Character.digit(s.charAt(i + 2), 16));
+				i += 2;
+			}
+			else if (c < 0x100)
+			{
+				bytes[n++] = (byte)c;
+			}
+			else
+			{
+				bytes[n++] = '?';
+			}
+		}
+		return new String(bytes, 0, n, charset);
+	}
+
+	/**
+	 * Copy a quoted string without the backslashes.
+	 */
+	private static String unquote(String header, int start, int end)
+	{
+		if (header.indexOf('\\', start) == -1 || header.indexOf('\\', start) >= end)
+		{
+			return header.substring(start, end);
+		}
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++)
+		{
+			char c = header.charAt(i);
+			if (c == '\\' && i + 1 < end)
+			{
+				c = header.charAt(++i);
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static int skipWhitespace(String s, int i)
+	{
+		while (i < s.length() && isWhitespace(s.charAt(i)))
+		{
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isWhitespace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Locates the files the plugin keeps between runs, e.g. the retry queue and
+ * the journal, in the shared home of confluence.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.io.File;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.confluence.setup.BootstrapManager;
+import com.atlassian.confluence.setup.BootstrapUtils;
+
+/**
+ * The mailbox is polled by whichever node of a cluster holds its lease, so
+ * the files of a run have to be seen by all nodes. They are kept in the
+ * mail2news directory of the shared home; files of earlier versions of the
+ * plugin, which were kept in the home of the node, are moved there.
+ */
+public class PluginHome {
+
+	private static final Logger log = Logger.getLogger(PluginHome.class);
+
+	private PluginHome()
+	{
+	}
+
+	/**
+	 * Get a file or directory of the plugin in the shared home.
+	 *
+	 * @param name The name of the file or directory.
+	 * @return Returns the file, which may not exist yet.
+	 */
+	public static File getFile(String name)
+	{
+		BootstrapManager bootstrapManager = BootstrapUtils.getBootstrapManager();
+		File file = new File(bootstrapManager.getSharedHome(), "mail2news" + File.separator + name);
+		File local = new File(bootstrapManager.getApplicationHome(), "mail2news" + File.separator + name);
+		if (!file.exists() && local.exists() && !local.equals(file))
+		{
+			/* kept in the home of this node by an earlier version */
+			file.getParentFile().mkdirs();
+			if (local.renameTo(file))
+			{
+				log.info("Moved " + local + " to the shared home " + file + ".");
+			}
+			else
+			{
+				log.warn("Could not move " + local + " to the shared home " + file + ", its content is ignored.");
+			}
+		}
+		return file;
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * Generates the thumbnails of images attached to blog posts
+ * by the mail2news job right after they are saved, so the
+ * first visitor of a post with a gallery does not have to
+ * wait for them. The thumbnails are generated by a small
+ * pool of threads, limited by a memory budget for decoding.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.pages.thumbnail.ThumbnailManager;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+
+public class RenditionGenerator {
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	private final ThumbnailManager thumbnailManager;
+	private final AttachmentManager attachmentManager;
+	private final TransactionTemplate transactionTemplate;
+
+	/**
+	 * The threads generating the thumbnails.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The memory budget for decoding images, in kilobytes.
+	 */
+	private final int memoryBudget;
+
+	/**
+	 * The part of the memory budget which is currently not used, in kilobytes.
+	 */
+	private final Semaphore memory;
+
+	/**
+	 * Create a new rendition generator.
+	 *
+	 * @param thumbnailManager The thumbnail manager generating and storing the thumbnails.
+	 * @param attachmentManager The attachment manager to read the images.
+	 * @param transactionTemplate The template used to generate each thumbnail in a transaction.
+	 * @param threads The number of threads generating thumbnails.
+	 * @param memoryBudget The memory available for decoding images in megabytes.
+	 */
+	public RenditionGenerator(ThumbnailManager thumbnailManager, AttachmentManager attachmentManager, TransactionTemplate transactionTemplate, int threads, int memoryBudget)
+	{
+		this.thumbnailManager = thumbnailManager;
+		this.attachmentManager = attachmentManager;
+		this.transactionTemplate = transactionTemplate;
+		this.memoryBudget = memoryBudget * 1024;
+		this.memory = new Semaphore(this.memoryBudget, true);
+
+		final AtomicInteger threadNumber = new AtomicInteger(1);
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "mail2news-rendition-" + threadNumber.getAndIncrement());
+				/* never keep confluence from shutting down */
+				t.setDaemon(true);
+				/* do not compete with request threads */
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Generate the thumbnail of a saved attachment in the background.
+	 * Attachments which are not images are ignored. The attachment is
+	 * loaded again in the transaction of the thread generating the
+	 * thumbnail, the entity of the caller's session is not used there.
+	 *
+	 * @param attachment The saved attachment, its blog post must be committed.
+	 */
+	public void submit(Attachment attachment)
+	{
+		if (attachment.getContentType() == null || !attachment.getContentType().toLowerCase().startsWith("image"))
+		{
+			return;
+		}
+
+		final long id = attachment.getId();
+		final String fileName = attachment.getFileName();
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					transactionTemplate.execute(new TransactionCallback<Void>() {
+						public Void doInTransaction() {
+							Attachment reloaded = attachmentManager.getAttachment(id);
+							if (reloaded == null)
+							{
+								/* e.g. the blog post was deleted in the meantime */
+								log.debug("Attachment " + fileName + " does not exist any more, not generating a thumbnail.");
+								return null;
+							}
+							generate(reloaded);
+							return null;
+						}
+					});
+				} catch (Exception e) {
+					/* the thumbnail will be generated when the post is viewed */
+					log.warn("Could not generate thumbnail of " + fileName + ": " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait until all submitted thumbnails are generated and stop the threads.
+	 *
+	 * @param timeout The maximum time to wait in milliseconds.
+	 */
+	public void shutdown(long timeout)
+	{
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+			{
+				log.warn("Thumbnails still being generated after " + (timeout / 1000) + " seconds, continuing in the background.");
+			}
+		} catch (InterruptedException ie) {
+			/* the job was aborted, the thumbnails are generated in the background */
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Generate the thumbnail of an image, if the memory needed to decode it
+	 * is available.
+	 *
+	 * @param attachment The image.
+	 */
+	private void generate(Attachment attachment)
+	{
+		if (!thumbnailManager.isThumbnailable(attachment))
+		{
+			return;
+		}
+
+		/* estimate the memory needed to decode the image (4 bytes per pixel) */
+		int needed = (int) Math.min(getDecodedSize(attachment) / 1024 + 1, Integer.MAX_VALUE);
+		if (needed <= 0)
+		{
+			log.debug("Cannot read the size of image " + attachment.getFileName() + ", not generating a thumbnail.");
+			return;
+		}
+		if (needed > memoryBudget)
+		{
+			log.info("Image " + attachment.getFileName() + " needs " + (needed / 1024) + " MB to decode, more than the memory budget. Not generating a thumbnail.");
+			return;
+		}
+
+		memory.acquireUninterruptibly(needed);
+		try {
+			thumbnailManager.getThumbnail(attachment);
+		} catch (Exception e) {
+			log.warn("Could not generate thumbnail of " + attachment.getFileName() + ": " + e.getMessage());
+		} finally {
+			memory.release(needed);
+		}
+	}
+
+	/**
+	 * Get the size of an image once decoded, reading only the header of the image.
+	 *
+	 * @param attachment The image.
+	 * @return Returns the size in bytes or -1 if the image cannot be read.
+	 */
+	private long getDecodedSize(Attachment attachment)
+	{
+		InputStream is = null;
+		ImageInputStream iis = null;
+		try {
+			is = attachmentManager.getAttachmentData(attachment);
+			iis = ImageIO.createImageInputStream(is);
+			if (iis == null)
+			{
+				return -1;
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext())
+			{
+				return -1;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				return 4L * reader.getWidth(0) * reader.getHeight(0);
+			} finally {
+				reader.dispose();
+			}
+		} catch (Exception e) {
+			return -1;
+		} finally {
+			try {
+				if (iis != null)
+				{
+					iis.close();
+				}
+				if (is != null)
+				{
+					is.close();
+				}
+			} catch (Exception e) {}
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/**
+ * A persistent queue of messages which could not be published because of a
+ * temporary problem (e.g. a database deadlock), retried with exponential
+ * backoff until they are published or moved to the dead letters.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Every queued message is stored as two files: the raw message
+ * (<code>id.eml</code>), so it does not have to be downloaded again, and its
+ * state (<code>id.properties</code>) with the number of attempts, the time of
+ * the next attempt and the last error. Dead letters are kept in the
+ * <code>dead</code> subdirectory for the administrator.
+ */
+public class RetryQueue {
+
+	/**
+	 * The longest delay between two attempts.
+	 */
+	private static final long MAX_DELAY = 24 * 60 * 60 * 1000L;
+
+	/* the properties of an entry */
+	private static final String ATTEMPTS = "attempts";
+	private static final String NEXT_ATTEMPT = "nextAttempt";
+	private static final String FIRST_FAILURE = "firstFailure";
+	private static final String ERROR = "error";
+
+	/**
+	 * A counter making the ids of entries created in the same millisecond unique.
+	 */
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	/**
+	 * The directory of the queued messages.
+	 */
+	private final File directory;
+
+	/**
+	 * The directory of the dead letters.
+	 */
+	private final File deadDirectory;
+
+	/**
+	 * Create the queue in the mail2news/retry directory of the shared home.
+	 */
+	public RetryQueue()
+	{
+		this(PluginHome.getFile("retry"));
+	}
+
+	/**
+	 * Create the queue in the given directory.
+	 *
+	 * @param directory The directory where the messages are stored, created if it does not exist.
+	 */
+	public RetryQueue(File directory)
+	{
+		this.directory = directory;
+		this.deadDirectory = new File(directory, "dead");
+	}
+
+	/**
+	 * Add a message which failed for the first time.
+	 *
+	 * @param message The message.
+	 * @param cause The reason why it failed.
+	 * @param delay The delay until the next attempt in milliseconds.
+	 * @return Returns true if the message was queued, false if it could not be stored.
+	 */
+	public boolean add(Message message, Exception cause, long delay)
+	{
+		String id = System.currentTimeMillis() + "-" + counter.incrementAndGet();
+		File eml = new File(directory, id + ".eml");
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs())
+			{
+				throw new IOException("Could not create directory " + directory);
+			}
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(eml));
+			try {
+				message.writeTo(os);
+			} finally {
+				os.close();
+			}
+
+			Entry entry = new Entry(id, new Properties());
+			entry.properties.setProperty(ATTEMPTS, "1");
+			entry.properties.setProperty(FIRST_FAILURE, "" + System.currentTimeMillis());
+			entry.properties.setProperty(NEXT_ATTEMPT, "" + (System.currentTimeMillis() + delay));
+			entry.properties.setProperty(ERROR, "" + cause.getMessage());
+			store(entry);
+			return true;
+		} catch (Exception e) {
+			log.error("Could not add message to the retry queue in " + directory + ": " + e.getMessage(), e);
+			eml.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Get the messages which are due to be retried.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @return Returns the entries whose next attempt is due, the longest due first.
+	 */
+	public List<Entry> getDue(long now)
+	{
+		List<Entry> due = new ArrayList<Entry>();
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".properties");
+			}
+		});
+		if (files == null)
+		{
+			return due;
+		}
+
+		for (int i = 0; i < files.length; i++)
+		{
+			String name = files[i].getName();
+			Entry entry = new Entry(name.substring(0, name.length() - ".properties".length()), new Properties());
+			try {
+				InputStream is = new FileInputStream(files[i]);
+				try {
+					entry.properties.load(is);
+				} finally {
+					is.close();
+				}
+			} catch (IOException e) {
+				log.error("Could not read retry queue entry " + files[i] + ": " + e.getMessage());
+				continue;
+			}
+			if (entry.getNextAttempt() <= now)
+			{
+				due.add(entry);
+			}
+		}
+
+		Collections.sort(due, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				return (e1.getNextAttempt() < e2.getNextAttempt()) ? -1 : ((e1.getNextAttempt() == e2.getNextAttempt()) ? 0 : 1);
+			}
+		});
+		return due;
+	}
+
+	/**
+	 * Load the message of an entry.
+	 *
+	 * @param entry The entry.
+	 * @param session The session of the message.
+	 * @return Returns the message.
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	public MimeMessage load(Entry entry, Session session) throws IOException, MessagingException
+	{
+		InputStream is = new BufferedInputStream(new FileInputStream(new File(directory, entry.id + ".eml")));
+		try {
+			return new MimeMessage(session, is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Remove an entry whose message was handled.
+	 *
+	 * @param entry The entry.
+	 */
+	public void remove(Entry entry)
+	{
+		new File(directory, entry.id + ".properties").delete();
+		new File(directory, entry.id + ".eml").delete();
+	}
+
+	/**
+	 * Schedule the next attempt of an entry which failed again.
+	 *
+	 * @param entry The entry.
+	 * @param cause The reason why it failed.
+	 * @param delay The delay until the next attempt in milliseconds.
+	 */
+	public void retryLater(Entry entry, Exception cause, long delay)
+	{
+		entry.properties.setProperty(ATTEMPTS, "" + (entry.getAttempts() + 1));
+		entry.properties.setProperty(NEXT_ATTEMPT, "" + (System.currentTimeMillis() + delay));
+		entry.properties.setProperty(ERROR, "" + cause.getMessage());
+		try {
+			store(entry);
+		} catch (IOException e) {
+			log.error("Could not update retry queue entry " + entry.id + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Move an entry to the dead letters, it is not retried any more.
+	 *
+	 * @param entry The entry.
+	 * @param cause The reason why it failed the last time.
+	 */
+	public void deadLetter(Entry entry, Exception cause)
+	{
+		entry.properties.setProperty(ERROR, "" + cause.getMessage());
+		try {
+			store(entry);
+			if (!deadDirectory.isDirectory() && !deadDirectory.mkdirs())
+			{
+				throw new IOException("Could not create directory " + deadDirectory);
+			}
+			new File(directory, entry.id + ".eml").renameTo(new File(deadDirectory, entry.id + ".eml"));
+			new File(directory, entry.id + ".properties").renameTo(new File(deadDirectory, entry.id + ".properties"));
+		} catch (IOException e) {
+			log.error("Could not move retry queue entry " + entry.id + " to the dead letters: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Get the number of messages waiting for a retry.
+	 *
+	 * @return Returns the number of queued messages.
+	 */
+	public int size()
+	{
+		return count(directory);
+	}
+
+	/**
+	 * Get the number of dead letters.
+	 *
+	 * @return Returns the number of messages which were not retried any more.
+	 */
+	public int getDeadLetterCount()
+	{
+		return count(deadDirectory);
+	}
+
+	/**
+	 * Compute the delay before an attempt: the given delay for the second
+	 * attempt, doubled for every further attempt, at most a day.
+	 *
+	 * @param attempts The number of failed attempts so far.
+	 * @param delay The delay before the second attempt in milliseconds.
+	 * @return Returns the delay in milliseconds.
+	 */
+	public static long getBackoff(int attempts, long delay)
+	{
+		long backoff = delay;
+		for (int i = 1; i < attempts && backoff < MAX_DELAY; i++)
+		{
+			backoff *= 2;
+		}
+		return Math.min(backoff, MAX_DELAY);
+	}
+
+	private int count(File dir)
+	{
+		String[] names = dir.list(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.endsWith(".properties");
+			}
+		});
+		return (names != null) ? names.length : 0;
+	}
+
+	private void store(Entry entry) throws IOException
+	{
+		/* write a new file and rename it, so a crash does not leave a broken entry */
+		File tmp = new File(directory, entry.id + ".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			entry.properties.store(os, "mail2news retry queue entry");
+		} finally {
+			os.close();
+		}
+		File file = new File(directory, entry.id + ".properties");
+		file.delete();
+		if (!tmp.renameTo(file))
+		{
+			throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+	}
+
+	/**
+	 * A queued message.
+	 */
+	public static class Entry {
+		private final String id;
+		private final Properties properties;
+
+		Entry(String id, Properties properties)
+		{
+			this.id = id;
+			this.properties = properties;
+		}
+
+		public String getId()
+		{
+			return id;
+		}
+
+		/**
+		 * @return Returns the number of failed attempts.
+		 */
+		public int getAttempts()
+		{
+			return Integer.parseInt(properties.getProperty(ATTEMPTS, "1"));
+		}
+
+		/**
+		 * @return Returns the time of the next attempt in milliseconds.
+		 */
+		public long getNextAttempt()
+		{
+			return Long.parseLong(properties.getProperty(NEXT_ATTEMPT, "0"));
+		}
+
+		/**
+		 * @return Returns the time of the first failure in milliseconds.
+		 */
+		public long getFirstFailure()
+		{
+			return Long.parseLong(properties.getProperty(FIRST_FAILURE, "0"));
+		}
+
+		/**
+		 * @return Returns the message of the last error.
+		 */
+		public String getError()
+		{
+			return properties.getProperty(ERROR);
+		}
+	}
+}
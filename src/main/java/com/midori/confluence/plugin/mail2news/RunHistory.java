@@ -0,0 +1,96 @@
+/**
+ * The statistics of the most recent runs of the mail2news
+ * job, kept in memory in a ring buffer of fixed size.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.util.LinkedList;
+import java.util.List;
+
+public class RunHistory {
+
+	/**
+	 * The number of runs kept. With the default trigger (every 5 minutes)
+	 * this covers the last 8 hours.
+	 */
+	public static final int CAPACITY = 96;
+
+	private final RunStatistics[] runs = new RunStatistics[CAPACITY];
+
+	/* the index where the next run is stored */
+	private int next = 0;
+
+	/* the number of runs stored */
+	private int size = 0;
+
+	/**
+	 * Add a run, replacing the oldest one if the history is full.
+	 *
+	 * @param run The statistics of the run.
+	 */
+	public synchronized void add(RunStatistics run)
+	{
+		runs[next] = run;
+		next = (next + 1) % CAPACITY;
+		size = Math.min(size + 1, CAPACITY);
+	}
+
+	/**
+	 * Get the stored runs.
+	 *
+	 * @return Returns the runs, most recent first.
+	 */
+	public synchronized List<RunStatistics> getRuns()
+	{
+		List<RunStatistics> l = new LinkedList<RunStatistics>();
+		for (int i = 1; i <= size; i++)
+		{
+			l.add(runs[(next - i + CAPACITY) % CAPACITY]);
+		}
+		return l;
+	}
+
+	/**
+	 * Get the most recent run.
+	 *
+	 * @return Returns the most recent run, null if there is none.
+	 */
+	public synchronized RunStatistics getLatest()
+	{
+		return (size > 0) ? runs[(next - 1 + CAPACITY) % CAPACITY] : null;
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * The statistics of a single run of the mail2news job,
+ * shown on the status page of the plugin.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class RunStatistics {
+
+	private final Date start = new Date();
+	private final long startNanos = System.nanoTime();
+	private long durationNanos = -1;
+
+	private final AtomicInteger messagesProcessed = new AtomicInteger();
+	private final AtomicInteger messagesFailed = new AtomicInteger();
+	private final AtomicLong bytesProcessed = new AtomicLong();
+
+	/* the time spent in and the number of executions of each stage, by ordinal */
+	private final AtomicLongArray stageNanos = new AtomicLongArray(IngestionStage.values().length);
+	private final AtomicLongArray stageCounts = new AtomicLongArray(IngestionStage.values().length);
+
+	/* the messages left in the INBOX after the run, -1 if unknown */
+	private volatile int backlog = -1;
+
+	/* the date of the oldest message left in the INBOX, null if none or unknown */
+	private volatile Date oldestUnprocessed;
+
+	/* why the run was aborted or failed, null if it finished normally */
+	private volatile String problem;
+
+	/**
+	 * Record the execution of a stage during this run.
+	 *
+	 * @param stage The stage.
+	 * @param nanos The time spent in the stage in nanoseconds.
+	 */
+	void record(IngestionStage stage, long nanos)
+	{
+		stageNanos.addAndGet(stage.ordinal(), nanos);
+		stageCounts.incrementAndGet(stage.ordinal());
+	}
+
+	/**
+	 * Record a handled message.
+	 *
+	 * @param bytes The size of the message in bytes, -1 if unknown.
+	 * @param success Whether the message was published.
+	 */
+	void messageProcessed(long bytes, boolean success)
+	{
+		messagesProcessed.incrementAndGet();
+		if (!success)
+		{
+			messagesFailed.incrementAndGet();
+		}
+		if (bytes > 0)
+		{
+			bytesProcessed.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Mark this run as finished.
+	 */
+	void finish()
+	{
+		durationNanos = System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * Set the messages left in the INBOX after this run.
+	 *
+	 * @param backlog The number of messages left.
+	 * @param oldestUnprocessed The date of the oldest message left, null if none.
+	 */
+	public void setBacklog(int backlog, Date oldestUnprocessed)
+	{
+		this.backlog = backlog;
+		this.oldestUnprocessed = oldestUnprocessed;
+	}
+
+	/**
+	 * Set why this run was aborted or failed.
+	 *
+	 * @param problem The reason.
+	 */
+	public void setProblem(String problem)
+	{
+		this.problem = problem;
+	}
+
+	public Date getStart() {
+		return start;
+	}
+
+	/**
+	 * @return Returns the duration of this run in milliseconds, up to now if it is not finished.
+	 */
+	public long getDurationMillis() {
+		long nanos = (durationNanos >= 0) ? durationNanos : System.nanoTime() - startNanos;
+		return nanos / 1000000;
+	}
+
+	public boolean isFinished() {
+		return durationNanos >= 0;
+	}
+
+	public int getMessagesProcessed() {
+		return messagesProcessed.get();
+	}
+
+	public int getMessagesFailed() {
+		return messagesFailed.get();
+	}
+
+	public long getBytesProcessed() {
+		return bytesProcessed.get();
+	}
+
+	/**
+	 * @return Returns the messages handled per second during this run.
+	 */
+	public double getMessagesPerSecond() {
+		long millis = getDurationMillis();
+		return (millis > 0) ? messagesProcessed.get() * 1000.0 / millis : 0;
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	public Date getOldestUnprocessed() {
+		return oldestUnprocessed;
+	}
+
+	/**
+	 * @return Returns the age of the oldest message left in the INBOX in minutes, -1 if there is none.
+	 */
+	public long getOldestUnprocessedAgeMinutes() {
+		Date oldest = oldestUnprocessed;
+		return (oldest != null) ? (System.currentTimeMillis() - oldest.getTime()) / 60000 : -1;
+	}
+
+	public String getProblem() {
+		return problem;
+	}
+
+	/**
+	 * @return Returns the time spent in each stage during this run in milliseconds, by stage name.
+	 */
+	public Map<String, Long> getStageMillis() {
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		for (IngestionStage stage : IngestionStage.values())
+		{
+			m.put(stage.getAttributeName(), new Long(stageNanos.get(stage.ordinal()) / 1000000));
+		}
+		return m;
+	}
+
+	/**
+	 * @return Returns the number of executions of each stage during this run, by stage name.
+	 */
+	public Map<String, Long> getStageCounts() {
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		for (IngestionStage stage : IngestionStage.values())
+		{
+			m.put(stage.getAttributeName(), new Long(stageCounts.get(stage.ordinal())));
+		}
+		return m;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * The watchdog for a single run of the mail2news job.
+ * It aborts the run when the configured maximum run time
+ * is exceeded, so a hung mail server cannot block the job
+ * (and thus every later trigger) forever.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+public class RunWatchdog {
+
+	/**
+	 * The log to which we will be logging infos and errors.
+	 */
+	protected final Logger log = Logger.getLogger(this.getClass());
+
+	/**
+	 * The timer thread which fires when the run takes too long,
+	 * null if there is no time limit.
+	 */
+	private Timer timer;
+
+	/**
+	 * Start a watchdog for the given job.
+	 *
+	 * @param job The job whose run should be watched.
+	 * @param maxRunTime The maximum run time in minutes, 0 for no limit.
+	 */
+	public RunWatchdog(Mail2NewsJob job, int maxRunTime)
+	{
+		this(job, maxRunTime * 60L * 1000L);
+	}
+
+	/**
+	 * Start a watchdog for the given job.
+	 *
+	 * @param job The job whose run should be watched.
+	 * @param timeout The maximum run time in milliseconds, 0 for no limit.
+	 */
+	RunWatchdog(final Mail2NewsJob job, final long timeout)
+	{
+		if (timeout <= 0)
+		{
+			/* no limit, nothing to watch */
+			return;
+		}
+
+		/* use a daemon thread, the watchdog must never keep confluence from shutting down */
+		timer = new Timer("mail2news-watchdog", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				log.warn("Run of the mail2news job exceeded the maximum run time of " + (timeout / 60000) + " minutes, aborting.");
+				job.abort("Maximum run time of " + (timeout / 60000) + " minutes exceeded.");
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Stop the watchdog, to be called when the run is finished.
+	 */
+	public void cancel()
+	{
+		if (timer != null)
+		{
+			timer.cancel();
+			timer = null;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/**
+ * Decides whether the sender of a message may add blog posts or comments
+ * to a space, remembering the decisions for a while.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.confluence.event.events.security.SpacePermissionChangeEvent;
+import com.atlassian.confluence.security.SpacePermission;
+import com.atlassian.confluence.security.SpacePermissionManager;
+import com.atlassian.confluence.spaces.Space;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.user.User;
+
+/**
+ * The decisions are cached by the permission, the sender address and the space key, so
+ * repeated mail from a sender who may not post to a space causes neither a
+ * lookup of the user nor a permission check. All decisions are dropped when
+ * a space permission changes; changes which do not raise an event (e.g. of
+ * group memberships in an external directory) take effect when a decision
+ * expires. The jobs share one authorizer, which is registered for the
+ * events until the plugin is disabled.
+ */
+public class SenderAuthorizer {
+
+	/**
+	 * The maximum number of decisions kept, the least recently used are
+	 * dropped first.
+	 */
+	private static final int MAX_DECISIONS = 10000;
+
+	private static SenderAuthorizer instance;
+
+	private final Logger log = Logger.getLogger(SenderAuthorizer.class);
+
+	private final SpacePermissionManager spacePermissionManager;
+
+	/**
+	 * The publisher this authorizer is registered with, null if it is not
+	 * registered for events.
+	 */
+	private EventPublisher eventPublisher;
+
+	/**
+	 * The time in milliseconds a decision is kept.
+	 */
+	private volatile long timeToLive;
+
+	/**
+	 * The time a decision expires, by the permission, sender address and space key.
+	 * Negative times are rejections.
+	 */
+	private final Map<String, Long> decisions = new LinkedHashMap<String, Long>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+		{
+			return size() > MAX_DECISIONS;
+		}
+	};
+
+	/**
+	 * Get the authorizer shared by all jobs of the plugin. It is created
+	 * and registered for the changes of the space permissions the first
+	 * time this method is called.
+	 *
+	 * @param spacePermissionManager The permissions of the spaces.
+	 * @param eventPublisher The publisher of the events of confluence, may be
+	 *                       null, then decisions are only dropped when they expire.
+	 * @param timeToLive The time in milliseconds a decision is kept.
+	 * @return Returns the authorizer.
+	 */
+	public static synchronized SenderAuthorizer getInstance(SpacePermissionManager spacePermissionManager, EventPublisher eventPublisher, long timeToLive)
+	{
+		if (instance == null)
+		{
+			instance = new SenderAuthorizer(spacePermissionManager, timeToLive);
+		}
+		else
+		{
+			instance.setTimeToLive(timeToLive);
+		}
+		if (instance.eventPublisher == null && eventPublisher != null)
+		{
+			/* drop the decisions when the space permissions change */
+			eventPublisher.register(instance);
+			instance.eventPublisher = eventPublisher;
+		}
+		return instance;
+	}
+
+	/**
+	 * Unregister the shared authorizer from the events and drop it, e.g. when
+	 * the plugin is disabled. The next call of getInstance() creates a new one.
+	 */
+	public static synchronized void unregister()
+	{
+		if (instance == null)
+		{
+			return;
+		}
+		if (instance.eventPublisher != null)
+		{
+			instance.eventPublisher.unregister(instance);
+			instance.eventPublisher = null;
+		}
+		instance = null;
+	}
+
+	/**
+	 * Create an authorizer, which is not registered for events.
+	 *
+	 * @param spacePermissionManager The permissions of the spaces.
+	 * @param timeToLive The time in milliseconds a decision is kept.
+	 */
+	public SenderAuthorizer(SpacePermissionManager spacePermissionManager, long timeToLive)
+	{
+		this.spacePermissionManager = spacePermissionManager;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Set the time a decision is kept, e.g. after the configuration changed.
+	 *
+	 * @param timeToLive The time in milliseconds.
+	 */
+	public void setTimeToLive(long timeToLive)
+	{
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Get the cached decision whether a sender may add blog posts to a space.
+	 *
+	 * @param email The address of the sender, may be empty.
+	 * @param space The space.
+	 * @return Returns true if the sender may post, false if not, or null if
+	 *         the decision is unknown or expired.
+	 */
+	public Boolean getDecision(String email, Space space)
+	{
+		return getDecision(email, space, SpacePermission.EDITBLOG_PERMISSION);
+	}
+
+	/**
+	 * Get the cached decision for a permission of a sender in a space.
+	 *
+	 * @param email The address of the sender, may be empty.
+	 * @param space The space.
+	 * @param permission The space permission, e.g. SpacePermission.COMMENT_PERMISSION.
+	 * @return Returns true if the sender has the permission, false if not, or
+	 *         null if the decision is unknown or expired.
+	 */
+	public Boolean getDecision(String email, Space space, String permission)
+	{
+		String key = getKey(email, space, permission);
+		synchronized (decisions)
+		{
+			Long expiry = decisions.get(key);
+			if (expiry == null)
+			{
+				return null;
+			}
+			if (Math.abs(expiry.longValue()) < System.currentTimeMillis())
+			{
+				decisions.remove(key);
+				return null;
+			}
+			return Boolean.valueOf(expiry.longValue() > 0);
+		}
+	}
+
+	/**
+	 * Check whether a user may add blog posts to a space and cache the
+	 * decision for the address of the sender. Has to be called within a
+	 * transaction.
+	 *
+	 * @param email The address of the sender, may be empty.
+	 * @param space The space.
+	 * @param user The user of the sender, null for an unknown sender who
+	 *             needs the permission of anonymous users.
+	 * @return Returns true if the user may add blog posts to the space.
+	 */
+	public boolean authorize(String email, Space space, User user)
+	{
+		return authorize(email, space, user, SpacePermission.EDITBLOG_PERMISSION);
+	}
+
+	/**
+	 * Check whether a user has a permission in a space and cache the
+	 * decision for the address of the sender. Has to be called within a
+	 * transaction.
+	 *
+	 * @param email The address of the sender, may be empty.
+	 * @param space The space.
+	 * @param user The user of the sender, null for an unknown sender who
+	 *             needs the permission of anonymous users.
+	 * @param permission The space permission, e.g. SpacePermission.COMMENT_PERMISSION.
+	 * @return Returns true if the user has the permission in the space.
+	 */
+	public boolean authorize(String email, Space space, User user, String permission)
+	{
+		boolean permitted = spacePermissionManager.hasPermission(permission, space, user);
+		long expiry = System.currentTimeMillis() + timeToLive;
+		synchronized (decisions)
+		{
+			decisions.put(getKey(email, space, permission), Long.valueOf(permitted ? expiry : -expiry));
+		}
+		if (!permitted)
+		{
+			log.info("<" + email + "> (" + ((user != null) ? user.getName() : "anonymous") + ") does not have the permission " + permission + " in space " + space.getKey() + ".");
+		}
+		return permitted;
+	}
+
+	/**
+	 * Drop all decisions.
+	 */
+	public void clear()
+	{
+		synchronized (decisions)
+		{
+			decisions.clear();
+		}
+	}
+
+	/**
+	 * Drop all decisions when a space permission is granted or revoked.
+	 *
+	 * @param event The event of the change.
+	 */
+	@EventListener
+	public void spacePermissionChanged(SpacePermissionChangeEvent event)
+	{
+		log.debug("Space permissions changed, dropping the cached decisions.");
+		clear();
+	}
+
+	/**
+	 * Get the key of a decision.
+	 */
+	private static String getKey(String email, Space space, String permission)
+	{
+		return permission + " " + space.getKey() + " " + ((email != null) ? email.toLowerCase() : "");
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * Orders the messages of a run so that every space gets its turn, instead of
+ * handling them in the order of the INBOX.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The messages are put into a queue per space. The queues are drained round
+ * robin, taking as many messages from a queue per round as the weight of its
+ * space (1 by default), starting with the space of the oldest message. So a
+ * space flooded with messages delays the messages of the other spaces by at
+ * most one message per round, and if the run is aborted because it takes too
+ * long, the other spaces have been served.
+ *
+ * If a maximum per space is set, the messages of a space beyond it are not
+ * returned at all and stay in the mailbox for the next run.
+ *
+ * @param <T> The type of the items, e.g. the index of the message.
+ */
+public class SpaceScheduler<T> {
+
+	private static final Logger log = Logger.getLogger(SpaceScheduler.class);
+
+	/**
+	 * The weights of the spaces by upper case space key.
+	 */
+	private final Map<String, Integer> weights;
+
+	/**
+	 * The number of messages per space and run, 0 for no limit.
+	 */
+	private final int maxPerSpace;
+
+	/**
+	 * The queues by upper case space key, in the order of their first message.
+	 */
+	private final Map<String, LinkedList<T>> queues = new LinkedHashMap<String, LinkedList<T>>();
+
+	/**
+	 * The items without space, returned first.
+	 */
+	private final List<T> unscheduled = new ArrayList<T>();
+
+	/**
+	 * The number of items left for the next run.
+	 */
+	private int deferred;
+
+	/**
+	 * Create a scheduler for one run.
+	 *
+	 * @param weights The weights of the spaces, e.g. "DS=3, TEAM=2".
+	 * @param maxPerSpace The number of messages per space and run, 0 for no limit.
+	 */
+	public SpaceScheduler(String weights, int maxPerSpace)
+	{
+		this.weights = parseWeights(weights);
+		this.maxPerSpace = maxPerSpace;
+	}
+
+	/**
+	 * Parse the weights of the spaces. Invalid entries are logged and ignored.
+	 *
+	 * @param weights The weights as a list of "KEY=weight", separated by commas.
+	 * @return Returns the weights by upper case space key.
+	 */
+	static Map<String, Integer> parseWeights(String weights)
+	{
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		if (weights == null)
+		{
+			return result;
+		}
+		StringTokenizer tok = new StringTokenizer(weights, ",;\n");
+		while (tok.hasMoreTokens())
+		{
+			String entry = tok.nextToken().trim();
+			int eq = entry.indexOf('=');
+			if (entry.length() == 0)
+			{
+				continue;
+			}
+			try {
+				if (eq == -1)
+				{
+					throw new NumberFormatException("missing weight");
+				}
+				int weight = Integer.parseInt(entry.substring(eq + 1).trim());
+				if (weight < 1)
+				{
+					throw new NumberFormatException("weight must be at least 1");
+				}
+				result.put(entry.substring(0, eq).trim().toUpperCase(), new Integer(weight));
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring invalid space weight \"" + entry + "\": " + e.getMessage());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add an item to the queue of its space.
+	 *
+	 * @param spaceKey The key of the space, null if the item is handled first without limit.
+	 * @param item The item.
+	 */
+	public void add(String spaceKey, T item)
+	{
+		if (spaceKey == null)
+		{
+			unscheduled.add(item);
+			return;
+		}
+		String key = spaceKey.toUpperCase();
+		LinkedList<T> queue = queues.get(key);
+		if (queue == null)
+		{
+			queue = new LinkedList<T>();
+			queues.put(key, queue);
+		}
+		queue.addLast(item);
+	}
+
+	/**
+	 * Get the items in the order in which they are handled. The items beyond
+	 * the maximum per space are left out.
+	 *
+	 * @return Returns the items to handle in this run.
+	 */
+	public List<T> drain()
+	{
+		List<T> order = new ArrayList<T>(unscheduled);
+		unscheduled.clear();
+
+		/* cut the queues to the maximum */
+		if (maxPerSpace > 0)
+		{
+			for (Map.Entry<String, LinkedList<T>> e : queues.entrySet())
+			{
+				LinkedList<T> queue = e.getValue();
+				int excess = queue.size() - maxPerSpace;
+				if (excess > 0)
+				{
+					log.info("Space " + e.getKey() + " has " + queue.size() + " messages, leaving " + excess + " for the next run.");
+					while (queue.size() > maxPerSpace)
+					{
+						queue.removeLast();
+					}
+					deferred += excess;
+				}
+			}
+		}
+
+		/* weighted round robin */
+		boolean more = true;
+		while (more)
+		{
+			more = false;
+			for (Map.Entry<String, LinkedList<T>> e : queues.entrySet())
+			{
+				LinkedList<T> queue = e.getValue();
+				for (int n = getWeight(e.getKey()); n > 0 && !queue.isEmpty(); n--)
+				{
+					order.add(queue.removeFirst());
+				}
+				more |= !queue.isEmpty();
+			}
+		}
+		queues.clear();
+		return order;
+	}
+
+	/**
+	 * Get the number of items left out by drain() because of the maximum per space.
+	 *
+	 * @return Returns the number of items left for the next run.
+	 */
+	public int getDeferred()
+	{
+		return deferred;
+	}
+
+	private int getWeight(String key)
+	{
+		Integer weight = weights.get(key);
+		return (weight != null) ? weight.intValue() : 1;
+	}
+}
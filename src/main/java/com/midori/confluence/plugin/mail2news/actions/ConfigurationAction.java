@@ -161,6 +161,11 @@ public class ConfigurationAction extends ConfluenceActionSupport {
 			/* set connection timeout (10 seconds) */
 			prop.setProperty(propertyPrefix.concat("connectiontimeout"), "10000");
 
+			/* set read and write timeout */
+			String timeout = "" + (config.getTimeout() * 1000);
+			prop.setProperty(propertyPrefix.concat("timeout"), timeout);
+			prop.setProperty(propertyPrefix.concat("writetimeout"), timeout);
+
 			/* get the session for connecting to the mail server */
 			Session session = Session.getInstance(prop, null);
 
@@ -0,0 +1,231 @@
+/**
+ * The action for importing an archive of messages stored on the server and
+ * showing the progress of the import.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news.actions;
+
+import java.io.File;
+
+import com.atlassian.confluence.core.ConfluenceActionSupport;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.pages.CommentManager;
+import com.atlassian.confluence.pages.PageManager;
+import com.atlassian.confluence.security.SpacePermissionManager;
+import com.atlassian.confluence.spaces.SpaceManager;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import com.midori.confluence.plugin.mail2news.BandanaIndex;
+import com.midori.confluence.plugin.mail2news.ConfigurationManager;
+import com.midori.confluence.plugin.mail2news.Mail2NewsJob;
+import com.midori.confluence.plugin.mail2news.MailImporter;
+
+public class ImportAction extends ConfluenceActionSupport {
+
+	/* The managers passed to the job publishing the messages */
+	private PageManager pageManager;
+	private CommentManager commentManager;
+	private SpaceManager spaceManager;
+	private AttachmentManager attachmentManager;
+	private UserAccessor userAccessor;
+	private TransactionTemplate transactionTemplate;
+	private SpacePermissionManager spacePermissionManager;
+	private EventPublisher eventPublisher;
+
+	/* The mbox file, Maildir or directory of .eml files on the server */
+	private String path;
+
+	/* The number of threads parsing messages */
+	private int threads = 4;
+
+	/* Whether to import the archive from the beginning, even if it was imported before */
+	private boolean restart;
+
+	/* The string for the result of starting the import */
+	private String importResult;
+
+	public void setPageManager(PageManager pageManager) {
+		this.pageManager = pageManager;
+	}
+
+	public void setCommentManager(CommentManager commentManager) {
+		this.commentManager = commentManager;
+	}
+
+	public void setSpaceManager(SpaceManager spaceManager) {
+		this.spaceManager = spaceManager;
+	}
+
+	public void setAttachmentManager(AttachmentManager attachmentManager) {
+		this.attachmentManager = attachmentManager;
+	}
+
+	public void setUserAccessor(UserAccessor userAccessor) {
+		this.userAccessor = userAccessor;
+	}
+
+	public void setTransactionTemplate(TransactionTemplate transactionTemplate) {
+		this.transactionTemplate = transactionTemplate;
+	}
+
+	public void setSpacePermissionManager(SpacePermissionManager spacePermissionManager) {
+		this.spacePermissionManager = spacePermissionManager;
+	}
+
+	public void setEventPublisher(EventPublisher eventPublisher) {
+		this.eventPublisher = eventPublisher;
+	}
+
+	/**
+	 * This action displays the form and the progress of the last import.
+	 *
+	 * @return Result of the action
+	 */
+	public String doDefault() throws Exception {
+		return ConfluenceActionSupport.INPUT;
+	}
+
+	/**
+	 * This action starts an import.
+	 *
+	 * @return Result of the action
+	 */
+	public String execute() throws Exception {
+		if (path == null || path.trim().length() == 0)
+		{
+			importResult = "Enter the path of the archive on the server.";
+			return ConfluenceActionSupport.INPUT;
+		}
+		final File source = new File(path.trim());
+		if (!source.exists())
+		{
+			importResult = source + " does not exist on the server.";
+			return ConfluenceActionSupport.INPUT;
+		}
+
+		if (spacePermissionManager == null && !new ConfigurationManager().getMailConfiguration().getPublishWithoutPermission())
+		{
+			/* the permissions of the senders cannot be checked */
+			importResult = "The space permissions are not available, the permissions of the senders cannot be checked.";
+			return ConfluenceActionSupport.INPUT;
+		}
+
+		/* a job of its own, it must not interfere with the scheduled runs */
+		Mail2NewsJob job = new Mail2NewsJob();
+		job.setPageManager(pageManager);
+		job.setCommentManager(commentManager);
+		job.setSpaceManager(spaceManager);
+		job.setAttachmentManager(attachmentManager);
+		job.setUserAccessor(userAccessor);
+		job.setTransactionTemplate(transactionTemplate);
+		job.setSpacePermissionManager(spacePermissionManager);
+		job.setEventPublisher(eventPublisher);
+
+		final BandanaIndex progressIndex = new BandanaIndex("import");
+		if (restart)
+		{
+			transactionTemplate.execute(new TransactionCallback<Void>() {
+				public Void doInTransaction() {
+					MailImporter.resetProgress(progressIndex, source);
+					return null;
+				}
+			});
+		}
+
+		MailImporter importer = new MailImporter(job, progressIndex, transactionTemplate, source, threads);
+		if (!MailImporter.start(importer))
+		{
+			importResult = "Another import is running.";
+			return ConfluenceActionSupport.INPUT;
+		}
+		importResult = "Import of " + source + " started.";
+		return ConfluenceActionSupport.SUCCESS;
+	}
+
+	/**
+	 * This action stops the running import after the current message.
+	 *
+	 * @return Result of the action
+	 */
+	public String cancel() throws Exception {
+		MailImporter importer = MailImporter.getCurrent();
+		if (importer != null && importer.isRunning())
+		{
+			importer.cancel();
+			importResult = "The import stops after the current message.";
+		}
+		return ConfluenceActionSupport.SUCCESS;
+	}
+
+	/**
+	 * Get the import started last.
+	 *
+	 * @return Returns the importer, null if no import was started.
+	 */
+	public MailImporter getImporter() {
+		return MailImporter.getCurrent();
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public boolean getRestart() {
+		return restart;
+	}
+
+	public void setRestart(boolean restart) {
+		this.restart = restart;
+	}
+
+	public String getImportResult() {
+		return importResult;
+	}
+}
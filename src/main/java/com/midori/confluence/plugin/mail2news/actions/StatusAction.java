@@ -0,0 +1,186 @@
+/**
+ * The action showing the status of the mail2news job:
+ * the statistics of the recent runs and the messages
+ * left in the mailbox.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news.actions
+ */
+
+package com.midori.confluence.plugin.mail2news.actions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.atlassian.confluence.core.ConfluenceActionSupport;
+import com.midori.confluence.plugin.mail2news.IngestionStage;
+import com.midori.confluence.plugin.mail2news.IngestionStats;
+import com.midori.confluence.plugin.mail2news.LatencyHistogram;
+import com.midori.confluence.plugin.mail2news.MemoryBudget;
+import com.midori.confluence.plugin.mail2news.RunStatistics;
+
+public class StatusAction extends ConfluenceActionSupport {
+
+	/* The statistics of the mail2news job */
+	private final IngestionStats stats = IngestionStats.getInstance();
+
+	/**
+	 * This action displays the status.
+	 *
+	 * @return Result of the action
+	 */
+	public String execute() throws Exception {
+		return ConfluenceActionSupport.SUCCESS;
+	}
+
+	/**
+	 * Get the statistics of the recent runs.
+	 *
+	 * @return Returns the runs, most recent first.
+	 */
+	public List<RunStatistics> getRuns() {
+		return stats.getHistory().getRuns();
+	}
+
+	/**
+	 * Get the statistics of the current run.
+	 *
+	 * @return Returns the current run, null if the job is not running.
+	 */
+	public RunStatistics getCurrentRun() {
+		return stats.getCurrentRun();
+	}
+
+	/**
+	 * Get the statistics of the most recent finished run.
+	 *
+	 * @return Returns the most recent run, null if the job did not run yet.
+	 */
+	public RunStatistics getLatestRun() {
+		return stats.getHistory().getLatest();
+	}
+
+	/**
+	 * Get the stages of handling a message.
+	 *
+	 * @return Returns the stages in the order they are executed.
+	 */
+	public List<IngestionStage> getStages() {
+		return Arrays.asList(IngestionStage.values());
+	}
+
+	/**
+	 * Get the latencies of a stage since the plugin was started.
+	 *
+	 * @param stage The stage.
+	 * @return Returns the latencies of the stage.
+	 */
+	public LatencyHistogram getLatencies(IngestionStage stage) {
+		return stats.getLatencies(stage);
+	}
+
+	/**
+	 * Get the time from sending a message until it was published, by space.
+	 *
+	 * @return Returns a map from the space keys to the lag, sorted by space key.
+	 */
+	public Map<String, LatencyHistogram> getSpaceLag() {
+		return stats.getSpaceLag();
+	}
+
+	/**
+	 * Get the number of messages published later than the configured lag budget.
+	 *
+	 * @return Returns the number of messages since the plugin was started.
+	 */
+	public long getLagBudgetExceeded() {
+		return stats.getLagBudgetExceeded();
+	}
+
+	/**
+	 * Get the number of messages waiting for a retry after the last run.
+	 *
+	 * @return Returns the size of the retry queue.
+	 */
+	public int getRetryQueueSize() {
+		return stats.getRetryQueueSize();
+	}
+
+	/**
+	 * Get the number of messages which were given up after all attempts.
+	 *
+	 * @return Returns the number of dead letters.
+	 */
+	public int getDeadLetters() {
+		return stats.getDeadLetters();
+	}
+
+	/**
+	 * Get the memory budget for the content of the messages being processed.
+	 *
+	 * @return Returns the budget in megabytes.
+	 */
+	public String getMemoryBudget() {
+		return format(MemoryBudget.getInstance().getCapacity() / (1024.0 * 1024.0));
+	}
+
+	/**
+	 * Get the largest amount of memory held for the content of messages at once.
+	 *
+	 * @return Returns the high-water mark in megabytes.
+	 */
+	public String getMemoryHighWaterMark() {
+		return format(MemoryBudget.getInstance().getHighWaterMark() / (1024.0 * 1024.0));
+	}
+
+	/**
+	 * Format a number for display.
+	 *
+	 * @param value The number.
+	 * @return Returns the number with one decimal.
+	 */
+	public String format(double value) {
+		return String.format("%.1f", new Object[] { new Double(value) });
+	}
+
+	/**
+	 * Format a number of milliseconds as minutes for display.
+	 *
+	 * @param millis The milliseconds.
+	 * @return Returns the minutes with one decimal.
+	 */
+	public String formatMinutes(double millis) {
+		return format(millis / 60000);
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Tests of the conversion of the HTML of messages to the storage format.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class HtmlConverterTest {
+
+	@Test
+	public void testEscaping() throws IOException
+	{
+		assertEquals("<p>a &amp; b &lt;c&gt;</p>", convert("<p>a &amp; b &lt;c&gt;</p>"));
+		assertEquals("<p>\u20ac \u20ac \u20ac</p>", convert("<p>&euro; &#8364; &#x20ac;</p>"));
+	}
+
+	@Test
+	public void testTags() throws IOException
+	{
+		assertEquals("<p>A<br/>B</p>", convert("<P>A<BR>B</P>"));
+		assertEquals("<ul><li>one</li><li>two</li></ul>", convert("<ul><li>one<li>two</ul>"));
+		/* unknown tags are dropped, their text is kept */
+		assertEquals("r", convert("<font color=red>r</font>"));
+	}
+
+	@Test
+	public void testScriptsAreRemoved() throws IOException
+	{
+		assertEquals("<b>x</b>", convert("<script>alert(1)</script><b>x</b>"));
+		assertEquals("text", convert("<style>p{}</style>text"));
+		assertEquals("t<br/>", convert("<div onclick=\"x\">t</div>"));
+	}
+
+	@Test
+	public void testUnsafeLinksAreRemoved() throws IOException
+	{
+		assertEquals("<a>l</a>", convert("<a href=\"javascript:alert(1)\">l</a>"));
+		assertEquals("<a href=\"http://x.org/?a=1&amp;b=2\">m</a>", convert("<a href=\"http://x.org/?a=1&amp;b=2\">m</a>"));
+	}
+
+	@Test
+	public void testComments() throws IOException
+	{
+		assertEquals("<b>a</b>b", convert("<b>a</b><!-- x -->b"));
+		/* an odd number of dashes before the end of a comment */
+		assertEquals("<b>a</b>b", convert("<b>a</b><!-- x --->b"));
+		assertEquals("<b>a</b>b", convert("<b>a</b><!-- -- x ----->b"));
+		assertEquals("b", convert("<!DOCTYPE html><?xml version=\"1.0\"?>b"));
+	}
+
+	@Test
+	public void testSkippedElements() throws IOException
+	{
+		assertEquals("b", convert("<script>if (a << 1 </scrip) {}</script>b"));
+		assertEquals("b", convert("<SCRIPT>x<</SCRIPT>b"));
+		/* a head without end tag ends with the body */
+		assertEquals("b", convert("<head><title>t</title><<body>b"));
+	}
+
+	@Test
+	public void testMatch()
+	{
+		assertEquals(1, HtmlConverter.match("-->", 0, '-'));
+		assertEquals(2, HtmlConverter.match("-->", 2, '-'));
+		assertEquals(3, HtmlConverter.match("-->", 2, '>'));
+		assertEquals(0, HtmlConverter.match("-->", 1, '>'));
+		assertEquals(1, HtmlConverter.match("</script", 3, '<'));
+		assertEquals(3, HtmlConverter.match("abab", 2, 'a'));
+		assertEquals(1, HtmlConverter.match("abab", 3, 'a'));
+		assertEquals(4, HtmlConverter.match("abab", 3, 'b'));
+	}
+
+	private static String convert(String html) throws IOException
+	{
+		return HtmlConverter.convert(new StringReader(html));
+	}
+}
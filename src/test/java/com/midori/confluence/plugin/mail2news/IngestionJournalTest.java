@@ -0,0 +1,242 @@
+/**
+ * Tests of the journal: replaying the file after a restart, compacting
+ * it and recovering the copies of interrupted messages.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IngestionJournalTest {
+
+	private final Session session = Session.getInstance(new Properties(), null);
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		file = File.createTempFile("mail2news-journal", ".log");
+		file.delete();
+	}
+
+	@After
+	public void tearDown()
+	{
+		File copies = new File(file.getPath() + ".messages");
+		File[] files = copies.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+			{
+				f.delete();
+			}
+		}
+		copies.delete();
+		new File(file.getPath() + ".tmp").delete();
+		file.delete();
+	}
+
+	@Test
+	public void testReplay()
+	{
+		IngestionJournal journal = new IngestionJournal(file);
+		journal.fetched("<1@example.com>");
+		journal.parsed("<1@example.com>", "DS", "Title\twith a tab");
+		journal.fetched("<2@example.com>");
+		journal.parsed("<2@example.com>", "DS", "Second");
+		journal.posted("<2@example.com>", 4711);
+		journal.fetched("<3@example.com>");
+		journal.disposed("<3@example.com>");
+		journal.compact();
+
+		/* a new instance reads the file, like after a restart */
+		IngestionJournal replayed = new IngestionJournal(file);
+		assertEquals(2, replayed.size());
+		assertNull(replayed.get("<3@example.com>"));
+
+		IngestionJournal.Entry first = replayed.get("<1@example.com>");
+		assertEquals(IngestionJournal.State.PARSED, first.getState());
+		assertEquals("DS", first.getSpaceKey());
+		assertEquals("Title\twith a tab", first.getTitle());
+
+		IngestionJournal.Entry second = replayed.get("<2@example.com>");
+		assertEquals(IngestionJournal.State.POSTED, second.getState());
+		assertEquals(4711, second.getContentId());
+
+		List<IngestionJournal.Entry> unfinished = replayed.getUnfinished();
+		assertEquals("<1@example.com>", unfinished.get(0).getKey());
+		assertEquals("<2@example.com>", unfinished.get(1).getKey());
+	}
+
+	@Test
+	public void testFetchedAgainClearsEarlierAttempt()
+	{
+		IngestionJournal journal = new IngestionJournal(file);
+		journal.parsed("<1@example.com>", "DS", "Title");
+		journal.posted("<1@example.com>", 42);
+		journal.fetched("<1@example.com>");
+		journal.compact();
+
+		IngestionJournal.Entry entry = new IngestionJournal(file).get("<1@example.com>");
+		assertEquals(IngestionJournal.State.FETCHED, entry.getState());
+		assertNull(entry.getSpaceKey());
+		assertEquals(0, entry.getContentId());
+	}
+
+	@Test
+	public void testCompactKeepsLastState() throws IOException
+	{
+		IngestionJournal journal = new IngestionJournal(file);
+		for (int i = 0; i < 100; i++)
+		{
+			journal.fetched("<" + i + "@example.com>");
+			journal.parsed("<" + i + "@example.com>", "DS", "Title " + i);
+			if (i != 50)
+			{
+				journal.disposed("<" + i + "@example.com>");
+			}
+		}
+		long before = file.length();
+		journal.compact();
+
+		assertTrue(file.length() < before);
+		assertEquals(1, countLines(file));
+		IngestionJournal.Entry entry = new IngestionJournal(file).get("<50@example.com>");
+		assertEquals(IngestionJournal.State.PARSED, entry.getState());
+		assertEquals("Title 50", entry.getTitle());
+	}
+
+	@Test
+	public void testIncompleteLineIsIgnored() throws IOException
+	{
+		IngestionJournal journal = new IngestionJournal(file);
+		journal.parsed("<1@example.com>", "DS", "Title");
+		journal.posted("<1@example.com>", 42);
+
+		/* a crash while appending the next record */
+		OutputStream os = new FileOutputStream(file, true);
+		os.write("1234\tPOS".getBytes("UTF-8"));
+		os.close();
+
+		IngestionJournal recovered = new IngestionJournal(file);
+		assertEquals(1, recovered.size());
+		assertEquals(42, recovered.get("<1@example.com>").getContentId());
+	}
+
+	@Test
+	public void testCopyIsRecoveredAfterRestart() throws Exception
+	{
+		MimeMessage message = createMessage("<1@example.com>", "Interrupted");
+		IngestionJournal journal = new IngestionJournal(file);
+		journal.fetched("<1@example.com>");
+		assertEquals("Interrupted", journal.saveCopy("<1@example.com>", message, session).getSubject());
+		journal.compact();
+
+		/* the next run replays the message from the copy */
+		IngestionJournal recovered = new IngestionJournal(file);
+		MimeMessage copy = recovered.getCopy("<1@example.com>", session);
+		assertNotNull(copy);
+		assertEquals("Interrupted", copy.getSubject());
+		assertEquals("Body", ((String) copy.getContent()).trim());
+
+		recovered.disposed("<1@example.com>");
+		assertNull(recovered.getCopy("<1@example.com>", session));
+		assertNull(recovered.getCopy(null, session));
+	}
+
+	@Test
+	public void testCompactDeletesStaleCopies() throws Exception
+	{
+		IngestionJournal journal = new IngestionJournal(file);
+		journal.fetched("<1@example.com>");
+		journal.saveCopy("<1@example.com>", createMessage("<1@example.com>", "Kept"), session);
+		journal.saveCopy("<2@example.com>", createMessage("<2@example.com>", "Stale"), session);
+		journal.compact();
+
+		assertNotNull(journal.getCopy("<1@example.com>", session));
+		assertNull(journal.getCopy("<2@example.com>", session));
+		assertFalse(new File(file.getPath() + ".messages", "%3C2%40example.com%3E").exists());
+		journal.compact();
+	}
+
+	private MimeMessage createMessage(String messageId, String subject) throws Exception
+	{
+		String raw = "Message-ID: " + messageId + "\r\n"
+				+ "From: sender@example.com\r\n"
+				+ "Subject: " + subject + "\r\n"
+				+ "Content-Type: text/plain; charset=us-ascii\r\n"
+				+ "\r\n"
+				+ "Body\r\n";
+		return new MimeMessage(session, new ByteArrayInputStream(raw.getBytes("US-ASCII")));
+	}
+
+	private static int countLines(File f) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new FileReader(f));
+		try {
+			int lines = 0;
+			while (reader.readLine() != null)
+			{
+				lines++;
+			}
+			return lines;
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * Tests of publishing messages with the in-memory managers of confluence.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.confluence.pages.BlogPost;
+import com.atlassian.confluence.pages.Comment;
+import com.midori.confluence.plugin.mail2news.testsupport.InMemoryConfluence;
+
+public class Mail2NewsJobTest {
+
+	/**
+	 * A small PNG image, base64 encoded.
+	 */
+	private static final String LOGO = "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNk+M9QDwADhgGAWjR9awAAAABJRU5ErkJggg==";
+
+	private final Session session = Session.getInstance(new Properties(), null);
+
+	private InMemoryConfluence confluence;
+
+	private MailConfiguration config;
+
+	@Before
+	public void setUp()
+	{
+		confluence = new InMemoryConfluence();
+		confluence.addSpace("ds");
+		confluence.addSpace("ops");
+		confluence.addUser("alice", "alice@example.com");
+		config = new MailConfiguration();
+	}
+
+	@Test
+	public void testDuplicateAttachmentReferenced() throws Exception
+	{
+		config.setDeduplicate(true);
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com", "First", logo("attachment"))));
+		assertTrue(job.publish(message("news+ds@example.com", "Second", logo("attachment"))));
+
+		assertEquals(2, confluence.getBlogPostCount());
+		assertEquals(1, confluence.getAttachmentCount());
+		String body = confluence.getBlogPosts().get(1).getBodyAsString();
+		assertTrue(body.contains("<ac:image><ri:attachment ri:filename=\"logo.png\"><ri:blog-post ri:space-key=\"ds\" ri:content-title=\"First\""));
+	}
+
+	@Test
+	public void testDuplicateInOtherSpaceSaved() throws Exception
+	{
+		/* the readers of one space may not see the other */
+		config.setDeduplicate(true);
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com", "First", logo("attachment"))));
+		assertTrue(job.publish(message("news+ops@example.com", "Second", logo("attachment"))));
+		assertEquals(2, confluence.getAttachmentCount());
+	}
+
+	@Test
+	public void testDeduplicationDisabled() throws Exception
+	{
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com", "First", logo("attachment"))));
+		assertTrue(job.publish(message("news+ds@example.com", "Second", logo("attachment"))));
+		assertEquals(2, confluence.getAttachmentCount());
+	}
+
+	@Test
+	public void testSignatureImageDropped() throws Exception
+	{
+		config.setSignatureImageSize(1024);
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com", "Inline", logo("inline"))));
+		assertTrue(job.publish(message("news+ds@example.com", "Attached", logo("attachment"))));
+		/* only inline images are part of a signature */
+		assertEquals(1, confluence.getAttachmentCount());
+	}
+
+	@Test
+	public void testPostToAllSpaces() throws Exception
+	{
+		config.setPostToAllSpaces(true);
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com, news+ops@example.com, news+ds@example.com", "Both", logo("attachment"))));
+
+		/* each space once, with an attachment of its own */
+		List<BlogPost> blogPosts = confluence.getBlogPosts();
+		assertEquals(2, blogPosts.size());
+		assertEquals("ds", blogPosts.get(0).getSpace().getKey());
+		assertEquals("ops", blogPosts.get(1).getSpace().getKey());
+		assertTrue(blogPosts.get(1).getBodyAsString().contains("Text of Both"));
+		assertEquals(2, confluence.getAttachmentCount());
+	}
+
+	@Test
+	public void testPostToAllFallbackSpaces() throws Exception
+	{
+		config.setPostToAllSpaces(true);
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("ds@example.com, ops@example.com", "Both", "")));
+		assertEquals(2, confluence.getBlogPostCount());
+	}
+
+	@Test
+	public void testPostToFirstSpace() throws Exception
+	{
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com, news+ops@example.com", "First only", "")));
+		assertEquals(1, confluence.getBlogPostCount());
+		assertEquals("ds", confluence.getBlogPosts().get(0).getSpace().getKey());
+	}
+
+	@Test
+	public void testReplyAddedAsComment() throws Exception
+	{
+		config.setReplyAsComment(true);
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com", "First", logo("attachment"))));
+		assertTrue(job.publish(message("news+ds@example.com", "Reply", "In-Reply-To: <First@example.com>\r\n", logo("attachment"))));
+		/* a reply to the reply belongs to the same thread */
+		assertTrue(job.publish(message("news+ds@example.com", "Reply-to-reply", "In-Reply-To: <Reply@example.com>\r\n", "")));
+
+		assertEquals(1, confluence.getBlogPostCount());
+		assertEquals(2, confluence.getCommentCount());
+		BlogPost blogPost = confluence.getBlogPosts().get(0);
+		Comment comment = (Comment) blogPost.getComments().get(0);
+		assertTrue(comment.getBodyAsString().contains("Text of Reply"));
+		/* the attachment of the reply is added to the blog post under a name of its own */
+		assertEquals(2, confluence.getAttachmentCount());
+		assertTrue(comment.getBodyAsString().contains("<ri:attachment ri:filename=\"logo (2).png\"/>"));
+	}
+
+	@Test
+	public void testReplyFoundByReferences() throws Exception
+	{
+		config.setReplyAsComment(true);
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com", "First", "")));
+		/* the message replied to was not published, but the start of the thread was */
+		assertTrue(job.publish(message("news+ds@example.com", "Reply", "In-Reply-To: <unknown@example.com>\r\n"
+				+ "References: <First@example.com> <unknown@example.com>\r\n", "")));
+		assertEquals(1, confluence.getBlogPostCount());
+		assertEquals(1, confluence.getCommentCount());
+	}
+
+	@Test
+	public void testReplyToUnknownMessage() throws Exception
+	{
+		config.setReplyAsComment(true);
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com", "First", "")));
+		assertTrue(job.publish(message("news+ds@example.com", "Reply", "In-Reply-To: <unknown@example.com>\r\n", "")));
+		/* a reply in another space starts a thread of its own */
+		assertTrue(job.publish(message("news+ops@example.com", "Elsewhere", "In-Reply-To: <First@example.com>\r\n", "")));
+		assertEquals(3, confluence.getBlogPostCount());
+		assertEquals(0, confluence.getCommentCount());
+	}
+
+	@Test
+	public void testReplyAsCommentDisabled() throws Exception
+	{
+		Mail2NewsJob job = confluence.createJob(config, null);
+		assertTrue(job.publish(message("news+ds@example.com", "First", "")));
+		assertTrue(job.publish(message("news+ds@example.com", "Reply", "In-Reply-To: <First@example.com>\r\n", "")));
+		assertEquals(2, confluence.getBlogPostCount());
+		assertEquals(0, confluence.getCommentCount());
+	}
+
+	/**
+	 * A message from alice with a text part and further parts.
+	 */
+	private Message message(String to, String subject, String parts) throws Exception
+	{
+		return message(to, subject, "", parts);
+	}
+
+	/**
+	 * A message from alice with further headers, a text part and further parts.
+	 */
+	private Message message(String to, String subject, String headers, String parts) throws Exception
+	{
+		String raw = "From: alice@example.com\r\n"
+				+ "To: " + to + "\r\n"
+				+ "Subject: " + subject + "\r\n"
+				+ "Message-ID: <" + subject + "@example.com>\r\n"
+				+ headers
+				+ MessageParserTest.multipart("b", MessageParserTest.text("Text of " + subject) + parts);
+		return new MimeMessage(session, new ByteArrayInputStream(raw.getBytes("US-ASCII")));
+	}
+
+	/**
+	 * The logo as part of a multipart with the boundary "b".
+	 */
+	private static String logo(String disposition)
+	{
+		return "--b\r\n"
+				+ "Content-Type: image/png; name=\"logo.png\"\r\n"
+				+ "Content-Disposition: " + disposition + "; filename=\"logo.png\"\r\n"
+				+ ("inline".equals(disposition) ? "Content-ID: <logo@example.com>\r\n" : "")
+				+ "Content-Transfer-Encoding: base64\r\n"
+				+ "\r\n"
+				+ LOGO + "\r\n";
+	}
+}
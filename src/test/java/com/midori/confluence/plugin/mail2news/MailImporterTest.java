@@ -0,0 +1,221 @@
+/**
+ * Tests of importing archives: splitting mbox files at the "From " lines,
+ * removing the mboxrd quoting, and importing through the in-memory
+ * Confluence managers.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.internet.MailDateFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.confluence.pages.BlogPost;
+import com.midori.confluence.plugin.mail2news.testsupport.InMemoryConfluence;
+
+public class MailImporterTest {
+
+	private static final String DATE = "Mon, 5 Jan 2015 10:00:00 +0100";
+
+	private File mbox;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		mbox = File.createTempFile("mail2news-import", ".mbox");
+	}
+
+	@After
+	public void tearDown()
+	{
+		mbox.delete();
+	}
+
+	@Test
+	public void testSplitAtFromLines() throws IOException
+	{
+		write("From alice@example.com Mon Jan  5 10:00:00 2015\n"
+				+ "Subject: one\n"
+				+ "\n"
+				+ "Sent From my phone\n"
+				+ "\n"
+				+ "From bob@example.com Mon Jan  5 11:00:00 2015\n"
+				+ "Subject: two\n"
+				+ "\n"
+				+ "Second\n"
+				+ "From carol@example.com Mon Jan  5 12:00:00 2015\n"
+				+ "Subject: three\n"
+				+ "\n"
+				+ "Third");
+
+		List<String> messages = readAll();
+		assertEquals(3, messages.size());
+		assertEquals("Subject: one\n\nSent From my phone\n\n", messages.get(0));
+		assertEquals("Subject: two\n\nSecond\n", messages.get(1));
+		assertEquals("Subject: three\n\nThird", messages.get(2));
+	}
+
+	@Test
+	public void testUnquote() throws IOException
+	{
+		write("From alice@example.com Mon Jan  5 10:00:00 2015\n"
+				+ "Subject: quoted\n"
+				+ "\n"
+				+ ">From the start\n"
+				+ ">>From a reply\n"
+				+ ">Fromage\n"
+				+ "> From a quote\n");
+
+		List<String> messages = readAll();
+		assertEquals(1, messages.size());
+		assertEquals("Subject: quoted\n\nFrom the start\n>From a reply\n>Fromage\n> From a quote\n", messages.get(0));
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException
+	{
+		assertEquals(0, readAll().size());
+	}
+
+	@Test
+	public void testNotAnMboxFile() throws IOException
+	{
+		write("Subject: no From line\n\nBody\n");
+		try {
+			new MailImporter.MboxSource(mbox);
+			fail("A file without a \"From \" line was accepted.");
+		} catch (IOException e) {
+			/* expected */
+		}
+	}
+
+	@Test
+	public void testImport() throws Exception
+	{
+		write(createMessage("First", "Hello") + createMessage("Second", ">From the archive\n"));
+
+		InMemoryConfluence confluence = new InMemoryConfluence();
+		confluence.addSpace("ds");
+		confluence.addUser("alice", "alice@example.com");
+		BandanaIndex progressIndex = new BandanaIndex("import", confluence.getBandanaManager());
+		Mail2NewsJob job = confluence.createJob(new MailConfiguration(), null);
+
+		MailImporter importer = new MailImporter(job, progressIndex, confluence.getTransactionTemplate(), mbox, 2);
+		importer.run();
+		assertNull(importer.getError());
+		assertEquals(2, importer.getPublished());
+		assertEquals(100, importer.getPercent());
+
+		List<BlogPost> blogPosts = confluence.getBlogPosts();
+		assertEquals(2, blogPosts.size());
+		assertEquals("First", blogPosts.get(0).getTitle());
+		assertEquals("Second", blogPosts.get(1).getTitle());
+		/* an imported message is dated when it was sent */
+		assertEquals(new MailDateFormat().parse(DATE), blogPosts.get(0).getCreationDate());
+		assertTrue(blogPosts.get(1).getBodyAsString().contains("From the archive"));
+		assertTrue(!blogPosts.get(1).getBodyAsString().contains("&gt;From"));
+
+		/* a second import of the same archive resumes after the last message */
+		importer = new MailImporter(job, progressIndex, confluence.getTransactionTemplate(), mbox, 2);
+		importer.run();
+		assertEquals(2, importer.getResumedAt());
+		assertEquals(0, importer.getPublished());
+		assertEquals(2, confluence.getBlogPostCount());
+	}
+
+	private static String createMessage(String subject, String body)
+	{
+		return "From alice@example.com Mon Jan  5 10:00:00 2015\n"
+				+ "From: alice@example.com\n"
+				+ "To: news+ds@example.com\n"
+				+ "Subject: " + subject + "\n"
+				+ "Date: " + DATE + "\n"
+				+ "Message-ID: <" + subject + "@example.com>\n"
+				+ "Content-Type: text/plain; charset=us-ascii\n"
+				+ "\n"
+				+ body + "\n";
+	}
+
+	private void write(String content) throws IOException
+	{
+		OutputStream os = new FileOutputStream(mbox);
+		try {
+			os.write(content.getBytes("US-ASCII"));
+		} finally {
+			os.close();
+		}
+	}
+
+	private List<String> readAll() throws IOException
+	{
+		List<String> messages = new ArrayList<String>();
+		MailImporter.MboxSource source = new MailImporter.MboxSource(mbox);
+		try {
+			MailImporter.RawMessage raw;
+			while ((raw = source.next()) != null)
+			{
+				InputStream is = raw.open();
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				int b;
+				while ((b = is.read()) != -1)
+				{
+					content.write(b);
+				}
+				messages.add(content.toString("US-ASCII"));
+			}
+			assertEquals(100, source.getPercent());
+		} finally {
+			source.close();
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Tests of the leases which keep the nodes of a cluster from polling the
+ * same mailbox at the same time.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.midori.confluence.plugin.mail2news.testsupport.InMemoryConfluence;
+
+public class MailboxLeaseTest {
+
+	private static final String ACCOUNT = "news@mail.example.com";
+
+	private static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+	private static final String OTHER_NODE = "4711@other.example.com";
+
+	private final InMemoryConfluence confluence = new InMemoryConfluence();
+
+	private final BandanaIndex index = new BandanaIndex("leases", confluence.getBandanaManager());
+
+	private final String key = MailboxLease.getKey(ACCOUNT);
+
+	private MailboxLease lease;
+
+	@Before
+	public void setUp()
+	{
+		lease = new MailboxLease(index, null, confluence.getTransactionTemplate());
+	}
+
+	@After
+	public void tearDown()
+	{
+		lease.release();
+	}
+
+	@Test
+	public void testAcquireAndRelease()
+	{
+		assertNull(lease.acquire(null, ACCOUNT, 10));
+		String value = index.get(key);
+		assertTrue(value.endsWith(" " + NODE));
+		long expires = Long.parseLong(value.substring(0, value.indexOf(' ')));
+		assertTrue(expires > System.currentTimeMillis() + 9 * 60 * 1000L);
+
+		lease.release();
+		assertNull(index.get(key));
+	}
+
+	@Test
+	public void testHeldByAnotherNode()
+	{
+		String value = (System.currentTimeMillis() + 60 * 1000L) + " " + OTHER_NODE;
+		index.put(key, value);
+		assertEquals(OTHER_NODE, lease.acquire(null, ACCOUNT, 10));
+		assertEquals(value, index.get(key));
+
+		/* another mailbox is not affected */
+		assertNull(lease.acquire(null, "other@mail.example.com", 10));
+	}
+
+	@Test
+	public void testTakeOverExpiredLease()
+	{
+		index.put(key, (System.currentTimeMillis() - 1) + " " + OTHER_NODE);
+		assertNull(lease.acquire(null, ACCOUNT, 10));
+		assertTrue(index.get(key).endsWith(" " + NODE));
+	}
+
+	@Test
+	public void testReleaseKeepsLeaseTakenOver()
+	{
+		assertNull(lease.acquire(null, ACCOUNT, 10));
+		/* this node stalled and another node took over the expired lease */
+		String value = (System.currentTimeMillis() + 60 * 1000L) + " " + OTHER_NODE;
+		index.put(key, value);
+		lease.release();
+		assertEquals(value, index.get(key));
+	}
+}
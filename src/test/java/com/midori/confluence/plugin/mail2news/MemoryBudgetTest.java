@@ -0,0 +1,144 @@
+/**
+ * Tests of the memory budget shared by the parsers.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+	@Test
+	public void testTryAllocate()
+	{
+		MemoryBudget budget = new MemoryBudget(100);
+		assertTrue(budget.tryAllocate(60));
+		assertFalse(budget.tryAllocate(50));
+		assertTrue(budget.tryAllocate(40));
+		assertEquals(100, budget.getUsed());
+
+		budget.release(60);
+		assertEquals(40, budget.getUsed());
+		assertEquals(100, budget.getHighWaterMark());
+		budget.resetHighWaterMark();
+		assertEquals(40, budget.getHighWaterMark());
+	}
+
+	@Test
+	public void testAllocateBeyondCapacity()
+	{
+		MemoryBudget budget = new MemoryBudget(100);
+		budget.allocate(150);
+		assertEquals(150, budget.getUsed());
+		assertFalse(budget.tryAllocate(1));
+		budget.release(200);
+		assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void testAcquireWithoutWaiting() throws InterruptedException
+	{
+		MemoryBudget budget = new MemoryBudget(100);
+		long start = System.currentTimeMillis();
+		assertTrue(budget.acquire(80, 0, 10000));
+		/* only the caller holds memory, it would wait for itself */
+		assertTrue(budget.acquire(80, 80, 10000));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(160, budget.getUsed());
+	}
+
+	@Test
+	public void testAcquireTimesOut() throws InterruptedException
+	{
+		MemoryBudget budget = new MemoryBudget(100);
+		budget.allocate(80);
+		assertFalse(budget.acquire(30, 0, 50));
+		assertEquals(80, budget.getUsed());
+	}
+
+	@Test
+	public void testAcquireWaitsForRelease() throws InterruptedException
+	{
+		final MemoryBudget budget = new MemoryBudget(100);
+		budget.allocate(80);
+		Thread other = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {}
+				budget.release(80);
+			}
+		};
+		other.start();
+		long start = System.currentTimeMillis();
+		assertTrue(budget.acquire(30, 0, 10000));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(30, budget.getUsed());
+		other.join();
+	}
+
+	@Test
+	public void testAcquireWaitsForCapacity() throws InterruptedException
+	{
+		final MemoryBudget budget = new MemoryBudget(100);
+		budget.allocate(80);
+		Thread other = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {}
+				budget.setCapacity(200);
+			}
+		};
+		other.start();
+		assertTrue(budget.acquire(30, 0, 10000));
+		assertEquals(110, budget.getUsed());
+		other.join();
+	}
+
+	@Test(expected = InterruptedException.class)
+	public void testAcquireInterrupted() throws InterruptedException
+	{
+		MemoryBudget budget = new MemoryBudget(100);
+		budget.allocate(100);
+		Thread.currentThread().interrupt();
+		budget.acquire(1, 0, 10000);
+	}
+}
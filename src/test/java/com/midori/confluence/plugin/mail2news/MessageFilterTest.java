@@ -0,0 +1,124 @@
+/**
+ * Tests of the rules which messages are not published.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+public class MessageFilterTest {
+
+	private final Session session = Session.getInstance(new Properties(), null);
+
+	@Test
+	public void testPersonalMessagePasses() throws Exception
+	{
+		MessageFilter filter = new MessageFilter(false, true, null);
+		assertNull(filter.match(message("Precedence: first-class\r\nAuto-Submitted: no\r\n")));
+	}
+
+	@Test
+	public void testAutoGenerated() throws Exception
+	{
+		assertEquals("Auto-Submitted: auto-replied", MessageFilter.getAutoGenerated(message("Auto-Submitted: auto-replied\r\n")));
+		assertEquals("Precedence: Bulk", MessageFilter.getAutoGenerated(message("Precedence: Bulk \r\n")));
+		assertEquals("X-Auto-Response-Suppress: All", MessageFilter.getAutoGenerated(message("X-Auto-Response-Suppress: all\r\n")));
+		assertEquals("empty Return-Path", MessageFilter.getAutoGenerated(message("Return-Path: < >\r\n")));
+		assertEquals("delivery report", MessageFilter.getAutoGenerated(message("Content-Type: multipart/report; report-type=delivery-status; boundary=\"b\"\r\n")));
+		assertNull(MessageFilter.getAutoGenerated(message("Return-Path: <alice@example.com>\r\n")));
+	}
+
+	@Test
+	public void testAutoGeneratedPassesIfAllowed() throws Exception
+	{
+		Message message = message("Auto-Submitted: auto-generated\r\n");
+		assertEquals("Auto-Submitted: auto-generated", new MessageFilter(false, false, null).match(message));
+		assertNull(new MessageFilter(true, false, null).match(message));
+	}
+
+	@Test
+	public void testMailingLists() throws Exception
+	{
+		Message list = message("List-Id: News <news.example.com>\r\n");
+		assertEquals("mailing list News <news.example.com>", new MessageFilter(false, true, null).match(list));
+		assertNull(new MessageFilter(false, false, null).match(list));
+		assertEquals("Precedence: list", new MessageFilter(false, true, null).match(message("Precedence: list\r\n")));
+		/* a list precedence is not auto-generated */
+		assertNull(new MessageFilter(false, false, null).match(message("Precedence: list\r\n")));
+	}
+
+	@Test
+	public void testRules() throws Exception
+	{
+		MessageFilter filter = new MessageFilter(true, false, "X-Spam-Flag: ^yes$\r\n\r\nSubject:\\[newsletter\\]\n");
+		assertEquals("rule X-Spam-Flag: ^yes$", filter.match(message("X-Spam-Flag: YES\r\n")));
+		assertEquals("rule Subject: \\[newsletter\\]", filter.match(message("Subject: Our [Newsletter] of May\r\n")));
+		assertNull(filter.match(message("X-Spam-Flag: no\r\n")));
+		assertTrue(filter.getHeaderNames().contains("X-Spam-Flag"));
+		assertTrue(filter.getHeaderNames().contains("Subject"));
+		assertTrue(filter.getHeaderNames().contains("List-Id"));
+	}
+
+	@Test
+	public void testInvalidRulesIgnored() throws Exception
+	{
+		MessageFilter filter = new MessageFilter(true, false, "no header\n: no name\nX-Broken: [\nX-Valid: valid\n");
+		assertEquals(7, filter.getHeaderNames().size());
+		assertNull(filter.match(message("X-Broken: [\r\n")));
+		assertEquals("rule X-Valid: valid", filter.match(message("X-Valid: valid\r\n")));
+	}
+
+	private Message message(String headers) throws Exception
+	{
+		String raw = "From: alice@example.com\r\n"
+				+ "To: news@example.com\r\n"
+				+ headers
+				+ "\r\n"
+				+ "Body\r\n";
+		return new MimeMessage(session, new ByteArrayInputStream(raw.getBytes("US-ASCII")));
+	}
+}
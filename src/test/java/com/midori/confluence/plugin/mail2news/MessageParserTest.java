@@ -0,0 +1,306 @@
+/**
+ * Tests of parsing messages: the parts of multiparts and forwarded
+ * messages, and the limits of the depth, the number of parts and the size.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+public class MessageParserTest {
+
+	private static final long MAX_BYTES = 1024 * 1024;
+
+	private final Session session = Session.getInstance(new Properties(), null);
+
+	@Test
+	public void testTextAndAttachment() throws Exception
+	{
+		MessageParser parser = parse(new MessageParser(0), multipart("b", text("Hello") + attachment("report.txt", "Report")));
+		try {
+			assertTrue(parser.getContent().contains("Hello"));
+			assertEquals(1, parser.getAttachments().size());
+			assertEquals("report.txt", parser.getAttachments().getFirst().getFileName());
+		} finally {
+			parser.dispose();
+		}
+	}
+
+	@Test
+	public void testDeepNestingWithinLimit() throws Exception
+	{
+		/* the parts are traversed without recursion */
+		MessageParser parser = new MessageParser(0);
+		parser.setLimits(1000, 1000, MAX_BYTES);
+		parse(parser, nested(300, text("Deep")));
+		try {
+			assertTrue(parser.getContent().contains("Deep"));
+		} finally {
+			parser.dispose();
+		}
+	}
+
+	@Test
+	public void testDepthLimit() throws Exception
+	{
+		MessageParser parser = new MessageParser(0);
+		parser.setLimits(3, 1000, MAX_BYTES);
+		parse(parser, nested(3, text("Deep enough")));
+		parser.dispose();
+
+		parser = new MessageParser(0);
+		parser.setLimits(3, 1000, MAX_BYTES);
+		assertLimit(parser, nested(4, text("Too deep")));
+	}
+
+	@Test
+	public void testPartLimit() throws Exception
+	{
+		StringBuilder parts = new StringBuilder();
+		for (int i = 0; i < 11; i++)
+		{
+			parts.append(attachment("file" + i + ".txt", "Content " + i));
+		}
+		MessageParser parser = new MessageParser(0);
+		parser.setLimits(10, 10, MAX_BYTES);
+		assertLimit(parser, multipart("b", parts.toString()));
+	}
+
+	@Test
+	public void testByteLimit() throws Exception
+	{
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+		{
+			body.append("0123456789\r\n");
+		}
+		MessageParser parser = new MessageParser(0);
+		parser.setLimits(10, 10, 1000);
+		assertLimit(parser, multipart("b", text(body.toString())));
+	}
+
+	@Test
+	public void testForwardedMessage() throws Exception
+	{
+		String forwarded = "Content-Type: message/rfc822\r\n"
+				+ "\r\n"
+				+ "Subject: Forwarded\r\n"
+				+ multipart("f", text("Original") + attachment("original.txt", "Attached"));
+		MessageParser parser = parse(new MessageParser(0), multipart("b", text("See below") + "--b\r\n" + forwarded));
+		try {
+			assertTrue(parser.getContent().contains("See below"));
+			assertEquals(1, parser.getAttachments().size());
+			assertEquals("original.txt", parser.getAttachments().getFirst().getFileName());
+		} finally {
+			parser.dispose();
+		}
+	}
+
+	@Test
+	public void testForwardedMessagesCountTowardsTheLimits() throws Exception
+	{
+		/* every forwarded message is one level deeper */
+		String message = text("Innermost").substring("--b\r\n".length());
+		for (int i = 0; i < 5; i++)
+		{
+			message = "Content-Type: message/rfc822\r\n\r\nSubject: Fwd " + i + "\r\n" + message;
+		}
+		MessageParser parser = new MessageParser(0);
+		parser.setLimits(3, 1000, MAX_BYTES);
+		assertLimit(parser, "Subject: Forwarded\r\n" + message);
+	}
+
+	@Test
+	public void testMemoryReleasedOnDispose() throws Exception
+	{
+		MemoryBudget budget = new MemoryBudget(MAX_BYTES);
+		MessageParser parser = new MessageParser(0);
+		parser.setMemoryBudget(budget);
+		parse(parser, multipart("b", text("Hello") + attachment("report.txt", "Report")));
+		assertTrue(budget.getUsed() > 0);
+		parser.dispose();
+		assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void testAttachmentSpooledWhenBudgetUsedUp() throws Exception
+	{
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+		{
+			content.append("0123456789");
+		}
+		MemoryBudget budget = new MemoryBudget(100);
+		MessageParser parser = new MessageParser(0);
+		parser.setMemoryBudget(budget);
+		/* not text, which would become the content of the blog post */
+		parse(parser, multipart("b", attachment("large.bin", content.toString()).replace("text/plain", "application/octet-stream")));
+		try {
+			/* the content read so far went to the file as well */
+			assertEquals(0, budget.getUsed());
+			assertEquals(content.toString(), read(parser.getAttachmentsInputStreams().getFirst()));
+		} finally {
+			parser.dispose();
+		}
+		assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void testTextWaitsForMemory() throws Exception
+	{
+		final MemoryBudget budget = new MemoryBudget(100);
+		/* used up by another message */
+		budget.allocate(100);
+		Thread other = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					/* release now */
+				}
+				budget.release(100);
+			}
+		};
+		other.start();
+		MessageParser parser = new MessageParser(0);
+		parser.setMemoryBudget(budget);
+		parse(parser, multipart("b", text("Hello")));
+		other.join();
+		try {
+			assertTrue(parser.getContent().contains("Hello"));
+			assertTrue(budget.getUsed() > 0);
+		} finally {
+			parser.dispose();
+		}
+		assertEquals(0, budget.getUsed());
+	}
+
+	/**
+	 * Parse a message, expecting it to exceed a limit.
+	 */
+	private void assertLimit(MessageParser parser, String raw) throws Exception
+	{
+		try {
+			parse(parser, raw);
+			fail("The message was parsed despite the limits.");
+		} catch (MessageLimitException e) {
+			/* expected */
+		} finally {
+			parser.dispose();
+		}
+	}
+
+	private MessageParser parse(MessageParser parser, String raw) throws Exception
+	{
+		String message = raw.startsWith("Subject:") ? raw : "Subject: Test\r\n" + raw;
+		MimeMessage m = new MimeMessage(session, new ByteArrayInputStream(message.getBytes("US-ASCII")));
+		parser.parse(m, m.getContent());
+		return parser;
+	}
+
+	private static String read(InputStream is) throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte buf[] = new byte[8192];
+		int numBytes;
+		while ((numBytes = is.read(buf)) > 0)
+		{
+			baos.write(buf, 0, numBytes);
+		}
+		return baos.toString("US-ASCII");
+	}
+
+	/**
+	 * A multipart with the given parts, as the headers and the body of a part.
+	 */
+	static String multipart(String boundary, String parts)
+	{
+		return "MIME-Version: 1.0\r\n"
+				+ "Content-Type: multipart/mixed; boundary=\"" + boundary + "\"\r\n"
+				+ "\r\n"
+				+ parts.replace("--b\r\n", "--" + boundary + "\r\n")
+				+ "--" + boundary + "--\r\n";
+	}
+
+	/**
+	 * Multiparts nested the given number of levels, the innermost with the given parts.
+	 */
+	static String nested(int levels, String parts)
+	{
+		String part = multipart("b" + levels, parts);
+		for (int i = levels - 1; i > 0; i--)
+		{
+			part = multipart("b" + i, "--b\r\n" + part);
+		}
+		return part;
+	}
+
+	/**
+	 * A text part of a multipart with the boundary "b".
+	 */
+	static String text(String text)
+	{
+		return "--b\r\n"
+				+ "Content-Type: text/plain; charset=us-ascii\r\n"
+				+ "\r\n"
+				+ text + "\r\n";
+	}
+
+	/**
+	 * An attachment of a multipart with the boundary "b".
+	 */
+	static String attachment(String fileName, String content)
+	{
+		return "--b\r\n"
+				+ "Content-Type: text/plain; name=\"" + fileName + "\"\r\n"
+				+ "Content-Disposition: attachment; filename=\"" + fileName + "\"\r\n"
+				+ "\r\n"
+				+ content + "\r\n";
+	}
+}
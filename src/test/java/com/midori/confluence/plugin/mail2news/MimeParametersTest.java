@@ -0,0 +1,108 @@
+/**
+ * Tests of the parameters of MIME headers, including the RFC 2231
+ * encoding and continuations.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class MimeParametersTest {
+
+	@Test
+	public void testPlainParameter()
+	{
+		assertEquals("UTF-8", MimeParameters.getParameter("text/plain; charset=UTF-8", "charset"));
+		assertEquals("ISO-8859-1", MimeParameters.getParameter("text/plain; CHARSET=\"ISO-8859-1\"", "charset"));
+		assertEquals("report.pdf", MimeParameters.getParameter("attachment;\r\n\tfilename=report.pdf", "FILENAME"));
+		assertNull(MimeParameters.getParameter("text/plain", "charset"));
+		assertNull(MimeParameters.getParameter(null, "charset"));
+	}
+
+	@Test
+	public void testQuotedParameter()
+	{
+		assertEquals("a \"b\".txt", MimeParameters.getParameter("attachment; filename=\"a \\\"b\\\".txt\"", "filename"));
+		assertEquals("a; b.txt", MimeParameters.getParameter("attachment; filename=\"a; b.txt\"; size=3", "filename"));
+	}
+
+	@Test
+	public void testEncodedParameter()
+	{
+		assertEquals("\u20ac rates.pdf", MimeParameters.getParameter("attachment; filename*=UTF-8''%E2%82%AC%20rates.pdf", "filename"));
+		assertEquals("\u00e4pfel.txt", MimeParameters.getParameter("attachment; filename*=iso-8859-1'de'%E4pfel.txt", "filename"));
+	}
+
+	@Test
+	public void testContinuations()
+	{
+		assertEquals("longname.txt", MimeParameters.getParameter("attachment; filename*0=\"long\"; filename*1=\"name.txt\"", "filename"));
+		/* the sections may be in any order */
+		assertEquals("longname.txt", MimeParameters.getParameter("attachment; filename*1=\"name.txt\"; filename*0=\"long\"", "filename"));
+	}
+
+	@Test
+	public void testEncodedContinuations()
+	{
+		/* only the first section names the charset, unencoded sections are taken as they are */
+		assertEquals("This is fun", MimeParameters.getParameter("message/external-body; title*0*=us-ascii'en'This%20is%20; title*1=\"fun\"", "title"));
+		assertEquals("\u20ac rates.pdf", MimeParameters.getParameter("attachment; filename*0*=UTF-8''%E2%82%AC; filename*1*=%20rates.pdf", "filename"));
+	}
+
+	@Test
+	public void testType()
+	{
+		assertEquals("text/html", MimeParameters.getType("text/html; charset=utf-8"));
+		assertTrue(MimeParameters.isType("Text/HTML; charset=utf-8", "text/html"));
+		assertFalse(MimeParameters.isType("text/html2", "text/html"));
+		assertFalse(MimeParameters.isType(null, "text/html"));
+	}
+
+	@Test
+	public void testCharset()
+	{
+		assertEquals(Charset.forName("ISO-8859-1"), MimeParameters.getCharset("text/plain; charset=iso-8859-1"));
+		assertNull(MimeParameters.getCharset("text/plain; charset=x-unknown"));
+		assertNull(MimeParameters.getCharset("text/plain"));
+	}
+}
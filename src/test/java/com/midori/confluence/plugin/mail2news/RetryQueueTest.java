@@ -0,0 +1,172 @@
+/**
+ * Tests of the retry queue: the exponential backoff, the due messages and
+ * moving messages to the dead letters.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetryQueueTest {
+
+	private static final long MINUTE = 60 * 1000L;
+	private static final long DAY = 24 * 60 * MINUTE;
+
+	private final Session session = Session.getInstance(new Properties(), null);
+
+	private File directory;
+	private RetryQueue queue;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = File.createTempFile("mail2news-retry", "");
+		directory.delete();
+		queue = new RetryQueue(directory);
+	}
+
+	@After
+	public void tearDown()
+	{
+		delete(directory);
+	}
+
+	@Test
+	public void testBackoff()
+	{
+		assertEquals(5 * MINUTE, RetryQueue.getBackoff(1, 5 * MINUTE));
+		assertEquals(10 * MINUTE, RetryQueue.getBackoff(2, 5 * MINUTE));
+		assertEquals(20 * MINUTE, RetryQueue.getBackoff(3, 5 * MINUTE));
+		assertEquals(40 * MINUTE, RetryQueue.getBackoff(4, 5 * MINUTE));
+	}
+
+	@Test
+	public void testBackoffIsAtMostADay()
+	{
+		assertEquals(DAY, RetryQueue.getBackoff(10, 5 * MINUTE));
+		assertEquals(DAY, RetryQueue.getBackoff(Integer.MAX_VALUE, 5 * MINUTE));
+		assertEquals(DAY, RetryQueue.getBackoff(1, 2 * DAY));
+	}
+
+	@Test
+	public void testDue() throws Exception
+	{
+		assertTrue(queue.add(createMessage("Later"), new Exception("database down"), DAY));
+		assertTrue(queue.add(createMessage("Now"), new Exception("database down"), 0));
+		assertEquals(2, queue.size());
+
+		List<RetryQueue.Entry> due = queue.getDue(System.currentTimeMillis());
+		assertEquals(1, due.size());
+		RetryQueue.Entry entry = due.get(0);
+		assertEquals(1, entry.getAttempts());
+		assertEquals("database down", entry.getError());
+		assertEquals("Now", queue.load(entry, session).getSubject());
+
+		/* both are due tomorrow, the longest due first */
+		due = queue.getDue(System.currentTimeMillis() + 2 * DAY);
+		assertEquals(2, due.size());
+		assertEquals("Now", queue.load(due.get(0), session).getSubject());
+		assertEquals("Later", queue.load(due.get(1), session).getSubject());
+
+		queue.remove(entry);
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void testRetryLater() throws Exception
+	{
+		queue.add(createMessage("Failing"), new Exception("first"), 0);
+		RetryQueue.Entry entry = queue.getDue(System.currentTimeMillis()).get(0);
+		long firstFailure = entry.getFirstFailure();
+
+		queue.retryLater(entry, new Exception("second"), RetryQueue.getBackoff(entry.getAttempts() + 1, MINUTE));
+		assertTrue(queue.getDue(System.currentTimeMillis()).isEmpty());
+
+		entry = queue.getDue(System.currentTimeMillis() + 2 * MINUTE).get(0);
+		assertEquals(2, entry.getAttempts());
+		assertEquals("second", entry.getError());
+		assertEquals(firstFailure, entry.getFirstFailure());
+	}
+
+	@Test
+	public void testDeadLetter() throws Exception
+	{
+		queue.add(createMessage("Hopeless"), new Exception("first"), 0);
+		RetryQueue.Entry entry = queue.getDue(System.currentTimeMillis()).get(0);
+		queue.deadLetter(entry, new Exception("last"));
+
+		assertEquals(0, queue.size());
+		assertEquals(1, queue.getDeadLetterCount());
+		assertTrue(queue.getDue(Long.MAX_VALUE).isEmpty());
+		assertTrue(new File(new File(directory, "dead"), entry.getId() + ".eml").isFile());
+	}
+
+	private MimeMessage createMessage(String subject) throws Exception
+	{
+		String raw = "From: sender@example.com\r\n"
+				+ "Subject: " + subject + "\r\n"
+				+ "\r\n"
+				+ "Body\r\n";
+		return new MimeMessage(session, new ByteArrayInputStream(raw.getBytes("US-ASCII")));
+	}
+
+	private static void delete(File f)
+	{
+		File[] files = f.listFiles();
+		if (files != null)
+		{
+			for (File child : files)
+			{
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Tests of the watchdog which aborts runs taking too long.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.midori.confluence.plugin.mail2news.testsupport.InMemoryConfluence;
+
+public class RunWatchdogTest {
+
+	private Mail2NewsJob job;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		job = new InMemoryConfluence().createJob(new MailConfiguration(), null);
+	}
+
+	@Test
+	public void testAbortsRun() throws InterruptedException
+	{
+		new RunWatchdog(job, 50L);
+		Thread.sleep(500);
+		assertEquals("Maximum run time of 0 minutes exceeded.", job.getAbortReason());
+	}
+
+	@Test
+	public void testCancelled() throws InterruptedException
+	{
+		RunWatchdog watchdog = new RunWatchdog(job, 200L);
+		watchdog.cancel();
+		Thread.sleep(500);
+		assertNull(job.getAbortReason());
+		/* cancelling twice does no harm */
+		watchdog.cancel();
+	}
+
+	@Test
+	public void testNoLimit()
+	{
+		new RunWatchdog(job, 0).cancel();
+		assertNull(job.getAbortReason());
+	}
+
+	@Test
+	public void testFirstReasonKept()
+	{
+		job.interrupt();
+		job.abort("Maximum run time of 10 minutes exceeded.");
+		assertEquals("Interrupted by the scheduler.", job.getAbortReason());
+	}
+}
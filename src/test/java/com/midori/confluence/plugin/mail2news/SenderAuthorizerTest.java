@@ -0,0 +1,166 @@
+/**
+ * Tests of the cached decisions who may post to a space.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.confluence.security.SpacePermission;
+import com.atlassian.confluence.security.SpacePermissionManager;
+import com.atlassian.confluence.spaces.Space;
+
+public class SenderAuthorizerTest {
+
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	/**
+	 * The granted permissions, as "permission space".
+	 */
+	private final Set<String> granted = new HashSet<String>();
+
+	private int checks;
+
+	private SpacePermissionManager spacePermissionManager;
+
+	private final Space space = new Space("ds");
+
+	@Before
+	public void setUp()
+	{
+		spacePermissionManager = (SpacePermissionManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class[] { SpacePermissionManager.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if (!"hasPermission".equals(method.getName()))
+				{
+					throw new UnsupportedOperationException(method.getName());
+				}
+				checks++;
+				return Boolean.valueOf(granted.contains(args[0] + " " + ((Space) args[1]).getKey()));
+			}
+		});
+	}
+
+	@Test
+	public void testDecisionCached()
+	{
+		granted.add(SpacePermission.EDITBLOG_PERMISSION + " ds");
+		SenderAuthorizer authorizer = new SenderAuthorizer(spacePermissionManager, HOUR);
+		assertNull(authorizer.getDecision("alice@example.com", space));
+		assertEquals(true, authorizer.authorize("alice@example.com", space, null));
+		assertEquals(1, checks);
+
+		assertEquals(Boolean.TRUE, authorizer.getDecision("alice@example.com", space));
+		assertEquals(Boolean.TRUE, authorizer.getDecision("Alice@Example.com", space));
+		assertNull(authorizer.getDecision("bob@example.com", space));
+		assertNull(authorizer.getDecision("alice@example.com", new Space("other")));
+		assertEquals(1, checks);
+	}
+
+	@Test
+	public void testRejectionCached()
+	{
+		SenderAuthorizer authorizer = new SenderAuthorizer(spacePermissionManager, HOUR);
+		assertEquals(false, authorizer.authorize("mallory@example.com", space, null));
+		assertEquals(Boolean.FALSE, authorizer.getDecision("mallory@example.com", space));
+	}
+
+	@Test
+	public void testDecisionsByPermission()
+	{
+		granted.add(SpacePermission.COMMENT_PERMISSION + " ds");
+		SenderAuthorizer authorizer = new SenderAuthorizer(spacePermissionManager, HOUR);
+		assertEquals(true, authorizer.authorize("alice@example.com", space, null, SpacePermission.COMMENT_PERMISSION));
+		assertEquals(false, authorizer.authorize("alice@example.com", space, null));
+		assertEquals(Boolean.TRUE, authorizer.getDecision("alice@example.com", space, SpacePermission.COMMENT_PERMISSION));
+		assertEquals(Boolean.FALSE, authorizer.getDecision("alice@example.com", space));
+	}
+
+	@Test
+	public void testDecisionExpires() throws InterruptedException
+	{
+		granted.add(SpacePermission.EDITBLOG_PERMISSION + " ds");
+		SenderAuthorizer authorizer = new SenderAuthorizer(spacePermissionManager, 0);
+		authorizer.authorize("alice@example.com", space, null);
+		Thread.sleep(10);
+		assertNull(authorizer.getDecision("alice@example.com", space));
+
+		/* a new time to live applies to the next decisions */
+		authorizer.setTimeToLive(HOUR);
+		authorizer.authorize("alice@example.com", space, null);
+		Thread.sleep(10);
+		assertEquals(Boolean.TRUE, authorizer.getDecision("alice@example.com", space));
+	}
+
+	@Test
+	public void testDecisionsDroppedWhenPermissionsChange()
+	{
+		granted.add(SpacePermission.EDITBLOG_PERMISSION + " ds");
+		SenderAuthorizer authorizer = new SenderAuthorizer(spacePermissionManager, HOUR);
+		authorizer.authorize("alice@example.com", space, null);
+		authorizer.authorize("mallory@example.com", new Space("other"), null);
+
+		/* the event is not looked at, any change drops all decisions */
+		authorizer.spacePermissionChanged(null);
+		assertNull(authorizer.getDecision("alice@example.com", space));
+		assertNull(authorizer.getDecision("mallory@example.com", new Space("other")));
+
+		/* the next check asks the permissions again */
+		granted.clear();
+		assertEquals(false, authorizer.authorize("alice@example.com", space, null));
+		assertEquals(3, checks);
+	}
+
+	@Test
+	public void testClear()
+	{
+		SenderAuthorizer authorizer = new SenderAuthorizer(spacePermissionManager, HOUR);
+		authorizer.authorize("mallory@example.com", space, null);
+		authorizer.clear();
+		assertNull(authorizer.getDecision("mallory@example.com", space));
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Tests of the fair scheduling of the messages of several spaces.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news
+ */
+
+package com.midori.confluence.plugin.mail2news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SpaceSchedulerTest {
+
+	@Test
+	public void testRoundRobin()
+	{
+		SpaceScheduler<String> scheduler = new SpaceScheduler<String>(null, 0);
+		scheduler.add("A", "a1");
+		scheduler.add("A", "a2");
+		scheduler.add("A", "a3");
+		scheduler.add("B", "b1");
+		scheduler.add("c", "c1");
+		scheduler.add("C", "c2");
+
+		/* a flood in one space does not delay the others */
+		assertEquals(Arrays.asList(new String[] {"a1", "b1", "c1", "a2", "c2", "a3"}), scheduler.drain());
+		assertEquals(0, scheduler.getDeferred());
+	}
+
+	@Test
+	public void testWeights()
+	{
+		SpaceScheduler<String> scheduler = new SpaceScheduler<String>("a=2", 0);
+		for (int i = 1; i <= 4; i++)
+		{
+			scheduler.add("A", "a" + i);
+			scheduler.add("B", "b" + i);
+		}
+		assertEquals(Arrays.asList(new String[] {"a1", "a2", "b1", "a3", "a4", "b2", "b3", "b4"}), scheduler.drain());
+	}
+
+	@Test
+	public void testItemsWithoutSpaceFirst()
+	{
+		SpaceScheduler<String> scheduler = new SpaceScheduler<String>(null, 1);
+		scheduler.add("A", "a1");
+		scheduler.add(null, "x1");
+		scheduler.add("A", "a2");
+		scheduler.add(null, "x2");
+		assertEquals(Arrays.asList(new String[] {"x1", "x2", "a1"}), scheduler.drain());
+	}
+
+	@Test
+	public void testMaxPerSpace()
+	{
+		SpaceScheduler<Integer> scheduler = new SpaceScheduler<Integer>(null, 2);
+		for (int i = 0; i < 5; i++)
+		{
+			scheduler.add("A", Integer.valueOf(i));
+		}
+		scheduler.add("B", Integer.valueOf(10));
+		assertEquals(Arrays.asList(new Integer[] {Integer.valueOf(0), Integer.valueOf(10), Integer.valueOf(1)}), scheduler.drain());
+		assertEquals(3, scheduler.getDeferred());
+		assertEquals(0, scheduler.drain().size());
+	}
+
+	@Test
+	public void testParseWeights()
+	{
+		Map<String, Integer> weights = SpaceScheduler.parseWeights("ds=3, TEAM = 2;bad;zero=0;neg=-1;nan=x\nlast=1");
+		assertEquals(3, weights.size());
+		assertEquals(Integer.valueOf(3), weights.get("DS"));
+		assertEquals(Integer.valueOf(2), weights.get("TEAM"));
+		assertEquals(Integer.valueOf(1), weights.get("LAST"));
+		assertFalse(weights.containsKey("ZERO"));
+		assertEquals(0, SpaceScheduler.parseWeights(null).size());
+	}
+}
@@ -0,0 +1,580 @@
+/**
+ * In-memory stand-ins for the Confluence managers used by the mail2news
+ * job, so the job can run without a Confluence server.
+ *
+ * This software is licensed under the BSD license.
+ *
+ * Copyright (c) 2008, Liip AG
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of Liip AG nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version  $Id$
+ * @package  com.midori.confluence.plugin.mail2news.mail2news.testsupport
+ */
+
+package com.midori.confluence.plugin.mail2news.testsupport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.atlassian.bandana.BandanaManager;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.pages.BlogPost;
+import com.atlassian.confluence.pages.Comment;
+import com.atlassian.confluence.pages.CommentManager;
+import com.atlassian.confluence.pages.PageManager;
+import com.atlassian.confluence.security.SpacePermissionManager;
+import com.atlassian.confluence.spaces.Space;
+import com.atlassian.confluence.spaces.SpaceManager;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.mail.server.SMTPMailServer;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import com.atlassian.user.User;
+import com.atlassian.user.search.SearchResult;
+import com.atlassian.user.search.page.Pager;
+import com.midori.confluence.plugin.mail2news.BandanaIndex;
+import com.midori.confluence.plugin.mail2news.ConfigurationManager;
+import com.midori.confluence.plugin.mail2news.DigestStore;
+import com.midori.confluence.plugin.mail2news.IngestionJournal;
+import com.midori.confluence.plugin.mail2news.Mail2NewsJob;
+import com.midori.confluence.plugin.mail2news.MailConfiguration;
+import com.midori.confluence.plugin.mail2news.MailboxLease;
+import com.midori.confluence.plugin.mail2news.RetryQueue;
+
+/**
+ * The managers are dynamic proxies implementing only the methods called by
+ * the job, all other methods return null, 0 or false. Everything is kept in
+ * memory and is thread safe, as attachments are saved by several threads.
+ * <p>
+ * The latency of a database or filestore can be simulated per operation,
+ * e.g. <code>setLatency("PageManager.saveContentEntity", 20)</code>.
+ */
+public class InMemoryConfluence {
+
+	/* the content of confluence */
+	private final Map<String, Space> spaces = new ConcurrentHashMap<String, Space>();
+	private final Map<String, User> usersByEmail = new ConcurrentHashMap<String, User>();
+	private final Map<Long, Attachment> attachments = new ConcurrentHashMap<Long, Attachment>();
+	private final Map<String, Object> bandana = new ConcurrentHashMap<String, Object>();
+	private final List<BlogPost> blogPosts = new CopyOnWriteArrayList<BlogPost>();
+	private final Map<Long, ContentEntityObject> content = new ConcurrentHashMap<Long, ContentEntityObject>();
+
+	/* the simulated latency in milliseconds, by operation */
+	private final Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+
+	/* whether the saved blog posts are kept, e.g. not for load tests */
+	private volatile boolean keepBlogPosts = true;
+
+	/* the ids of saved blog posts and attachments */
+	private final AtomicLong ids = new AtomicLong(1000);
+
+	/* counters for the report */
+	private final AtomicInteger blogPostCount = new AtomicInteger();
+	private final AtomicInteger commentCount = new AtomicInteger();
+	private final AtomicLong attachmentBytes = new AtomicLong();
+
+	/**
+	 * Simulate the latency of an operation, e.g. of the database.
+	 *
+	 * @param operation The simple name of the manager and the name of the method,
+	 *                  e.g. "AttachmentManager.saveAttachment" or "TransactionTemplate.execute".
+	 * @param millis The time the operation takes in milliseconds, 0 for no latency.
+	 */
+	public void setLatency(String operation, long millis)
+	{
+		if (millis > 0)
+		{
+			latencies.put(operation, Long.valueOf(millis));
+		}
+		else
+		{
+			latencies.remove(operation);
+		}
+	}
+
+	/**
+	 * Set whether the saved blog posts are kept for getBlogPosts(). Turn
+	 * this off for load tests, so the heap is not filled with blog posts.
+	 *
+	 * @param keepBlogPosts Whether to keep the saved blog posts.
+	 */
+	public void setKeepBlogPosts(boolean keepBlogPosts)
+	{
+		this.keepBlogPosts = keepBlogPosts;
+	}
+
+	/**
+	 * Create a job using these managers.
+	 *
+	 * @param config The configuration of the job.
+	 * @param smtpMailServer The SMTP server for error messages, null to send none.
+	 * @return Returns the job.
+	 * @throws IOException
+	 */
+	public Mail2NewsJob createJob(MailConfiguration config, final SMTPMailServer smtpMailServer) throws IOException
+	{
+		ConfigurationManager configurationManager = new ConfigurationManager(getBandanaManager());
+		configurationManager.setMailConfiguration(config);
+
+		Mail2NewsJob job = new Mail2NewsJob(configurationManager, new BandanaIndex("attachment", getBandanaManager())) {
+			protected SMTPMailServer getSMTPMailServer() {
+				return smtpMailServer;
+			}
+		};
+		job.setPageManager(getPageManager());
+		job.setSpaceManager(getSpaceManager());
+		job.setAttachmentManager(getAttachmentManager());
+		job.setCommentManager(getCommentManager());
+		job.setUserAccessor(getUserAccessor());
+		job.setSpacePermissionManager(getSpacePermissionManager());
+		job.setTransactionTemplate(getTransactionTemplate());
+
+		/* there is no confluence home, keep the retry queue, the journal and the digests in temporary files */
+		File retryDirectory = File.createTempFile("mail2news-retry", "");
+		retryDirectory.delete();
+		retryDirectory.deleteOnExit();
+		job.setRetryQueue(new RetryQueue(retryDirectory));
+		File journal = File.createTempFile("mail2news-journal", ".log");
+		journal.deleteOnExit();
+		job.setJournal(new IngestionJournal(journal));
+		File digestDirectory = File.createTempFile("mail2news-digest", "");
+		digestDirectory.delete();
+		digestDirectory.deleteOnExit();
+		job.setDigestStore(new DigestStore(digestDirectory));
+		job.setThreadIndex(new BandanaIndex("thread", getBandanaManager()));
+		/* a single node, locked within this JVM */
+		job.setMailboxLease(new MailboxLease(new BandanaIndex("lease", getBandanaManager()), null, getTransactionTemplate()));
+		return job;
+	}
+
+	/**
+	 * Add a space.
+	 *
+	 * @param key The key of the space.
+	 * @return Returns the space.
+	 */
+	public Space addSpace(String key)
+	{
+		Space space = new Space(key);
+		space.setName(key);
+		spaces.put(key, space);
+		return space;
+	}
+
+	/**
+	 * Add a user.
+	 *
+	 * @param name The user name.
+	 * @param email The email address of the user.
+	 * @return Returns the user.
+	 */
+	public User addUser(final String name, final String email)
+	{
+		User user = proxy(User.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("getName".equals(method) || "getFullName".equals(method))
+				{
+					return name;
+				}
+				if ("getEmail".equals(method))
+				{
+					return email;
+				}
+				return NOT_HANDLED;
+			}
+		});
+		usersByEmail.put(email, user);
+		return user;
+	}
+
+	public PageManager getPageManager()
+	{
+		return proxy(PageManager.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("saveContentEntity".equals(method))
+				{
+					ContentEntityObject content = (ContentEntityObject) args[0];
+					content.setId(ids.incrementAndGet());
+					blogPostCount.incrementAndGet();
+					if (keepBlogPosts && content instanceof BlogPost)
+					{
+						blogPosts.add((BlogPost) content);
+						InMemoryConfluence.this.content.put(Long.valueOf(content.getId()), content);
+					}
+					return null;
+				}
+				if ("getById".equals(method))
+				{
+					return content.get(args[0]);
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	public CommentManager getCommentManager()
+	{
+		return proxy(CommentManager.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("addCommentToObject".equals(method))
+				{
+					Comment comment = new Comment();
+					comment.setId(ids.incrementAndGet());
+					comment.setBodyAsString((String) args[2]);
+					((ContentEntityObject) args[0]).addComment(comment);
+					commentCount.incrementAndGet();
+					return comment;
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	public SpaceManager getSpaceManager()
+	{
+		return proxy(SpaceManager.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("getSpace".equals(method) && args[0] instanceof String)
+				{
+					return spaces.get(args[0]);
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	public AttachmentManager getAttachmentManager()
+	{
+		return proxy(AttachmentManager.class, new Handler() {
+			Object handle(String method, Object[] args) throws IOException {
+				if ("saveAttachment".equals(method) && args.length == 3)
+				{
+					Attachment a = (Attachment) args[0];
+					attachmentBytes.addAndGet(consume((InputStream) args[2]));
+					a.setId(ids.incrementAndGet());
+					attachments.put(Long.valueOf(a.getId()), a);
+					return null;
+				}
+				if ("getAttachment".equals(method) && args.length == 1)
+				{
+					return attachments.get(args[0]);
+				}
+				if ("getLatestVersionsOfAttachments".equals(method))
+				{
+					List<Attachment> latest = new ArrayList<Attachment>();
+					for (Attachment a : attachments.values())
+					{
+						if (a.getContent() == args[0])
+						{
+							latest.add(a);
+						}
+					}
+					return latest;
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	public UserAccessor getUserAccessor()
+	{
+		return proxy(UserAccessor.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("getUsersByEmail".equals(method))
+				{
+					User user = usersByEmail.get(args[0]);
+					List<User> users = (user != null) ? Collections.singletonList(user) : Collections.<User>emptyList();
+					return createSearchResult(users);
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	public SpacePermissionManager getSpacePermissionManager()
+	{
+		return proxy(SpacePermissionManager.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("hasPermission".equals(method))
+				{
+					/* everybody, even anonymous, may post */
+					return Boolean.TRUE;
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	public TransactionTemplate getTransactionTemplate()
+	{
+		return new TransactionTemplate() {
+			public <T> T execute(TransactionCallback<T> callback) {
+				simulateLatency("TransactionTemplate.execute");
+				return callback.doInTransaction();
+			}
+		};
+	}
+
+	public BandanaManager getBandanaManager()
+	{
+		return proxy(BandanaManager.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("setValue".equals(method))
+				{
+					bandana.put((String) args[1], args[2]);
+					return null;
+				}
+				if ("getValue".equals(method))
+				{
+					return bandana.get(args[1]);
+				}
+				if ("removeValue".equals(method))
+				{
+					bandana.remove(args[1]);
+					return null;
+				}
+				if ("getKeys".equals(method))
+				{
+					return new ArrayList<String>(bandana.keySet());
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	/**
+	 * Create an SMTP server for the error messages.
+	 *
+	 * @param host The host of the SMTP server.
+	 * @param port The port of the SMTP server.
+	 * @return Returns the SMTP server.
+	 */
+	public SMTPMailServer createSMTPMailServer(final String host, final int port)
+	{
+		return proxy(SMTPMailServer.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("getHostname".equals(method))
+				{
+					return host;
+				}
+				if ("getPort".equals(method))
+				{
+					return "" + port;
+				}
+				if ("getDefaultFrom".equals(method))
+				{
+					return "confluence@example.com";
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	/**
+	 * Get the number of saved blog posts.
+	 *
+	 * @return Returns the number of blog posts.
+	 */
+	public int getBlogPostCount()
+	{
+		return blogPostCount.get();
+	}
+
+	/**
+	 * Get the number of comments, i.e. of replies added to blog posts.
+	 *
+	 * @return Returns the number of comments.
+	 */
+	public int getCommentCount()
+	{
+		return commentCount.get();
+	}
+
+	/**
+	 * Get the saved blog posts, unless turned off with setKeepBlogPosts().
+	 *
+	 * @return Returns the blog posts in the order they were saved.
+	 */
+	public List<BlogPost> getBlogPosts()
+	{
+		return blogPosts;
+	}
+
+	/**
+	 * Get the number of saved attachments.
+	 *
+	 * @return Returns the number of attachments.
+	 */
+	public int getAttachmentCount()
+	{
+		return attachments.size();
+	}
+
+	/**
+	 * Get the size of the saved attachments.
+	 *
+	 * @return Returns the size of the content of all attachments in bytes.
+	 */
+	public long getAttachmentBytes()
+	{
+		return attachmentBytes.get();
+	}
+
+	private SearchResult createSearchResult(final List<User> users)
+	{
+		final Pager pager = proxy(Pager.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("getCurrentPage".equals(method))
+				{
+					return users;
+				}
+				if ("iterator".equals(method))
+				{
+					return users.iterator();
+				}
+				return NOT_HANDLED;
+			}
+		});
+		return proxy(SearchResult.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if ("pager".equals(method))
+				{
+					return pager;
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	/**
+	 * Read a stream to the end, like saving it in the filestore.
+	 */
+	private static long consume(InputStream is) throws IOException
+	{
+		byte[] buf = new byte[8192];
+		long size = 0;
+		int n;
+		while ((n = is.read(buf)) != -1)
+		{
+			size += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Wait for the simulated latency of an operation.
+	 */
+	private void simulateLatency(String operation)
+	{
+		Long millis = latencies.get(operation);
+		if (millis != null)
+		{
+			try {
+				Thread.sleep(millis.longValue());
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T proxy(Class<T> type, Handler handler)
+	{
+		handler.prefix = type.getSimpleName() + ".";
+		return (T) Proxy.newProxyInstance(InMemoryConfluence.class.getClassLoader(), new Class[] { type }, handler);
+	}
+
+	/**
+	 * Handles the methods called by the job, the other methods return the
+	 * default value of their return type.
+	 */
+	private abstract class Handler implements InvocationHandler {
+		final Object NOT_HANDLED = new Object();
+
+		/* the simple name of the proxied interface and a dot */
+		String prefix;
+
+		abstract Object handle(String method, Object[] args) throws Exception;
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			if (method.getDeclaringClass() == Object.class)
+			{
+				if ("equals".equals(method.getName()))
+				{
+					return Boolean.valueOf(proxy == args[0]);
+				}
+				if ("hashCode".equals(method.getName()))
+				{
+					return Integer.valueOf(System.identityHashCode(proxy));
+				}
+				return proxy.getClass().getInterfaces()[0].getName() + "@" + System.identityHashCode(proxy);
+			}
+
+			simulateLatency(prefix + method.getName());
+			Object result = handle(method.getName(), (args != null) ? args : new Object[0]);
+			if (result != NOT_HANDLED)
+			{
+				return result;
+			}
+
+			Class<?> type = method.getReturnType();
+			if (type == Boolean.TYPE)
+			{
+				return Boolean.FALSE;
+			}
+			if (type == Integer.TYPE)
+			{
+				return Integer.valueOf(0);
+			}
+			if (type == Long.TYPE)
+			{
+				return Long.valueOf(0);
+			}
+			if (type.isPrimitive() && type != Void.TYPE)
+			{
+				throw new UnsupportedOperationException(method.toString());
+			}
+			return null;
+		}
+	}
+}